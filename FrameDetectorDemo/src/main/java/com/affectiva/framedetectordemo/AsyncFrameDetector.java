@@ -13,34 +13,62 @@ import com.affectiva.android.affdex.sdk.detector.Detector;
 import com.affectiva.android.affdex.sdk.detector.Face;
 import com.affectiva.android.affdex.sdk.detector.FrameDetector;
 
+import java.util.ArrayDeque;
 import java.util.List;
 
 /**
  * A class which instantiates and runs a FrameDetector on a background thread.
  * The background thread is defined in an inner class and is re-created for any pair of start() stop() calls the user makes.
+ *
+ * Optionally, several FrameDetectors can be run in parallel, each on its own background thread (see setDetectorCount()).
+ * Frames are then spread across the detectors, and results are delivered to the listener in the order the frames were
+ * submitted. Note that each detector only sees a subset of the frames, so each tracks faces across larger time steps.
  */
 public class AsyncFrameDetector {
 
     public interface OnDetectorEventListener {
-        void onImageResults(List<Face> faces, Frame image, float timeStamp);
+        /*
+         * scale is the factor the frame was downscaled by before processing (see setDetectorInputSize()). The face
+         * points are already in full-frame coordinates; pass it to FaceMetrics.getValues() to scale the measurements.
+         */
+        void onImageResults(List<Face> faces, Frame image, float timeStamp, int scale);
 
         void onDetectorStarted();
     }
 
-    private static final int MAX_FRAMES_WAITING = 1;
-    private FrameDetectorThread detectorThread;
+    private static final String LOG_TAG = "AsyncFrameDetector";
     private Context context;
     private boolean isRunning;
     private MainThreadHandler mainThreadHandler;
-    private FrameDetectorHandler detectorThreadHandler;
     private OnDetectorEventListener listener;
+    private FrameBufferPool frameBufferPool;
+    private FrameRateGovernor frameRateGovernor;
+    private PipelineStats pipelineStats;
+    private MetricsFileWriter resultsWriter;
+    private float[] metricValues; // scratch space for recording a face's metrics
+    private long framesThrottled = 0;
+    // the capture time process(Frame, long) measures timestamps from, and the last timestamp it passed on
+    private boolean hasTimeBase = false;
+    private long timeBaseNanos;
+    private float lastTimestamp = -1f;
+    private final ArrayDeque<InputData> spareInputData = new ArrayDeque<>();
+
+    private int detectorCount = 1;
+    private boolean isRegionOfInterestEnabled = false;
+    private int detectorInputSize = 0;
+    private Worker[] workers = new Worker[0];
+    private int nextWorker = 0;
+    private int workersStarted = 0;
 
     /*
-     Since FrameDetector is run on a background thread based off Android's HandlerThread class, it will receive frames to process
-     in a queue. It is possible that this queue could grow in size, causing FrameDetector to incur a 'debt' of frames to process.
-     To avoid this, we define a maximum number of frames that this waiting queue is allowed to have before we submit any more frames.
+     Frames which have been submitted but not yet delivered, in submission order. Detectors running in parallel can finish
+     frames out of order, so a frame's results are held here until every frame submitted before it has been delivered
+     (or replaced, or dropped).
      */
-    private int framesWaiting = 0;
+    private final ArrayDeque<InputData> framesInFlight = new ArrayDeque<>();
+
+    // incremented by each start(), so results from a previous run's detector threads are never delivered
+    private int session = 0;
 
     public AsyncFrameDetector(Context context) {
         this.context = context;
@@ -51,6 +79,96 @@ public class AsyncFrameDetector {
         this.listener = listener;
     }
 
+    /*
+     * Sets the pool which owns the buffers of the ByteArrayFrames passed to process(). Each pooled buffer is retained
+     * while its frame waits for or is being processed on the FrameDetectorThread, and released once the detector is done
+     * with it, so the camera does not overwrite it in the meantime. The pool can be changed when switching frame
+     * sources: buffers already retained are released into the pool they came from. The pool is grown to
+     * FrameBufferPool.getCapacityFor() the detector count, so the source has a buffer to fill while every detector
+     * holds frames.
+     */
+    public void setFrameBufferPool(FrameBufferPool frameBufferPool) {
+        this.frameBufferPool = frameBufferPool;
+        ensurePoolCapacity();
+    }
+
+    /*
+     * Sets a governor which limits the rate at which frames are submitted to what the detectors can keep up with.
+     * Frames passed to process() faster than that are skipped. The governor is fed the time each frame spends in
+     * FrameDetector.process().
+     */
+    public void setFrameRateGovernor(FrameRateGovernor frameRateGovernor) {
+        this.frameRateGovernor = frameRateGovernor;
+    }
+
+    /*
+     * Sets the histograms into which the latency of each processed frame is recorded, stage by stage, up to its
+     * delivery to the listener. The listener is responsible for calling PipelineStats.onResultsDisplayed().
+     */
+    public void setPipelineStats(PipelineStats pipelineStats) {
+        this.pipelineStats = pipelineStats;
+    }
+
+    /*
+     * Sets a writer to record the metrics of every face found into, in the order the frames were submitted. Rows are
+     * copied into the writer's buffers on the main thread as results are delivered, and written to disk by the
+     * writer's own thread. The caller remains responsible for closing the writer.
+     */
+    public void setResultsWriter(MetricsFileWriter resultsWriter) {
+        this.resultsWriter = resultsWriter;
+        if (resultsWriter != null && metricValues == null) {
+            metricValues = new float[Metrics.ALL.length];
+        }
+    }
+
+    /*
+     * Sets the number of FrameDetectors (each with its own background thread) to run in parallel. Takes effect on the
+     * next call to start(). Each FrameDetector has its own memory footprint, so on most devices this should not exceed
+     * the number of cores which are free for detection. The frame buffer pool is grown to match straight away.
+     */
+    public void setDetectorCount(int detectorCount) {
+        if (detectorCount < 1) {
+            throw new IllegalArgumentException("detectorCount must be at least 1");
+        }
+        this.detectorCount = detectorCount;
+        ensurePoolCapacity();
+    }
+
+    public int getDetectorCount() {
+        return detectorCount;
+    }
+
+    /*
+     * Sets whether NV21 frames are cropped down to the region around the faces found in the previous frame before
+     * being processed (see RegionOfInterestCropper). Face points are always reported in full-frame coordinates, and
+     * the full frame is passed to the listener. Takes effect on the next call to start().
+     */
+    public void setRegionOfInterestEnabled(boolean enabled) {
+        isRegionOfInterestEnabled = enabled;
+    }
+
+    public boolean isRegionOfInterestEnabled() {
+        return isRegionOfInterestEnabled;
+    }
+
+    /*
+     * Sets the resolution FrameDetector works at: NV21 frames (after cropping, if enabled) whose shorter side is at
+     * least twice this size are shrunk by an integer factor before being processed (see Nv21Downscaler). Face points
+     * are still reported in full-frame coordinates, and the factor is reported with the results so measurements can be
+     * scaled to match (the recorded metrics already are). 0, the default, processes frames at full resolution.
+     * Takes effect on the next call to start().
+     */
+    public void setDetectorInputSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative");
+        }
+        detectorInputSize = size;
+    }
+
+    public int getDetectorInputSize() {
+        return detectorInputSize;
+    }
+
     /*
      * Starts running FrameDetector on a background thread.
      * Note that FrameDetector is not guaranteed to have started by the time this call returns, because it is
@@ -61,16 +179,33 @@ public class AsyncFrameDetector {
             throw new RuntimeException("Called start() without calling stop() first.");
 
         isRunning = true;
+        session += 1;
+        nextWorker = 0;
+        workersStarted = 0;
+        framesThrottled = 0;
+        if (frameRateGovernor != null) {
+            frameRateGovernor.reset();
+        }
+        if (pipelineStats != null) {
+            pipelineStats.reset();
+        }
 
-        // create and start the background detector thread
-        detectorThread = new FrameDetectorThread();
-        detectorThread.start();
+        workers = new Worker[detectorCount];
+        for (int i = 0; i < detectorCount; i++) {
+            Worker worker = new Worker(i);
 
-        // create a handler for the detector thread, and send it a start message
-        detectorThreadHandler = new FrameDetectorHandler(context, mainThreadHandler, detectorThread);
-        detectorThreadHandler.sendStartMessage();
+            // create and start the background detector thread
+            worker.thread = new FrameDetectorThread(i);
+            worker.thread.start();
 
-        framesWaiting = 0;
+            // create a handler for the detector thread, and send it a start message
+            worker.handler = new FrameDetectorHandler(context, mainThreadHandler, worker.mailbox, worker.thread,
+                    isRegionOfInterestEnabled ? new RegionOfInterestCropper() : null,
+                    detectorInputSize > 0 ? new Nv21Downscaler(detectorInputSize) : null);
+            worker.handler.sendStartMessage();
+
+            workers[i] = worker;
+        }
     }
 
     /*
@@ -80,13 +215,21 @@ public class AsyncFrameDetector {
         if (!isRunning)
             throw new RuntimeException("Called stop() without calling start() first");
 
-        detectorThreadHandler.sendStopMessage();
+        for (Worker worker : workers) {
+            discardWaitingFrame(worker);
+            worker.handler.sendStopMessage();
 
-        // facilitate GC of the detector thread and handler.  The last reference to the handler
-        // will be the one in the stop message -- once that message has been processed by the
-        // handler, it will be eligible for GC
-        detectorThread = null;
-        detectorThreadHandler = null;
+            // facilitate GC of the detector thread and handler.  The last reference to the handler
+            // will be the one in the stop message -- once that message has been processed by the
+            // handler, it will be eligible for GC
+            worker.thread = null;
+            worker.handler = null;
+        }
+        Log.d(LOG_TAG, String.format("Frames processed: %d, replaced: %d, dropped: %d, throttled: %d",
+                getFramesProcessed(), getFramesReplaced(), getFramesDropped(), framesThrottled));
+        if (pipelineStats != null) {
+            pipelineStats.log();
+        }
 
         isRunning = false;
     }
@@ -95,27 +238,232 @@ public class AsyncFrameDetector {
         return isRunning;
     }
 
+    /*
+     * As process(Frame, float), with the frame's timestamp derived from the System.nanoTime() at which it was captured:
+     * the seconds since the first frame this AsyncFrameDetector was given (across start() and stop(), so timestamps
+     * keep increasing). The results are reported with that timestamp. A frame captured no later than the previous one
+     * is skipped, since FrameDetector requires increasing timestamps; frames are never dropped for arriving close
+     * together, as happens when timestamps are taken as the camera callbacks run.
+     */
+    public void process(Frame frame, long captureNanos) {
+        if (!isRunning) {
+            return;
+        }
+        if (!hasTimeBase) {
+            timeBaseNanos = captureNanos;
+            hasTimeBase = true;
+        }
+        float timestamp = (captureNanos - timeBaseNanos) / 1e9f;
+        if (timestamp <= lastTimestamp) {
+            return;
+        }
+        lastTimestamp = timestamp;
+        process(frame, timestamp, captureNanos);
+    }
+
+    /*
+     * Hands a frame to a detector thread, preferring one which is idle. If every detector is busy, the frame replaces
+     * the one waiting for the next detector in turn.
+     * If a FrameRateGovernor is set, frames arriving faster than its target rate are skipped.
+     */
     public void process(Frame frame, float timestamp) {
+        process(frame, timestamp, System.nanoTime());
+    }
+
+    /*
+     * As process(Frame, float), with the System.nanoTime() at which the frame was captured, for latency measurements.
+     */
+    public void process(Frame frame, float timestamp, long captureNanos) {
         if (isRunning) {
-            if (framesWaiting <= MAX_FRAMES_WAITING) {
-                framesWaiting += 1;
-                detectorThreadHandler.sendProcessFrameMessage(new InputData(frame, timestamp));
+            long now = System.nanoTime();
+            if (frameRateGovernor != null && !frameRateGovernor.shouldSubmit(now)) {
+                framesThrottled += 1;
+                return;
+            }
+            Worker worker = selectWorker();
+            InputData data = obtainInputData(frame, timestamp, worker.index);
+            data.captureNanos = captureNanos;
+            data.enqueueNanos = now;
+            framesInFlight.offer(data);
+            worker.pending += 1;
+
+            InputData replaced = worker.mailbox.post(data);
+            if (replaced == null) {
+                // the mailbox was empty, so the detector thread needs to be told there is a frame waiting
+                worker.handler.sendProcessFrameMessage();
+            } else {
+                onFrameDone(replaced);
             }
         }
     }
 
     public void reset() {
         if (isRunning) {
-            detectorThreadHandler.sendResetMessage();
-            framesWaiting = 0;
+            for (Worker worker : workers) {
+                discardWaitingFrame(worker);
+                worker.handler.sendResetMessage();
+            }
+        }
+    }
+
+    /*
+     * The number of frames FrameDetector has processed since start() was called.
+     */
+    public long getFramesProcessed() {
+        long count = 0;
+        for (Worker worker : workers) {
+            count += worker.mailbox.getFramesProcessed();
+        }
+        return count;
+    }
+
+    /*
+     * The number of frames which were replaced by a newer frame before the detector thread could pick them up
+     * since start() was called.
+     */
+    public long getFramesReplaced() {
+        long count = 0;
+        for (Worker worker : workers) {
+            count += worker.mailbox.getFramesReplaced();
         }
+        return count;
+    }
+
+    /*
+     * The number of frames discarded by reset() or stop(), or because FrameDetector was not running, since start() was called.
+     */
+    public long getFramesDropped() {
+        long count = 0;
+        for (Worker worker : workers) {
+            count += worker.mailbox.getFramesDropped();
+        }
+        return count;
+    }
+
+    /*
+     * The number of frames skipped because they arrived faster than the FrameRateGovernor's target rate since
+     * start() was called.
+     */
+    public long getFramesThrottled() {
+        return framesThrottled;
     }
 
     /*
-        Notify our listener that FrameDetector start has completed.
+     * Round-robin over the workers, skipping busy ones if any worker is idle.
+     */
+    private Worker selectWorker() {
+        Worker selected = workers[nextWorker];
+        for (int i = 0; i < workers.length; i++) {
+            Worker candidate = workers[(nextWorker + i) % workers.length];
+            if (candidate.pending == 0) {
+                selected = candidate;
+                break;
+            }
+        }
+        nextWorker = (selected.index + 1) % workers.length;
+        return selected;
+    }
+
+    private void discardWaitingFrame(Worker worker) {
+        InputData dropped = worker.mailbox.clear();
+        if (dropped != null) {
+            onFrameDone(dropped);
+        }
+    }
+
+    private void ensurePoolCapacity() {
+        if (frameBufferPool != null) {
+            frameBufferPool.ensureCapacity(FrameBufferPool.getCapacityFor(detectorCount));
+        }
+    }
+
+    /*
+        Wrap a frame for a detector thread, reusing a spare InputData if we have one, and retain its buffer.
+     */
+    private InputData obtainInputData(Frame frame, float timestamp, int workerIndex) {
+        InputData data = spareInputData.poll();
+        if (data == null) {
+            data = new InputData();
+        }
+        data.frame = frame;
+        data.timestamp = timestamp;
+        data.buffer = null;
+        data.pool = null;
+        data.worker = workerIndex;
+        data.session = session;
+        data.done = false;
+        data.hasResults = false;
+        data.resultScale = 1;
+        data.detectStartNanos = 0;
+        data.detectEndNanos = 0;
+        if (frameBufferPool != null && frame instanceof Frame.ByteArrayFrame) {
+            byte[] buffer = ((Frame.ByteArrayFrame) frame).getByteArray();
+            if (frameBufferPool.retain(buffer)) {
+                data.buffer = buffer;
+                data.pool = frameBufferPool;
+            }
+        }
+        return data;
+    }
+
+    /*
+        Nobody is working on this frame anymore (it was processed, replaced or dropped). Deliver, in order, every frame
+        whose predecessors are all done.
+     */
+    private void onFrameDone(InputData data) {
+        data.done = true;
+        if (data.session == session) {
+            workers[data.worker].pending -= 1;
+            if (frameRateGovernor != null && data.detectEndNanos != 0) {
+                frameRateGovernor.onFrameProcessed(data.detectEndNanos - data.detectStartNanos, workers.length,
+                        System.nanoTime());
+            }
+        }
+        while (!framesInFlight.isEmpty() && framesInFlight.peek().done) {
+            InputData next = framesInFlight.poll();
+            if (next.hasResults && next.session == session) {
+                if (pipelineStats != null) {
+                    pipelineStats.onFrameDelivered(next.captureNanos, next.enqueueNanos, next.detectStartNanos,
+                            next.detectEndNanos, System.nanoTime());
+                }
+                recordResults(next.faces, next.resultTimestamp, next.resultScale);
+                notifyImageResults(next.faces, next.resultFrame, next.resultTimestamp, next.resultScale);
+            }
+            recycleInputData(next);
+        }
+    }
+
+    private void recordResults(List<Face> faces, float timestamp, int scale) {
+        if (resultsWriter == null || faces == null) {
+            return;
+        }
+        for (Face face : faces) {
+            FaceMetrics.getValues(face, scale, metricValues);
+            resultsWriter.write(timestamp, face.getId(), metricValues);
+        }
+    }
+
+    /*
+        Release the frame's buffer, and keep the InputData for reuse.
+     */
+    private void recycleInputData(InputData data) {
+        if (data.buffer != null) {
+            data.pool.release(data.buffer);
+            data.buffer = null;
+            data.pool = null;
+        }
+        data.frame = null;
+        data.faces = null;
+        data.resultFrame = null;
+        spareInputData.offer(data);
+    }
+
+    /*
+        Notify our listener that FrameDetector start has completed (on every detector thread).
      */
     private void notifyDetectorStarted() {
-        if (isRunning && listener != null) {
+        workersStarted += 1;
+        if (workersStarted == workers.length && isRunning && listener != null) {
             listener.onDetectorStarted();
         }
     }
@@ -123,21 +471,30 @@ public class AsyncFrameDetector {
     /*
         Send processed frame data to our listener.
      */
-    private void notifyImageResults(List<Face> faces, Frame frame, float timestamp) {
-        framesWaiting -= 1;
-        if (framesWaiting < 0) {
-            framesWaiting = 0;
+    private void notifyImageResults(List<Face> faces, Frame frame, float timestamp, int scale) {
+        if (isRunning && listener != null) {
+            listener.onImageResults(faces, frame, timestamp, scale);
         }
-        Log.d("AsyncFrameDetector", String.format("Frames in queue: %d", framesWaiting));
+    }
 
-        if (isRunning && listener != null) {
-            listener.onImageResults(faces, frame, timestamp);
+    /*
+     * The main thread's view of one detector thread.
+     */
+    private static class Worker {
+        final int index;
+        final FrameMailbox<InputData> mailbox = new FrameMailbox<>();
+        FrameDetectorThread thread;
+        FrameDetectorHandler handler;
+        int pending = 0; // frames posted to this worker which it has not finished with yet
+
+        Worker(int index) {
+            this.index = index;
         }
     }
 
     private static class MainThreadHandler extends Handler {
-        private static final int FRAME_READY = 0;
         private static final int DETECTOR_STARTED = 1;
+        private static final int FRAME_DONE = 2;
 
         private AsyncFrameDetector asyncFrameDetector;
 
@@ -150,8 +507,8 @@ public class AsyncFrameDetector {
             sendMessage(obtainMessage(DETECTOR_STARTED));
         }
 
-        private void sendFrameReadyMessage(OutputData data) {
-            sendMessage(obtainMessage(FRAME_READY, data));
+        private void sendFrameDoneMessage(InputData data) {
+            sendMessage(obtainMessage(FRAME_DONE, data));
         }
 
 
@@ -164,9 +521,8 @@ public class AsyncFrameDetector {
                 case DETECTOR_STARTED:
                     asyncFrameDetector.notifyDetectorStarted();
                     break;
-                case FRAME_READY:
-                    OutputData frameData = (OutputData) msg.obj;
-                    asyncFrameDetector.notifyImageResults(frameData.faces, frameData.frame, frameData.timestamp);
+                case FRAME_DONE:
+                    asyncFrameDetector.onFrameDone((InputData) msg.obj);
                     break;
                 default:
                     // IGNORE
@@ -181,8 +537,8 @@ public class AsyncFrameDetector {
      */
     private static class FrameDetectorThread extends HandlerThread {
 
-        private FrameDetectorThread() {
-            super("FrameDetectorThread", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        private FrameDetectorThread(int index) {
+            super("FrameDetectorThread-" + index, Process.THREAD_PRIORITY_URGENT_DISPLAY);
         }
     }
 
@@ -197,12 +553,20 @@ public class AsyncFrameDetector {
         private Context context;
         private FrameDetector detector;
         private MainThreadHandler mainThreadHandler;
-
-
-        private FrameDetectorHandler(Context context, MainThreadHandler mainThreadHandler, HandlerThread detectorThread) {
+        private FrameMailbox<InputData> mailbox;
+        private InputData currentInput; // the frame being processed, which collects the results of detector.process()
+        private RegionOfInterestCropper cropper; // null if frames are processed in full
+        private Nv21Downscaler downscaler; // null if frames are processed at full resolution
+
+        private FrameDetectorHandler(Context context, MainThreadHandler mainThreadHandler, FrameMailbox<InputData> mailbox,
+                                     HandlerThread detectorThread, RegionOfInterestCropper cropper,
+                                     Nv21Downscaler downscaler) {
             super(detectorThread.getLooper());
             this.context = context;
             this.mainThreadHandler = mainThreadHandler;
+            this.mailbox = mailbox;
+            this.cropper = cropper;
+            this.downscaler = downscaler;
         }
 
         private void sendStartMessage() {
@@ -214,8 +578,8 @@ public class AsyncFrameDetector {
             sendMessage(obtainMessage(STOP_DETECTOR));
         }
 
-        private void sendProcessFrameMessage(InputData data) {
-            sendMessage(obtainMessage(PROCESS_FRAME, data));
+        private void sendProcessFrameMessage() {
+            sendMessage(obtainMessage(PROCESS_FRAME));
         }
 
         private void sendResetMessage() {
@@ -230,11 +594,14 @@ public class AsyncFrameDetector {
                     startDetector();
                     break;
                 case PROCESS_FRAME:
-                    processFrame((InputData) msg.obj);
+                    processFrame();
                     break;
                 case STOP_DETECTOR:
                     stopDetector();
                     mainThreadHandler = null;
+                    mailbox = null;
+                    cropper = null;
+                    downscaler = null;
                     context = null;
                     detector = null;
                     Log.d(LOG_TAG, "Quitting FrameDetectorThread");
@@ -251,6 +618,7 @@ public class AsyncFrameDetector {
         /*
          * When resetting or stopping the detector, we don't want our command to have to wait for messages in front of it to
          * finish processing, so we purge any non-critical messages, namely PROCESS_FRAME and RESET_DETECTOR.
+         * Frames are owned by the mailbox rather than by PROCESS_FRAME messages, so no frame is lost track of here.
          */
         private void emptyQueue() {
             removeMessages(PROCESS_FRAME);
@@ -269,8 +637,12 @@ public class AsyncFrameDetector {
             detector.setImageListener(new Detector.ImageListener() {
                 @Override
                 public void onImageResults(List<Face> faceList, Frame frame, float timeStamp) {
-                    OutputData data = new OutputData(faceList, frame, timeStamp);
-                    mainThreadHandler.sendFrameReadyMessage(data);
+                    if (currentInput != null) {
+                        currentInput.faces = faceList;
+                        currentInput.resultFrame = frame;
+                        currentInput.resultTimestamp = timeStamp;
+                        currentInput.hasResults = true;
+                    }
                 }
             });
 
@@ -288,39 +660,82 @@ public class AsyncFrameDetector {
             }
         }
 
-        private void processFrame(InputData data) {
+        private void processFrame() {
+            InputData data = mailbox.take();
+            if (data == null) {
+                return; // the frame was discarded by reset() or stop() before we got to it
+            }
             if (detector.isRunning()) {
-                detector.process(data.frame, data.timestamp);
+                // FrameDetector processes synchronously, so by the time this returns the listener above has
+                // stored the frame's results (if any) in data.
+                currentInput = data;
+                data.detectStartNanos = System.nanoTime();
+                Frame input = data.frame;
+                if (cropper != null) {
+                    input = cropper.crop(input);
+                }
+                if (downscaler != null) {
+                    input = downscaler.downscale(input);
+                }
+                detector.process(input, data.timestamp);
+                if (data.hasResults) {
+                    // report the points in full-frame terms, undoing the stages in reverse order (the cropper also
+                    // uses the faces to pick the next region)
+                    if (downscaler != null) {
+                        downscaler.mapResults(data.faces);
+                        data.resultScale = downscaler.getLastScale();
+                    }
+                    if (cropper != null) {
+                        cropper.mapResults(data.faces);
+                    }
+                    if (input != data.frame) {
+                        data.resultFrame = data.frame;
+                    }
+                }
+                data.detectEndNanos = System.nanoTime();
+                currentInput = null;
+                mailbox.markProcessed();
+            } else {
+                mailbox.markDropped();
             }
+            mainThreadHandler.sendFrameDoneMessage(data);
         }
 
         private void resetDetector() {
             if (detector.isRunning()) {
                 detector.reset();
             }
+            if (cropper != null) {
+                cropper.reset();
+            }
             Log.i(LOG_TAG, "Detector reset");
         }
     }
 
-    private static class OutputData {
-        public final List<Face> faces;
-        public final Frame frame;
-        public final float timestamp;
-
-        public OutputData(List<Face> faces, Frame frame, float timestamp) {
-            this.faces = faces;
-            this.frame = frame;
-            this.timestamp = timestamp;
-        }
-    }
-
+    /*
+     * Recycled by AsyncFrameDetector once its results have been delivered (or it was replaced or dropped).
+     * The detector thread only touches it between taking it from the mailbox and sending its FRAME_DONE message.
+     */
     private static class InputData {
         public Frame frame;
         public float timestamp;
-
-        public InputData(Frame frame, float timestamp) {
-            this.frame = frame;
-            this.timestamp = timestamp;
-        }
+        public byte[] buffer; // the pooled buffer backing frame, or null if it is not pooled
+        public FrameBufferPool pool; // the pool buffer was retained from
+        public int worker;
+        public int session;
+        public boolean done;
+
+        // System.nanoTime() at each stage, for latency measurements; the detect times are 0 if the frame was not processed
+        public long captureNanos;
+        public long enqueueNanos;
+        public long detectStartNanos;
+        public long detectEndNanos;
+
+        // results, filled in on the detector thread
+        public boolean hasResults;
+        public List<Face> faces;
+        public Frame resultFrame;
+        public float resultTimestamp;
+        public int resultScale; // the factor frame was downscaled by, which measurements in pixels are scaled up by
     }
 }
@@ -0,0 +1,622 @@
+package com.affectiva.framedetectordemo;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Display;
+import android.view.OrientationEventListener;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the camera through the camera2 API, for devices which have it: frames come from an ImageReader in
+ * YUV_420_888, and the preview goes straight to the SurfaceView, so there is no one-shot callback or buffer queue
+ * dance, and capture latency is lower than with android.hardware.Camera.
+ *
+ * The ImageReader holds only MAX_IMAGES images, and acquireLatestImage() skips any the detector was too slow for, so
+ * frames never queue up behind it. Each image is packed into a free FrameBufferPool buffer on a background thread
+ * (see Yuv420Converter), the image is handed straight back to the camera, and the buffer is passed to the listener
+ * on the main thread, where it is released once the listener is done with it, as with CameraHelper. If every buffer
+ * is in flight, the image is dropped. Each frame is passed on with the time its exposure started, from the image's
+ * sensor timestamp.
+ *
+ * The stream size is the smallest one which is at least the target height and which the camera can deliver at 30
+ * fps, since a larger frame only costs the detector time.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class Camera2Helper implements CameraBackend, SurfaceHolder.Callback, ImageReader.OnImageAvailableListener,
+        FrameBufferPool.OnBufferAvailableListener {
+
+    private final static String LOG_TAG = "Camera2Helper";
+    private final static float TARGET_FRAME_RATE = 30;
+    // one image being filled by the camera, and one being packed into a frame buffer
+    private final static int MAX_IMAGES = 2;
+    // enough for one detector; AsyncFrameDetector grows the pool to run more (see FrameBufferPool.getCapacityFor())
+    private final static int FRAME_BUFFER_COUNT = FrameBufferPool.getCapacityFor(1);
+    // CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE and SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME, from API 23
+    private final static String TIMESTAMP_SOURCE_KEY = "android.sensor.info.timestampSource";
+    private final static int TIMESTAMP_SOURCE_REALTIME = 1;
+
+    private final CameraManager cameraManager;
+    private final SurfaceHolder holder;
+    private final Display defaultDisplay;
+    private final OrientationHelper orientationHelper;
+    private final MainThreadHandler mainHandler;
+    private CameraHelper.OnCameraHelperEventListener listener = null;
+
+    private volatile float previewFrameRate = TARGET_FRAME_RATE;
+    private volatile int targetPreviewHeight = 480;
+
+    // Camera-related members, only touched on the main thread
+    private boolean isCameraRequested = false;
+    private CameraDevice camera;
+    private CameraCaptureSession session;
+    private CaptureRequest.Builder requestBuilder;
+    private ImageReader imageReader;
+    private HandlerThread imageThread;
+    private Size streamSize;
+    private Range<Integer>[] frameRateRanges;
+    private int sensorOrientation;
+    private boolean isFrontFacing;
+    private boolean isSurfaceReady = false;
+    private int displayRotation;
+    private volatile Frame.ROTATE frameRotation = Frame.ROTATE.NO_ROTATION;
+
+    final FrameBufferPool framePool = new FrameBufferPool(FRAME_BUFFER_COUNT);
+    private final ArrayDeque<byte[]> freeBuffers = new ArrayDeque<>(FRAME_BUFFER_COUNT); // guarded by itself
+    private final ArrayDeque<CapturedFrame> spareFrames = new ArrayDeque<>(FRAME_BUFFER_COUNT); // guarded by freeBuffers
+
+    // for converting sensor timestamps to System.nanoTime(); only touched on the image thread, once started
+    private boolean isTimestampRealtime;
+    private boolean hasTimestampOffset;
+    private long timestampOffsetNanos;
+    // how the stream's chroma planes are laid out, worked out from its first images; only touched on the image thread
+    private Yuv420Converter.ChromaLayout chromaLayout;
+
+    Camera2Helper(Context context, SurfaceView providedSurfaceView, Display defaultDisplay) {
+        if (context == null) {
+            throw new NullPointerException("context must not be null");
+        }
+
+        if (providedSurfaceView == null) {
+            throw new NullPointerException("providedSurfaceView must not be null");
+        }
+
+        if (defaultDisplay == null) {
+            throw new NullPointerException("defaultDisplay must not be null");
+        }
+
+        cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        this.defaultDisplay = defaultDisplay;
+        displayRotation = defaultDisplay.getRotation();
+        orientationHelper = new OrientationHelper(context);
+        mainHandler = new MainThreadHandler(this);
+
+        holder = providedSurfaceView.getHolder();
+        holder.addCallback(this);
+    }
+
+    /**
+     * Returns whether the cameras on this device are backed by a camera2 HAL. On LEGACY devices camera2 is only a
+     * translation layer over the old API, which just adds overhead. Must only be called from Lollipop on.
+     */
+    static boolean isPreferred(Context context) {
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            for (String id : manager.getCameraIdList()) {
+                Integer level = manager.getCameraCharacteristics(id).get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+                if (level == null || level == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (CameraAccessException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void setOnCameraHelperEventListener(CameraHelper.OnCameraHelperEventListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public FrameBufferPool getFrameBufferPool() {
+        return framePool;
+    }
+
+    @Override
+    public void setPreviewFrameRate(float framesPerSecond) {
+        previewFrameRate = Math.min(framesPerSecond, TARGET_FRAME_RATE);
+        if (session != null) {
+            startRepeatingRequest();
+        }
+    }
+
+    @Override
+    public void setTargetPreviewHeight(int height) {
+        if (height <= 0) {
+            throw new IllegalArgumentException("height must be positive");
+        }
+        targetPreviewHeight = height;
+    }
+
+    /**
+     * Opens the camera of the given type. The result is reported to onCameraStarted(), once the camera has opened.
+     */
+    @Override
+    public void startCamera(CameraHelper.CameraType cameraType) {
+        if (isCameraRequested) {
+            return;
+        }
+        isCameraRequested = true;
+
+        try {
+            String cameraId = findCamera(cameraType);
+            CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraId);
+            Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            sensorOrientation = orientation != null ? orientation : 0;
+            isTimestampRealtime = isTimestampRealtime(characteristics);
+            hasTimestampOffset = false;
+            isFrontFacing = cameraType == CameraHelper.CameraType.CAMERA_FRONT;
+            frameRateRanges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+            StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            streamSize = chooseStreamSize(map, targetPreviewHeight);
+            Log.i(LOG_TAG, "Stream size " + streamSize);
+
+            // the preview surface must be one of the camera's output sizes; its content is rotated for the display.
+            // If it already has the size, surfaceChanged() won't be called again
+            Rect surfaceFrame = holder.getSurfaceFrame();
+            isSurfaceReady = holder.getSurface().isValid() && surfaceFrame.width() == streamSize.getWidth()
+                    && surfaceFrame.height() == streamSize.getHeight();
+            holder.setFixedSize(streamSize.getWidth(), streamSize.getHeight());
+
+            chromaLayout = Yuv420Converter.ChromaLayout.UNKNOWN;
+            imageThread = new HandlerThread("Camera2ImageThread");
+            imageThread.start();
+            imageReader = ImageReader.newInstance(streamSize.getWidth(), streamSize.getHeight(),
+                    ImageFormat.YUV_420_888, MAX_IMAGES);
+            imageReader.setOnImageAvailableListener(this, new Handler(imageThread.getLooper()));
+
+            synchronized (freeBuffers) {
+                freeBuffers.clear();
+            }
+            framePool.allocate(Yuv420Converter.getNv21Size(streamSize.getWidth(), streamSize.getHeight()));
+            framePool.setOnBufferAvailableListener(this);
+            framePool.recycleFreeBuffers();
+
+            updateFrameRotation();
+            cameraManager.openCamera(cameraId, stateCallback, mainHandler);
+        } catch (CameraAccessException | IllegalStateException | SecurityException e) {
+            Log.e(LOG_TAG, "Unable to open the camera: " + e.getMessage());
+            stopCamera();
+            if (listener != null) {
+                listener.onCameraStarted(false, e);
+            }
+        }
+    }
+
+    @Override
+    public void stopCamera() {
+        isCameraRequested = false;
+        orientationHelper.disable();
+        closeSession();
+        if (camera != null) {
+            camera.close();
+            camera = null;
+        }
+        if (imageThread != null) {
+            // let the image thread finish with any image it holds before the reader goes away
+            imageThread.quitSafely();
+            try {
+                imageThread.join();
+            } catch (InterruptedException e) {
+                Log.e(LOG_TAG, "Interrupted waiting for the image thread to stop");
+            }
+            imageThread = null;
+        }
+        if (imageReader != null) {
+            imageReader.close();
+            imageReader = null;
+        }
+        framePool.setOnBufferAvailableListener(null);
+        synchronized (freeBuffers) {
+            freeBuffers.clear();
+        }
+    }
+
+    private String findCamera(CameraHelper.CameraType cameraType) throws CameraAccessException {
+        int facing = cameraType == CameraHelper.CameraType.CAMERA_FRONT ? CameraCharacteristics.LENS_FACING_FRONT
+                : CameraCharacteristics.LENS_FACING_BACK;
+        for (String id : cameraManager.getCameraIdList()) {
+            Integer lensFacing = cameraManager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+            if (lensFacing != null && lensFacing == facing) {
+                return id;
+            }
+        }
+        throw new IllegalStateException("This device does not have a camera of the requested type");
+    }
+
+    /*
+        Returns the smallest size, by height and then area, which is at least targetHeight tall and can be streamed
+        to both the ImageReader and the preview at TARGET_FRAME_RATE. If none is that tall, the tallest such size is
+        used.
+     */
+    static Size chooseStreamSize(StreamConfigurationMap map, int targetHeight) {
+        List<Size> previewSizes = Arrays.asList(map.getOutputSizes(SurfaceHolder.class));
+        long maxFrameDuration = (long) (1e9 / TARGET_FRAME_RATE);
+        Size best = null;
+        Size tallest = null;
+        for (Size size : map.getOutputSizes(ImageFormat.YUV_420_888)) {
+            if (!previewSizes.contains(size)
+                    || map.getOutputMinFrameDuration(ImageFormat.YUV_420_888, size) > maxFrameDuration) {
+                continue;
+            }
+            if (tallest == null || size.getHeight() > tallest.getHeight()) {
+                tallest = size;
+            }
+            if (size.getHeight() >= targetHeight && (best == null || size.getHeight() < best.getHeight()
+                    || (size.getHeight() == best.getHeight() && size.getWidth() < best.getWidth()))) {
+                best = size;
+            }
+        }
+        if (best == null && tallest == null) {
+            throw new IllegalStateException("The camera has no YUV stream size which can be previewed");
+        }
+        return best != null ? best : tallest;
+    }
+
+    private final CameraDevice.StateCallback stateCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(CameraDevice cameraDevice) {
+            if (!isCameraRequested) {
+                cameraDevice.close(); // stopped while opening
+                return;
+            }
+            camera = cameraDevice;
+            orientationHelper.enable();
+            if (listener != null) {
+                listener.onCameraStarted(true, null);
+            }
+            startSessionIfReady();
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice cameraDevice) {
+            Log.e(LOG_TAG, "Camera disconnected");
+            if (cameraDevice == camera) {
+                stopCamera();
+            } else {
+                cameraDevice.close();
+            }
+        }
+
+        @Override
+        public void onError(CameraDevice cameraDevice, int error) {
+            Log.e(LOG_TAG, "Camera error " + error);
+            boolean wasOpen = cameraDevice == camera;
+            if (wasOpen || isCameraRequested) {
+                stopCamera();
+            }
+            cameraDevice.close();
+            if (!wasOpen && listener != null) {
+                listener.onCameraStarted(false, new IllegalStateException("Camera is unavailable (error " + error + ")"));
+            }
+        }
+    };
+
+    /*
+        The session needs both the opened camera and a preview surface of the stream size.
+     */
+    private void startSessionIfReady() {
+        if (camera == null || session != null || !isSurfaceReady || imageReader == null) {
+            return;
+        }
+        try {
+            camera.createCaptureSession(Arrays.asList(holder.getSurface(), imageReader.getSurface()),
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(CameraCaptureSession cameraCaptureSession) {
+                            if (camera == null || !isSurfaceReady) {
+                                cameraCaptureSession.close();
+                                return;
+                            }
+                            session = cameraCaptureSession;
+                            startRepeatingRequest();
+                        }
+
+                        @Override
+                        public void onConfigureFailed(CameraCaptureSession cameraCaptureSession) {
+                            Log.e(LOG_TAG, "Unable to configure the capture session");
+                        }
+                    }, mainHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(LOG_TAG, "Unable to start capturing: " + e.getMessage());
+        }
+    }
+
+    private void startRepeatingRequest() {
+        try {
+            if (requestBuilder == null) {
+                requestBuilder = camera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                requestBuilder.addTarget(holder.getSurface());
+                requestBuilder.addTarget(imageReader.getSurface());
+            }
+            Range<Integer> range = findFrameRateRange(previewFrameRate);
+            if (range != null) {
+                requestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, range);
+            }
+            session.setRepeatingRequest(requestBuilder.build(), null, null);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(LOG_TAG, "Unable to start capturing: " + e.getMessage());
+        }
+    }
+
+    /*
+        Picks the camera's frame rate range the same way CameraHelper does (see findPreviewFrameRateRange()).
+     */
+    private Range<Integer> findFrameRateRange(float framesPerSecond) {
+        if (frameRateRanges == null) {
+            return null;
+        }
+        List<int[]> ranges = new ArrayList<>(frameRateRanges.length);
+        for (Range<Integer> range : frameRateRanges) {
+            ranges.add(new int[]{range.getLower() * 1000, range.getUpper() * 1000});
+        }
+        int[] best = CameraHelper.findPreviewFrameRateRange(ranges, framesPerSecond);
+        return best == null ? null : frameRateRanges[ranges.indexOf(best)];
+    }
+
+    private void closeSession() {
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        requestBuilder = null; // its targets may be gone
+    }
+
+    /*
+     * Implement SurfaceHolder.Callback interface
+     *
+     * The session can only start once the preview surface has taken on the stream size set by startCamera(), which
+     * surfaceChanged() reports.
+     */
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        closeSession(); // a session is bound to the surface it was created with
+        isSurfaceReady = streamSize != null && width == streamSize.getWidth() && height == streamSize.getHeight();
+        startSessionIfReady();
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        isSurfaceReady = false;
+        closeSession();
+    }
+
+    // Implement ImageReader.OnImageAvailableListener interface, on the image thread
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (image == null) {
+            return;
+        }
+        try {
+            byte[] buffer;
+            synchronized (freeBuffers) {
+                buffer = freeBuffers.poll();
+            }
+            if (buffer == null) {
+                return; // every buffer is waiting for or in the detector, so it couldn't take this frame anyway
+            }
+            Image.Plane[] planes = image.getPlanes();
+            if (chromaLayout == Yuv420Converter.ChromaLayout.UNKNOWN) {
+                chromaLayout = Yuv420Converter.detectChromaLayout(planes[1].getBuffer(), planes[2].getBuffer(),
+                        planes[2].getRowStride(), planes[2].getPixelStride(), image.getWidth(), image.getHeight());
+            }
+            Yuv420Converter.toNv21(planes[0].getBuffer(), planes[0].getRowStride(), planes[1].getBuffer(),
+                    planes[2].getBuffer(), planes[2].getRowStride(), planes[2].getPixelStride(),
+                    image.getWidth(), image.getHeight(), chromaLayout, buffer);
+            if (framePool.retain(buffer)) {
+                CapturedFrame frame;
+                synchronized (freeBuffers) {
+                    frame = spareFrames.poll();
+                }
+                if (frame == null) {
+                    frame = new CapturedFrame();
+                }
+                frame.buffer = buffer;
+                frame.width = image.getWidth();
+                frame.height = image.getHeight();
+                frame.captureNanos = toNanoTime(image.getTimestamp());
+                mainHandler.obtainMessage(MainThreadHandler.FRAME_AVAILABLE, frame).sendToTarget();
+            }
+        } finally {
+            image.close();
+        }
+    }
+
+    /*
+        Delivers a packed frame on the main thread, then drops our reference to its buffer.
+     */
+    private void deliverFrame(CapturedFrame frame) {
+        if (camera != null && listener != null) {
+            listener.onFrameAvailable(frame.buffer, frame.width, frame.height, frameRotation, frame.captureNanos);
+        }
+        framePool.release(frame.buffer);
+        frame.buffer = null;
+        synchronized (freeBuffers) {
+            spareFrames.offer(frame);
+        }
+    }
+
+    /*
+        Converts an Image timestamp to the System.nanoTime() clock. Where the sensor uses the elapsedRealtime()
+        clock, the conversion is exact. Otherwise the sensor's clock has an unknown base, so it is aligned to the
+        smallest difference seen between a frame's arrival and its timestamp: the spacing of frames is still the
+        sensor's own, but the capture time comes out late by the camera's minimum delivery delay.
+     */
+    private long toNanoTime(long sensorTimestamp) {
+        long now = System.nanoTime();
+        if (isTimestampRealtime) {
+            return sensorTimestamp + now - SystemClock.elapsedRealtimeNanos();
+        }
+        long offset = now - sensorTimestamp;
+        if (!hasTimestampOffset || offset < timestampOffsetNanos) {
+            timestampOffsetNanos = offset;
+            hasTimestampOffset = true;
+        }
+        return sensorTimestamp + timestampOffsetNanos;
+    }
+
+    /*
+        Whether the sensor's timestamps are on the elapsedRealtime() clock. SENSOR_INFO_TIMESTAMP_SOURCE only exists
+        from Marshmallow on, and this module compiles against Lollipop MR1, so the key is looked up by name.
+     */
+    private static boolean isTimestampRealtime(CameraCharacteristics characteristics) {
+        for (CameraCharacteristics.Key<?> key : characteristics.getKeys()) {
+            if (TIMESTAMP_SOURCE_KEY.equals(key.getName())) {
+                return Integer.valueOf(TIMESTAMP_SOURCE_REALTIME).equals(characteristics.get(key));
+            }
+        }
+        return false;
+    }
+
+    // Implement FrameBufferPool.OnBufferAvailableListener interface
+    @Override
+    public void onBufferAvailable(byte[] buffer) {
+        synchronized (freeBuffers) {
+            freeBuffers.add(buffer);
+        }
+    }
+
+    /*
+        Works out how frames must be rotated to be upright, as CameraHelper.setCameraDisplayOrientation() does, and
+        tells the listener. The preview itself is rotated by the system.
+     */
+    private void updateFrameRotation() {
+        int degrees = 0;
+        switch (displayRotation) {
+            case Surface.ROTATION_0:
+                degrees = 0;
+                break;
+            case Surface.ROTATION_90:
+                degrees = 90;
+                break;
+            case Surface.ROTATION_180:
+                degrees = 180;
+                break;
+            case Surface.ROTATION_270:
+                degrees = 270;
+                break;
+        }
+
+        int rotation = isFrontFacing ? (sensorOrientation + degrees) % 360 : (sensorOrientation - degrees + 360) % 360;
+        switch (rotation) {
+            case 90:
+                frameRotation = Frame.ROTATE.BY_90_CW;
+                break;
+            case 180:
+                frameRotation = Frame.ROTATE.BY_180;
+                break;
+            case 270:
+                frameRotation = Frame.ROTATE.BY_90_CCW;
+                break;
+            default:
+                frameRotation = Frame.ROTATE.NO_ROTATION;
+        }
+
+        if (listener != null && streamSize != null) {
+            listener.onFrameSizeSelected(streamSize.getWidth(), streamSize.getHeight(), frameRotation);
+        }
+    }
+
+    private class OrientationHelper extends OrientationEventListener {
+
+        private OrientationHelper(Context context) {
+            super(context);
+        }
+
+        // If you quickly rotate 180 degrees, Activity does not restart, so you need this orientation Listener.
+        @Override
+        public void onOrientationChanged(int orientation) {
+            if (defaultDisplay.getRotation() != displayRotation) {
+                displayRotation = defaultDisplay.getRotation();
+                updateFrameRotation();
+            }
+        }
+    }
+
+    /*
+        A packed frame on its way from the image thread to the main thread. Instances are reused.
+     */
+    private static class CapturedFrame {
+        byte[] buffer;
+        int width;
+        int height;
+        long captureNanos;
+    }
+
+    /*
+        A Handler on the main thread, for the camera callbacks and for handing packed frames over from the image thread.
+        This Handler class holds a WeakReference to the Camera2Helper to avoid memory leaks.
+     */
+    static class MainThreadHandler extends Handler {
+        WeakReference<Camera2Helper> cameraHelperRef;
+
+        final static int FRAME_AVAILABLE = 0;
+
+        MainThreadHandler(Camera2Helper cameraHelper) {
+            super(Looper.getMainLooper());
+            cameraHelperRef = new WeakReference<>(cameraHelper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            Camera2Helper cameraHelper = cameraHelperRef.get();
+            switch (msg.what) {
+                case FRAME_AVAILABLE:
+                    if (cameraHelper != null) {
+                        cameraHelper.deliverFrame((CapturedFrame) msg.obj);
+                    }
+                    break;
+                default:
+                    Log.e(LOG_TAG, "Received unhandled message of code " + String.valueOf(msg.what));
+                    break;
+            }
+        }
+    }
+}
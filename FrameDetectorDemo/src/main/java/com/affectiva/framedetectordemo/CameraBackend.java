@@ -0,0 +1,26 @@
+package com.affectiva.framedetectordemo;
+
+/**
+ * The controls CameraView needs from a camera: CameraHelper implements them with the android.hardware.Camera API,
+ * Camera2Helper with android.hardware.camera2. Either one delivers NV21 frames from its FrameBufferPool through
+ * CameraHelper.OnCameraHelperEventListener, on the main thread.
+ */
+interface CameraBackend extends FrameSource {
+
+    void setOnCameraHelperEventListener(CameraHelper.OnCameraHelperEventListener listener);
+
+    /**
+     * Changes the rate at which the camera delivers frames, capped at 30 fps. If the camera is not running, the rate
+     * is used the next time it starts.
+     */
+    void setPreviewFrameRate(float framesPerSecond);
+
+    /**
+     * Sets the frame height to aim for, when the camera is next started.
+     */
+    void setTargetPreviewHeight(int height);
+
+    void startCamera(CameraHelper.CameraType cameraType);
+
+    void stopCamera();
+}
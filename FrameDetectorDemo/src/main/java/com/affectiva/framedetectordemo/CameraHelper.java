@@ -29,14 +29,13 @@ import com.affectiva.android.affdex.sdk.Frame;
  * at the start of its host Activity (which should happen as long as the developer instantiates CameraDetector at
  * the start of its host Activity) (e.g. in onCreate()).
  */
-class CameraHelper extends OrientationEventListener implements SurfaceHolder.Callback, Camera.PreviewCallback {
+class CameraHelper extends OrientationEventListener implements CameraBackend, SurfaceHolder.Callback, Camera.PreviewCallback, FrameBufferPool.OnBufferAvailableListener {
 
     enum CameraType {
         CAMERA_BACK, CAMERA_FRONT
     }
 
-    public interface OnCameraHelperEventListener {
-        void onFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation);
+    public interface OnCameraHelperEventListener extends FrameSource.OnFrameAvailableListener {
         void onFrameSizeSelected(int width, int height, Frame.ROTATE rotation);
         void onCameraStarted(boolean success, Throwable error);
     }
@@ -50,8 +49,14 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
     private OnCameraHelperEventListener listener = null;
 
     private final static float TARGET_FRAME_RATE = 30; // Specified at 30 fps on 3/18/2014
+    // the frame rate to open the camera with; lowered by setPreviewFrameRate() when the frames aren't all needed
+    private volatile float previewFrameRate = TARGET_FRAME_RATE;
+    // the preview height to aim for; the detector's input resolution is set separately in AsyncFrameDetector
+    private volatile int targetPreviewHeight = 480; // Youssef requested roughly 640x480 on 3/18/2014
     private final static int PREVIEW_IMAGE_FORMAT = ImageFormat.NV21; // NV21 is the default, but this line here in case want to change.
     private final static String LOG_TAG = "CameraHelper";
+    // enough for one detector; AsyncFrameDetector grows the pool to run more (see FrameBufferPool.getCapacityFor())
+    private final static int PREVIEW_BUFFER_COUNT = FrameBufferPool.getCapacityFor(1);
 
     //Surface and Preview members
     private SurfaceHolder holder;
@@ -71,6 +76,9 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
 
     MainThreadHandler mHandler;
 
+    //Preview buffers, shared with whoever retains frames past onFrameAvailable()
+    final FrameBufferPool framePool = new FrameBufferPool(PREVIEW_BUFFER_COUNT);
+
     CameraHelper(Context context, SurfaceView providedSurfaceView, Display defaultDisplay) {
         super(context);
 
@@ -98,14 +106,93 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
         mHandler = new MainThreadHandler(this);
     }
 
+    @Override
     public void setOnCameraHelperEventListener(OnCameraHelperEventListener listener) {
         this.listener = listener;
     }
 
+    /**
+     * Returns the pool which owns the preview buffers passed to onFrameAvailable(). A listener which needs a buffer
+     * after onFrameAvailable() returns must retain() it, and release() it when done.
+     */
+    @Override
+    public FrameBufferPool getFrameBufferPool() {
+        return framePool;
+    }
+
+    /**
+     * Changes the camera's preview frame rate, e.g. to match the rate at which the detector can process frames.
+     * The camera is set to the supported frame rate range with the lowest maximum at or above the requested rate
+     * (capped at TARGET_FRAME_RATE). If the camera is not running, the rate is used the next time it starts.
+     */
+    @Override
+    public void setPreviewFrameRate(float framesPerSecond) {
+        previewFrameRate = Math.min(framesPerSecond, TARGET_FRAME_RATE);
+        if (cameraState != CameraHelperState.STARTED) {
+            return;
+        }
+
+        try {
+            Camera.Parameters params = cameraWrapper.camera.getParameters();
+            int[] range = findPreviewFrameRateRange(params.getSupportedPreviewFpsRange(), previewFrameRate);
+            if (range == null) {
+                return;
+            }
+            int[] currentRange = new int[2];
+            params.getPreviewFpsRange(currentRange);
+            if (currentRange[0] == range[0] && currentRange[1] == range[1]) {
+                return;
+            }
+            params.setPreviewFpsRange(range[0], range[1]);
+            cameraWrapper.camera.setParameters(params);
+            Log.i(LOG_TAG, String.format("Preview frame rate range set to [%d,%d] for %.1f fps", range[0], range[1], previewFrameRate));
+        } catch (RuntimeException e) {
+            // some camera drivers refuse to change the frame rate range while previewing
+            Log.e(LOG_TAG, "Unable to change the preview frame rate: " + e.getMessage());
+        }
+    }
+
+    /*
+        Returns the supported range (in the camera's units of 1/1000 fps) with the lowest maximum which still reaches
+        framesPerSecond, preferring the highest minimum among those, so the camera delivers a steady rate.
+        If no range reaches framesPerSecond, the one with the highest maximum is returned.
+     */
+    static int[] findPreviewFrameRateRange(List<int[]> ranges, float framesPerSecond) {
+        if (ranges == null || ranges.isEmpty()) {
+            return null;
+        }
+        int targetHiMS = (int) (1000 * framesPerSecond);
+        int[] bestRange = null;
+        int[] fastestRange = null;
+        for (int[] range : ranges) {
+            if (fastestRange == null || range[1] > fastestRange[1]) {
+                fastestRange = range;
+            }
+            if (range[1] >= targetHiMS && (bestRange == null || range[1] < bestRange[1]
+                    || (range[1] == bestRange[1] && range[0] > bestRange[0]))) {
+                bestRange = range;
+            }
+        }
+        return bestRange != null ? bestRange : fastestRange;
+    }
+
+    /**
+     * Sets the preview height to aim for, when the camera is next started. The supported preview size with the closest
+     * height is used.
+     */
+    @Override
+    public void setTargetPreviewHeight(int height) {
+        if (height <= 0) {
+            throw new IllegalArgumentException("height must be positive");
+        }
+        targetPreviewHeight = height;
+    }
+
     /**
      * Starts a background thread to open the Camera and set its parameters to those that will work
      * best with the Affdex SDK.
      */
+    @Override
     public void startCamera(CameraType cameraType) {
         if (cameraState == CameraHelperState.STOPPED) {
             cameraState = CameraHelperState.CREATING;
@@ -167,8 +254,12 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
         cameraWrapper.camera.setOneShotPreviewCallback(new Camera.PreviewCallback() {
             @Override
             public void onPreviewFrame(byte[] data, Camera camera) {
+                // preview callbacks carry no timestamp, so the time the frame arrives is the closest we have to its
+                // capture
+                long captureNanos = System.nanoTime();
                 if (listener != null) {
-                    listener.onFrameAvailable(data, cameraWrapper.previewWidth, cameraWrapper.previewHeight, frameRotation);
+                    listener.onFrameAvailable(data, cameraWrapper.previewWidth, cameraWrapper.previewHeight, frameRotation,
+                            captureNanos);
                 }
                 setupPreviewWithCallbackBuffers();
             }
@@ -187,7 +278,8 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
         Log.e(LOG_TAG, "stopPreviewing");
         if (isPreviewing) {
             cameraWrapper.camera.stopPreview();
-            cameraWrapper.camera.setPreviewCallback(null);
+            cameraWrapper.camera.setPreviewCallback(null); // this also clears the camera's callback buffer queue
+            framePool.setOnBufferAvailableListener(null);
             disable(); // disable orientation listening
         }
         isPreviewing = false;
@@ -197,6 +289,7 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
      * Stops the camera.
      * If a camera was in the process of being created, this method will attempt to block until the camera has been released.
      */
+    @Override
     public void stopCamera() {
         Log.e(LOG_TAG, "CameraHelper.stopCamera()");
         if (cameraState == CameraHelperState.STARTED) {
@@ -262,11 +355,29 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
     // Implement Camera.PreviewCallback interface
     @Override
     public void onPreviewFrame(byte[] data, Camera camera) {
+        // preview callbacks carry no timestamp, so the time the frame arrives is the closest we have to its capture
+        long captureNanos = System.nanoTime();
+        // hold on to the buffer while the listener runs; if the listener retains it too, it will be put back in the
+        // camera's queue when the listener releases it, otherwise it goes back as soon as we release it below
+        boolean pooled = framePool.retain(data);
         if (listener!= null) {
-            listener.onFrameAvailable(data, cameraWrapper.previewWidth, cameraWrapper.previewHeight, frameRotation);
+            listener.onFrameAvailable(data, cameraWrapper.previewWidth, cameraWrapper.previewHeight, frameRotation,
+                    captureNanos);
+        }
+        if (pooled) {
+            framePool.release(data);
+        } else {
+            camera.addCallbackBuffer(data);
         }
+    }
+
+    // Implement FrameBufferPool.OnBufferAvailableListener interface
+    @Override
+    public void onBufferAvailable(byte[] buffer) {
         // put the buffer back in the queue, so that it can be used again
-        camera.addCallbackBuffer(data);
+        if (cameraState == CameraHelperState.STARTED && isPreviewing) {
+            cameraWrapper.camera.addCallbackBuffer(buffer);
+        }
     }
 
     private void setupPreviewWithCallbackBuffers() {
@@ -278,11 +389,12 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
 
         int bufSize = size.width * size.height * bitsPerPixel / 8;
 
-        // add two buffers to the queue, so the camera can be working with one, while the callback is working with the
-        // other. The callback will put each buffer it receives back into the buffer queue when it's done, so the
-        // camera can use it again.
-        cameraWrapper.camera.addCallbackBuffer(new byte[bufSize]);
-        cameraWrapper.camera.addCallbackBuffer(new byte[bufSize]);
+        // give the camera every pooled buffer that isn't in flight, so it can keep filling buffers while others are
+        // waiting for or being processed by the detector. Each buffer is put back into the camera's queue once the
+        // last holder releases it, so the camera can use it again.
+        framePool.allocate(bufSize);
+        framePool.setOnBufferAvailableListener(this);
+        framePool.recycleFreeBuffers();
 
         cameraWrapper.camera.setPreviewCallbackWithBuffer(this);
     }
@@ -487,8 +599,8 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
             Camera.Parameters cameraParams = cameraWrapper.camera.getParameters();
             // NV21 is the default, but this line here in case want to change.
             cameraParams.setPreviewFormat(PREVIEW_IMAGE_FORMAT);
-            setOptimalPreviewFrameRate(cameraParams);
-            setOptimalPreviewSize(cameraParams, 640, 480); // Youssef requested roughly 640x480 on 3/18/2014
+            setOptimalPreviewFrameRate(cameraParams, previewFrameRate);
+            setOptimalPreviewSize(cameraParams, targetPreviewHeight * 4 / 3, targetPreviewHeight);
 
             cameraWrapper.camera.setParameters(cameraParams);
 
@@ -496,9 +608,17 @@ class CameraHelper extends OrientationEventListener implements SurfaceHolder.Cal
             cameraWrapper.previewHeight = cameraParams.getPreviewSize().height;
         }
 
-        //Sets camera frame to be as close to TARGET_FRAME_RATE as possible
-        private void setOptimalPreviewFrameRate(Camera.Parameters cameraParams) {
-            int targetHiMS = (int) (1000 * TARGET_FRAME_RATE);
+        //Sets camera frame to be as close to frameRate as possible
+        private void setOptimalPreviewFrameRate(Camera.Parameters cameraParams, float frameRate) {
+            if (frameRate < TARGET_FRAME_RATE) {
+                // the frame rate has been lowered to what is needed, so don't go below it
+                int[] range = findPreviewFrameRateRange(cameraParams.getSupportedPreviewFpsRange(), frameRate);
+                if (range != null) {
+                    cameraParams.setPreviewFpsRange(range[0], range[1]);
+                }
+                return;
+            }
+            int targetHiMS = (int) (1000 * frameRate);
             List<int[]> ranges = cameraParams.getSupportedPreviewFpsRange();
             if (1 == ranges.size()) {
                 return; // only one option: no need to set anything.
@@ -1,8 +1,10 @@
 package com.affectiva.framedetectordemo;
 
 import android.content.Context;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Display;
 import android.view.Gravity;
 import android.view.SurfaceView;
 import android.view.ViewGroup;
@@ -19,7 +21,7 @@ import com.affectiva.android.affdex.sdk.Frame;
 public class CameraView extends FrameLayout implements CameraHelper.OnCameraHelperEventListener {
 
     interface OnCameraViewEventListener {
-        void onCameraFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation);
+        void onCameraFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation, long captureNanos);
         void onCameraStarted(boolean success, Throwable error);
         void onSurfaceViewSizeChanged();
     }
@@ -27,7 +29,7 @@ public class CameraView extends FrameLayout implements CameraHelper.OnCameraHelp
     public static String LOG_TAG = "Affectiva";
 
     SurfaceView surfaceView;
-    CameraHelper cameraHelper;
+    CameraBackend cameraHelper; // a Camera2Helper where camera2 is worth using, a CameraHelper otherwise
     OnCameraViewEventListener listener;
 
     int previewHeight = 0;
@@ -93,7 +95,13 @@ public class CameraView extends FrameLayout implements CameraHelper.OnCameraHelp
         this.addView(surfaceView);
 
         //Init cameraHelper, the class which controls our camera.
-        cameraHelper = new CameraHelper(context,surfaceView,((WindowManager)context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay());
+        Display display = ((WindowManager)context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
+        // checked here, so that Camera2Helper is never even loaded before Lollipop
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && Camera2Helper.isPreferred(context)) {
+            cameraHelper = new Camera2Helper(context, surfaceView, display);
+        } else {
+            cameraHelper = new CameraHelper(context, surfaceView, display);
+        }
         cameraHelper.setOnCameraHelperEventListener(this);
     }
 
@@ -105,6 +113,27 @@ public class CameraView extends FrameLayout implements CameraHelper.OnCameraHelp
         return surfaceView;
     }
 
+    /**
+     * Returns the pool owning the frame buffers passed to onCameraFrameAvailable().
+     */
+    public FrameBufferPool getFrameBufferPool() {
+        return cameraHelper.getFrameBufferPool();
+    }
+
+    /**
+     * Changes the camera's preview frame rate. See CameraBackend.setPreviewFrameRate().
+     */
+    public void setPreviewFrameRate(float framesPerSecond) {
+        cameraHelper.setPreviewFrameRate(framesPerSecond);
+    }
+
+    /**
+     * Sets the preview height to aim for when the camera is next started. See CameraBackend.setTargetPreviewHeight().
+     */
+    public void setTargetPreviewHeight(int height) {
+        cameraHelper.setTargetPreviewHeight(height);
+    }
+
     public void startCamera(CameraHelper.CameraType type) {
         cameraHelper.startCamera(type);
     }
@@ -117,9 +146,9 @@ public class CameraView extends FrameLayout implements CameraHelper.OnCameraHelp
      * Bubble up received camera frames.
      */
     @Override
-    public void onFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation) {
+    public void onFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation, long captureNanos) {
         if (listener!= null) {
-            listener.onCameraFrameAvailable(frame, width, height, rotation);
+            listener.onCameraFrameAvailable(frame, width, height, rotation, captureNanos);
         }
     }
 
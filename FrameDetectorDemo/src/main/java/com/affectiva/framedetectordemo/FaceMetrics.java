@@ -0,0 +1,352 @@
+package com.affectiva.framedetectordemo;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+/**
+ * Reads the values of Metrics from a Face.
+ */
+class FaceMetrics {
+
+    /*
+        Reads one metric from a face.
+     */
+    private interface Extractor {
+        float extract(Face face);
+    }
+
+    // indexed by Metrics ordinal, so reading a face is one pass over the table rather than a switch per metric
+    private static final Extractor[] EXTRACTORS = createExtractors();
+
+    // the metrics getScore() can score: the emotions, expressions and measurements
+    static final Metrics[] NUMERIC_METRICS = numericMetrics();
+
+    /**
+     * Fills values, indexed by Metrics ordinal, with every metric of the face. Appearance metrics are stored as the
+     * ordinal of the SDK's enum value (e.g. Face.GENDER), or NaN if unavailable.
+     *
+     * @param scale the factor the frame was downscaled by before the face was found in it (see Nv21Downscaler), so
+     *              that measurements in pixels are reported in the full frame's pixels
+     */
+    static void getValues(Face face, int scale, float[] values) {
+        int count = Math.min(EXTRACTORS.length, values.length);
+        for (int i = 0; i < count; i++) {
+            values[i] = EXTRACTORS[i].extract(face);
+        }
+        scaleMeasurements(values, scale);
+    }
+
+    /**
+     * Multiplies the measurements in values which are in pixels (the interocular distance) by scale. The SDK's Face
+     * can't be changed, so unlike the face points (see Nv21Downscaler.mapResults()) these are scaled as they are read.
+     */
+    static void scaleMeasurements(float[] values, int scale) {
+        int index = Metrics.INTER_OCULAR_DISTANCE.ordinal();
+        if (scale != 1 && index < values.length) {
+            values[index] *= scale;
+        }
+    }
+
+    /**
+     * Returns the score or measurement of a metric for the face, with measurements in the pixels of the frame the
+     * face was found in. For appearance metrics, and measurements in full-frame pixels, see getValues().
+     */
+    static float getScore(Metrics metric, Face face) {
+        return EXTRACTORS[metric.ordinal()].extract(face);
+    }
+
+    private static Extractor[] createExtractors() {
+        Extractor[] extractors = new Extractor[Metrics.ALL.length];
+        for (Metrics metric : Metrics.ALL) {
+            extractors[metric.ordinal()] = createExtractor(metric);
+        }
+        return extractors;
+    }
+
+    private static Extractor createExtractor(Metrics metric) {
+        switch (metric) {
+            case ANGER:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.emotions.getAnger();
+                    }
+                };
+            case CONTEMPT:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.emotions.getContempt();
+                    }
+                };
+            case DISGUST:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.emotions.getDisgust();
+                    }
+                };
+            case FEAR:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.emotions.getFear();
+                    }
+                };
+            case JOY:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.emotions.getJoy();
+                    }
+                };
+            case SADNESS:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.emotions.getSadness();
+                    }
+                };
+            case SURPRISE:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.emotions.getSurprise();
+                    }
+                };
+            case ATTENTION:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getAttention();
+                    }
+                };
+            case BROW_FURROW:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getBrowFurrow();
+                    }
+                };
+            case BROW_RAISE:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getBrowRaise();
+                    }
+                };
+            case CHEEK_RAISE:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getCheekRaise();
+                    }
+                };
+            case CHIN_RAISE:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getChinRaise();
+                    }
+                };
+            case DIMPLER:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getDimpler();
+                    }
+                };
+            case ENGAGEMENT:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.emotions.getEngagement();
+                    }
+                };
+            case EYE_CLOSURE:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getEyeClosure();
+                    }
+                };
+            case EYE_WIDEN:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getEyeWiden();
+                    }
+                };
+            case INNER_BROW_RAISE:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getInnerBrowRaise();
+                    }
+                };
+            case JAW_DROP:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getJawDrop();
+                    }
+                };
+            case LID_TIGHTEN:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getLidTighten();
+                    }
+                };
+            case LIP_DEPRESSOR:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getLipCornerDepressor();
+                    }
+                };
+            case LIP_PRESS:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getLipPress();
+                    }
+                };
+            case LIP_PUCKER:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getLipPucker();
+                    }
+                };
+            case LIP_STRETCH:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getLipStretch();
+                    }
+                };
+            case LIP_SUCK:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getLipSuck();
+                    }
+                };
+            case MOUTH_OPEN:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getMouthOpen();
+                    }
+                };
+            case NOSE_WRINKLE:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getNoseWrinkle();
+                    }
+                };
+            case SMILE:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getSmile();
+                    }
+                };
+            case SMIRK:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getSmirk();
+                    }
+                };
+            case UPPER_LIP_RAISER:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.expressions.getUpperLipRaise();
+                    }
+                };
+            case VALENCE:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.emotions.getValence();
+                    }
+                };
+            case YAW:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.measurements.orientation.getYaw();
+                    }
+                };
+            case ROLL:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.measurements.orientation.getRoll();
+                    }
+                };
+            case PITCH:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.measurements.orientation.getPitch();
+                    }
+                };
+            case INTER_OCULAR_DISTANCE:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return face.measurements.getInterocularDistance();
+                    }
+                };
+            case GLASSES:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return ordinalOrNaN(face.appearance.getGlasses());
+                    }
+                };
+            case GENDER:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return ordinalOrNaN(face.appearance.getGender());
+                    }
+                };
+            case AGE:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return ordinalOrNaN(face.appearance.getAge());
+                    }
+                };
+            case ETHNICITY:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return ordinalOrNaN(face.appearance.getEthnicity());
+                    }
+                };
+            default:
+                return new Extractor() {
+                    @Override
+                    public float extract(Face face) {
+                        return Float.NaN;
+                    }
+                };
+        }
+    }
+
+    private static float ordinalOrNaN(Enum<?> value) {
+        return value == null ? Float.NaN : value.ordinal();
+    }
+
+    private static Metrics[] numericMetrics() {
+        Metrics[] metrics = new Metrics[Metrics.numberOfEmotions() + Metrics.numberOfExpressions() + Metrics.numberOfMeasurements()];
+        System.arraycopy(Metrics.ALL, 0, metrics, 0, metrics.length);
+        return metrics;
+    }
+}
@@ -0,0 +1,192 @@
+package com.affectiva.framedetectordemo;
+
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+import java.util.Arrays;
+
+/**
+ * A bounded pool of NV21 preview buffers which are shared between the camera and AsyncFrameDetector.
+ *
+ * The pool owns a fixed number of byte arrays. Whenever nobody holds a reference to one of them, it is handed to the
+ * OnBufferAvailableListener (CameraHelper, which gives it back to the camera via Camera.addCallbackBuffer()).
+ * Code that needs a buffer to outlive the camera callback, such as a frame waiting to be processed on the
+ * FrameDetectorThread, calls retain() on it and release() once it is done, so the camera never writes into a buffer
+ * that is still in flight.
+ *
+ * Each buffer also caches the Frame.ByteArrayFrame that wraps it, so steady-state preview processing does not
+ * allocate anything per frame.
+ *
+ * A source needs a buffer to fill for as long as the detectors hold theirs, so the pool has to grow with the number of
+ * detectors: see getCapacityFor(), which AsyncFrameDetector applies to the pool it is given.
+ */
+class FrameBufferPool {
+
+    interface OnBufferAvailableListener {
+        void onBufferAvailable(byte[] buffer);
+    }
+
+    private static final String LOG_TAG = "FrameBufferPool";
+
+    private int capacity;
+    private FrameBuffer[] buffers = new FrameBuffer[0];
+    private int bufferSize = 0;
+    private OnBufferAvailableListener listener;
+
+    FrameBufferPool(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the number of buffers a source needs so that it can keep delivering frames to detectorCount detectors
+     * running in parallel: each detector can hold one frame it is processing and one waiting in its mailbox, while the
+     * source fills one buffer and delivers another. Frames finished out of order hold on to their buffers a little
+     * longer, until the frames before them are delivered; the source drops frames meanwhile, as it does when the
+     * detectors fall behind.
+     */
+    static int getCapacityFor(int detectorCount) {
+        return 2 * detectorCount + 2;
+    }
+
+    /**
+     * Grows the pool to at least the given number of buffers. If buffers have already been allocated, the new ones are
+     * allocated at the same size and handed to the listener straight away. The pool never shrinks, since buffers
+     * already given to the camera can't be taken back from it.
+     */
+    synchronized void ensureCapacity(int capacity) {
+        if (capacity <= this.capacity) {
+            return;
+        }
+        this.capacity = capacity;
+        if (bufferSize == 0) {
+            return; // allocate() will create them
+        }
+
+        int oldCount = buffers.length;
+        buffers = Arrays.copyOf(buffers, capacity);
+        for (int i = oldCount; i < capacity; i++) {
+            buffers[i] = new FrameBuffer(new byte[bufferSize]);
+            if (listener != null) {
+                listener.onBufferAvailable(buffers[i].data);
+            }
+        }
+    }
+
+    /**
+     * Makes sure the pool holds buffers of the given size, allocating new ones if the size has changed.
+     * Buffers of the old size which are still in flight are orphaned: once released, they are left for the GC instead
+     * of being handed back to the camera.
+     */
+    synchronized void allocate(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive");
+        }
+        if (bufferSize == this.bufferSize) {
+            return;
+        }
+
+        this.bufferSize = bufferSize;
+        buffers = new FrameBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            buffers[i] = new FrameBuffer(new byte[bufferSize]);
+        }
+    }
+
+    synchronized void setOnBufferAvailableListener(OnBufferAvailableListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Hands every buffer that is not currently in flight to the listener. Call this after the camera has discarded
+     * its buffer queue (e.g. when previewing restarts), since the pool cannot tell which buffers the camera still has.
+     */
+    synchronized void recycleFreeBuffers() {
+        if (listener == null) {
+            return;
+        }
+        for (FrameBuffer buffer : buffers) {
+            if (buffer.refCount == 0) {
+                listener.onBufferAvailable(buffer.data);
+            }
+        }
+    }
+
+    /**
+     * Adds a reference to the given buffer, preventing it from being handed back to the camera.
+     *
+     * @return false if the buffer is not owned by this pool (in which case release() need not be called)
+     */
+    synchronized boolean retain(byte[] data) {
+        FrameBuffer buffer = find(data);
+        if (buffer == null) {
+            return false;
+        }
+        buffer.refCount += 1;
+        return true;
+    }
+
+    /**
+     * Removes a reference to the given buffer. When no references remain, the buffer is handed to the listener.
+     */
+    synchronized void release(byte[] data) {
+        FrameBuffer buffer = find(data);
+        if (buffer == null) {
+            return; // not ours, or orphaned by allocate()
+        }
+        if (buffer.refCount <= 0) {
+            Log.e(LOG_TAG, "release() called on a buffer which was not retained");
+            return;
+        }
+        buffer.refCount -= 1;
+        if (buffer.refCount == 0 && listener != null) {
+            listener.onBufferAvailable(buffer.data);
+        }
+    }
+
+    /**
+     * Returns a Frame wrapping the given buffer. If the buffer belongs to the pool, the Frame is cached along with it
+     * and reused for as long as the frame dimensions stay the same.
+     */
+    synchronized Frame obtainFrame(byte[] data, int width, int height, Frame.ROTATE rotation) {
+        FrameBuffer buffer = find(data);
+        Frame.ByteArrayFrame frame;
+        if (buffer == null) {
+            frame = new Frame.ByteArrayFrame(data, width, height, Frame.COLOR_FORMAT.YUV_NV21);
+        } else {
+            if (buffer.frame == null || buffer.frameWidth != width || buffer.frameHeight != height) {
+                buffer.frame = new Frame.ByteArrayFrame(data, width, height, Frame.COLOR_FORMAT.YUV_NV21);
+                buffer.frameWidth = width;
+                buffer.frameHeight = height;
+            }
+            frame = buffer.frame;
+        }
+        frame.setTargetRotation(rotation);
+        return frame;
+    }
+
+    // the pool is small, so a linear scan is cheaper than hashing and allocates nothing
+    private FrameBuffer find(byte[] data) {
+        for (FrameBuffer buffer : buffers) {
+            if (buffer.data == data) {
+                return buffer;
+            }
+        }
+        return null;
+    }
+
+    private static class FrameBuffer {
+        final byte[] data;
+        int refCount = 0;
+        Frame.ByteArrayFrame frame;
+        int frameWidth;
+        int frameHeight;
+
+        FrameBuffer(byte[] data) {
+            this.data = data;
+        }
+    }
+}
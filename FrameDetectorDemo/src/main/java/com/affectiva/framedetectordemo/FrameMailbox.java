@@ -0,0 +1,75 @@
+package com.affectiva.framedetectordemo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single-slot, lock-free mailbox for handing frames from a producer thread to a consumer thread.
+ *
+ * Posting a frame replaces any frame still waiting in the slot (drop-oldest), so the consumer always picks up the
+ * newest frame available instead of working through a backlog of stale ones. The mailbox also keeps counts of frames
+ * replaced before they were taken, processed by the consumer, and dropped for any other reason.
+ */
+class FrameMailbox<T> {
+
+    private final AtomicReference<T> slot = new AtomicReference<>();
+    private final AtomicLong framesReplaced = new AtomicLong();
+    private final AtomicLong framesProcessed = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+
+    /**
+     * Puts a frame in the slot.
+     *
+     * @return the frame it replaced, which the caller is responsible for disposing of, or null if the slot was empty.
+     * If the slot was empty, the caller should signal the consumer that a frame is waiting.
+     */
+    T post(T frame) {
+        T replaced = slot.getAndSet(frame);
+        if (replaced != null) {
+            framesReplaced.incrementAndGet();
+        }
+        return replaced;
+    }
+
+    /**
+     * Takes the waiting frame out of the slot.
+     *
+     * @return the frame, or null if the slot is empty (e.g. another take() or clear() got to it first)
+     */
+    T take() {
+        return slot.getAndSet(null);
+    }
+
+    /**
+     * Empties the slot, counting the waiting frame (if any) as dropped.
+     *
+     * @return the frame that was waiting, which the caller is responsible for disposing of, or null
+     */
+    T clear() {
+        T dropped = slot.getAndSet(null);
+        if (dropped != null) {
+            framesDropped.incrementAndGet();
+        }
+        return dropped;
+    }
+
+    void markProcessed() {
+        framesProcessed.incrementAndGet();
+    }
+
+    void markDropped() {
+        framesDropped.incrementAndGet();
+    }
+
+    long getFramesReplaced() {
+        return framesReplaced.get();
+    }
+
+    long getFramesProcessed() {
+        return framesProcessed.get();
+    }
+
+    long getFramesDropped() {
+        return framesDropped.get();
+    }
+}
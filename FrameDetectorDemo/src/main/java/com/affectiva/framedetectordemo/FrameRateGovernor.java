@@ -0,0 +1,127 @@
+package com.affectiva.framedetectordemo;
+
+/**
+ * Decides how many frames per second to submit to the detector, based on how long the detector actually takes to
+ * process a frame.
+ *
+ * The governor keeps an exponentially weighted moving average of the per-frame processing time measured on the
+ * detector thread(s), and targets a submission rate a little below the resulting detector capacity. Frames arriving
+ * faster than that are skipped by shouldSubmit() instead of being handed to the detector only to be replaced, which
+ * saves the work of converting and queueing them. When the target rate moves far enough, the
+ * OnTargetFrameRateChangedListener is told, so that the frame source (e.g. the camera) can be slowed down as well.
+ *
+ * All methods must be called from the same thread (AsyncFrameDetector calls them on the main thread).
+ */
+class FrameRateGovernor {
+
+    interface OnTargetFrameRateChangedListener {
+        void onTargetFrameRateChanged(float framesPerSecond);
+    }
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    // weight given to each new processing time sample
+    private static final float SMOOTHING_FACTOR = 0.1f;
+    // fraction of the detector's measured capacity to target, leaving headroom for slower frames
+    private static final float CAPACITY_HEADROOM = 0.9f;
+    // how far (as a fraction) the target must move from the last reported rate before the listener is told again
+    private static final float REPORT_HYSTERESIS = 0.15f;
+    // minimum time between two reports, so the camera is not reconfigured on every blip
+    private static final long MIN_REPORT_INTERVAL_NANOS = 2 * NANOS_PER_SECOND;
+
+    private final float minFrameRate;
+    private final float maxFrameRate;
+    private OnTargetFrameRateChangedListener listener;
+
+    private float averageProcessingNanos = 0;
+    private float targetFrameRate;
+    private long nextSubmitNanos = 0;
+
+    private float reportedFrameRate;
+    private long lastReportNanos = 0;
+
+    FrameRateGovernor(float minFrameRate, float maxFrameRate) {
+        if (minFrameRate <= 0 || maxFrameRate < minFrameRate) {
+            throw new IllegalArgumentException("frame rates must be positive, and maxFrameRate at least minFrameRate");
+        }
+        this.minFrameRate = minFrameRate;
+        this.maxFrameRate = maxFrameRate;
+        targetFrameRate = maxFrameRate;
+        reportedFrameRate = maxFrameRate;
+    }
+
+    void setOnTargetFrameRateChangedListener(OnTargetFrameRateChangedListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Forgets the measurements made so far, e.g. because the detector or the frame size changed.
+     * The target goes back to the maximum frame rate until new measurements come in, and the listener is expected to
+     * have restored the maximum rate too.
+     */
+    void reset() {
+        averageProcessingNanos = 0;
+        targetFrameRate = maxFrameRate;
+        nextSubmitNanos = 0;
+        reportedFrameRate = maxFrameRate;
+        lastReportNanos = 0;
+    }
+
+    /**
+     * Records how long the detector took to process one frame.
+     *
+     * @param processingNanos the time spent in FrameDetector.process()
+     * @param parallelism the number of detectors processing frames side by side
+     * @param nowNanos the current System.nanoTime()
+     */
+    void onFrameProcessed(long processingNanos, int parallelism, long nowNanos) {
+        if (processingNanos <= 0) {
+            return;
+        }
+        if (averageProcessingNanos == 0) {
+            averageProcessingNanos = processingNanos;
+        } else {
+            averageProcessingNanos += SMOOTHING_FACTOR * (processingNanos - averageProcessingNanos);
+        }
+
+        float capacity = parallelism * NANOS_PER_SECOND / averageProcessingNanos;
+        targetFrameRate = Math.max(minFrameRate, Math.min(maxFrameRate, capacity * CAPACITY_HEADROOM));
+
+        if (listener != null
+                && Math.abs(targetFrameRate - reportedFrameRate) > reportedFrameRate * REPORT_HYSTERESIS
+                && nowNanos - lastReportNanos >= MIN_REPORT_INTERVAL_NANOS) {
+            reportedFrameRate = targetFrameRate;
+            lastReportNanos = nowNanos;
+            listener.onTargetFrameRateChanged(targetFrameRate);
+        }
+    }
+
+    /**
+     * Returns whether a frame arriving now should be submitted to the detector, and if so, counts it against the
+     * target rate.
+     */
+    boolean shouldSubmit(long nowNanos) {
+        long intervalNanos = (long) (NANOS_PER_SECOND / targetFrameRate);
+        // accept frames up to half an interval early: frames arriving at a rate only slightly above the target
+        // (e.g. once the camera has been slowed down to it) would otherwise have every other one skipped
+        if (nowNanos < nextSubmitNanos - intervalNanos / 2) {
+            return false;
+        }
+        // schedule from the previous slot rather than from now, so frame jitter does not lower the effective rate,
+        // but don't let a long gap build up a burst of frames to catch up on
+        nextSubmitNanos = Math.max(nextSubmitNanos + intervalNanos, nowNanos + intervalNanos / 2);
+        return true;
+    }
+
+    float getTargetFrameRate() {
+        return targetFrameRate;
+    }
+
+    /**
+     * Returns the average time the detector takes to process a frame, in milliseconds, or 0 if nothing has been
+     * measured yet.
+     */
+    float getAverageProcessingMillis() {
+        return averageProcessingNanos / 1000000f;
+    }
+}
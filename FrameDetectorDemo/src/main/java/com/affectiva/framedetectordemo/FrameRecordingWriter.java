@@ -0,0 +1,219 @@
+package com.affectiva.framedetectordemo;
+
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Records raw NV21 frames into a file, for RecordedFrameSource to replay.
+ *
+ * write() copies each frame into one of a few spare buffers, which never blocks, and hands it to a background thread
+ * which writes it with a FileChannel. If every spare buffer is still waiting to be written, the frame is dropped (and
+ * counted) rather than stalling the camera.
+ *
+ * File layout (little endian):
+ * <pre>
+ * header:  int MAGIC, int VERSION
+ * frames:  long captureNanos, int width, int height, int rotation (Frame.ROTATE ordinal), int length,
+ *          then byte[length] NV21 data
+ * </pre>
+ * Capture times are on the System.nanoTime() clock of the recording device; only the differences between them mean
+ * anything on replay.
+ *
+ * write() and close() must be called from a single thread.
+ */
+class FrameRecordingWriter implements Closeable {
+
+    static final int MAGIC = 0x3132564e; // "NV21" when read as little endian bytes
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int FRAME_HEADER_SIZE = 24;
+
+    private static final String LOG_TAG = "FrameRecordingWriter";
+    // a quarter of a second at 30 fps, to ride out slow writes; about 11MB at 720p
+    private static final int DEFAULT_BUFFER_COUNT = 8;
+
+    private final FileChannel channel;
+    private final ArrayBlockingQueue<RecordedFrame> freeFrames;
+    private final ArrayBlockingQueue<RecordedFrame> filledFrames;
+    private final RecordedFrame endOfStream = new RecordedFrame();
+    private final Thread writerThread;
+
+    // only used on the writer thread
+    private final ByteBuffer frameHeader = ByteBuffer.allocateDirect(FRAME_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer[] frameParts = new ByteBuffer[2];
+
+    private boolean isClosed = false;
+    private long framesWritten = 0;
+    private long framesDropped = 0;
+    private volatile IOException writeError;
+
+    FrameRecordingWriter(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * Creates the file (replacing any existing one) and writes its header.
+     *
+     * @param bufferCount the number of frames which can wait to be written at once; each one takes a frame's worth of
+     *                    memory, allocated the first time it is needed
+     */
+    FrameRecordingWriter(File file, int bufferCount) throws IOException {
+        if (bufferCount < 1) {
+            throw new IllegalArgumentException("need at least one buffer");
+        }
+        freeFrames = new ArrayBlockingQueue<>(bufferCount);
+        filledFrames = new ArrayBlockingQueue<>(bufferCount + 1); // room for endOfStream
+        for (int i = 0; i < bufferCount; i++) {
+            freeFrames.add(new RecordedFrame());
+        }
+
+        channel = new FileOutputStream(file).getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            writeFully(header);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeFrames();
+            }
+        }, "FrameRecordingWriter");
+        writerThread.start();
+    }
+
+    /**
+     * Adds a frame. The data is copied, so the caller may reuse its buffer as soon as this returns.
+     *
+     * @return false if the frame was dropped, because the writer is closed, has failed, or is too far behind
+     */
+    boolean write(byte[] data, int width, int height, Frame.ROTATE rotation, long captureNanos) {
+        RecordedFrame frame = isClosed || writeError != null ? null : freeFrames.poll();
+        if (frame == null) {
+            framesDropped += 1;
+            return false;
+        }
+
+        // camera buffers can be larger than the frame they hold
+        int length = Math.min(data.length, Yuv420Converter.getNv21Size(width, height));
+        if (frame.data == null || frame.data.length < length) {
+            frame.data = new byte[length];
+            frame.body = ByteBuffer.wrap(frame.data);
+        }
+        System.arraycopy(data, 0, frame.data, 0, length);
+        frame.length = length;
+        frame.width = width;
+        frame.height = height;
+        frame.rotation = rotation;
+        frame.captureNanos = captureNanos;
+        filledFrames.add(frame); // can't overflow: there are only as many frames as the queue holds
+        framesWritten += 1;
+        return true;
+    }
+
+    /**
+     * Writes out the remaining frames and closes the file, waiting for the writer thread to finish.
+     *
+     * @throws IOException if writing any of the frames failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        filledFrames.add(endOfStream);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channel.close();
+        }
+        if (framesDropped > 0) {
+            Log.w(LOG_TAG, String.format("%d of %d frames were dropped", framesDropped, framesDropped + framesWritten));
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    long getFramesWritten() {
+        return framesWritten;
+    }
+
+    long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /*
+        The writer thread: write frames until endOfStream arrives. After an error, frames are still taken (and
+        recycled) so close() can finish, but nothing more is written.
+     */
+    private void writeFrames() {
+        while (true) {
+            RecordedFrame frame;
+            try {
+                frame = filledFrames.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (frame == endOfStream) {
+                return;
+            }
+
+            if (writeError == null) {
+                try {
+                    frameHeader.clear();
+                    frameHeader.putLong(frame.captureNanos).putInt(frame.width).putInt(frame.height)
+                            .putInt(frame.rotation.ordinal()).putInt(frame.length);
+                    frameHeader.flip();
+                    frame.body.clear().limit(frame.length);
+                    frameParts[0] = frameHeader;
+                    frameParts[1] = frame.body;
+                    while (frame.body.hasRemaining()) {
+                        channel.write(frameParts);
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Unable to write frames: " + e.getMessage());
+                    writeError = e;
+                }
+            }
+            freeFrames.add(frame);
+        }
+    }
+
+    private void writeFully(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+
+    /*
+        A copy of a frame, waiting to be written. The buffer is kept for the next frame.
+     */
+    private static class RecordedFrame {
+        byte[] data;
+        ByteBuffer body; // wraps data
+        int length;
+        int width;
+        int height;
+        Frame.ROTATE rotation;
+        long captureNanos;
+    }
+}
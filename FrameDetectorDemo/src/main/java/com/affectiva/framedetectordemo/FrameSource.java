@@ -0,0 +1,24 @@
+package com.affectiva.framedetectordemo;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+/**
+ * Something which produces NV21 frames for the detector: the camera (see CameraBackend), or a recording being replayed
+ * (see RecordedFrameSource). Frames are delivered on the main thread, in buffers owned by the source's FrameBufferPool.
+ */
+interface FrameSource {
+
+    interface OnFrameAvailableListener {
+        /**
+         * @param captureNanos when the frame was captured, on the System.nanoTime() clock: the sensor timestamp where
+         *                     the camera API provides one, the time the frame reached the app otherwise
+         */
+        void onFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation, long captureNanos);
+    }
+
+    /**
+     * Returns the pool which owns the buffers passed to onFrameAvailable(). A listener which needs a buffer after
+     * onFrameAvailable() returns must retain() it, and release() it when done.
+     */
+    FrameBufferPool getFrameBufferPool();
+}
@@ -0,0 +1,127 @@
+package com.affectiva.framedetectordemo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free histogram of latencies, which any thread can record into without allocating or blocking.
+ *
+ * Latencies are recorded in microseconds into log-linear buckets: every power of two is split into
+ * SUB_BUCKET_COUNT equal buckets, so percentiles are accurate to within about 1/SUB_BUCKET_COUNT of their value,
+ * from a microsecond up to well over an hour. Percentiles are computed from a snapshot of the bucket counts, which
+ * may be slightly inconsistent while other threads are recording; that is fine for monitoring purposes.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40; // 2^40 us is about 12 days
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+    private static final long MAX_MICROS = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    void recordNanos(long nanos) {
+        long micros = nanos / 1000;
+        if (micros < 0) {
+            micros = 0; // clocks were read on different cores; treat as no time at all
+        } else if (micros > MAX_MICROS) {
+            micros = MAX_MICROS;
+        }
+
+        buckets.incrementAndGet(bucketIndex(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    float getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : totalMicros.get() / (n * 1000f);
+    }
+
+    float getMaxMillis() {
+        return maxMicros.get() / 1000f;
+    }
+
+    /**
+     * Returns the latency below which the given fraction (between 0 and 1) of the recorded latencies fall, in
+     * milliseconds, or 0 if nothing has been recorded.
+     */
+    float getPercentileMillis(float fraction) {
+        long total = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(fraction * total);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                // report the middle of the bucket, but never more than the largest latency actually seen
+                long lower = bucketLowerBound(i);
+                long upper = i + 1 < BUCKET_COUNT ? bucketLowerBound(i + 1) : MAX_MICROS + 1;
+                return Math.min((lower + upper) / 2f, maxMicros.get()) / 1000f;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    /*
+        Values below SUB_BUCKET_COUNT get a bucket each. Above that, the bucket is given by the position of the highest
+        set bit (the power of two) and the SUB_BUCKET_BITS bits below it (the sub-bucket).
+     */
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKET_COUNT) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        return (long) (SUB_BUCKET_COUNT + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.1fms p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms",
+                getCount(), getMeanMillis(), getPercentileMillis(0.5f), getPercentileMillis(0.95f),
+                getPercentileMillis(0.99f), getMaxMillis());
+    }
+}
@@ -13,6 +13,8 @@ import android.widget.ToggleButton;
 import com.affectiva.android.affdex.sdk.Frame;
 import com.affectiva.android.affdex.sdk.detector.Face;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -25,7 +27,31 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
 
     private static final String LOG_TAG = "Affectiva";
 
+    //number of FrameDetectors AsyncFrameDetector runs in parallel. On multi-core devices, raising this lets the SDK keep up
+    //with the camera at higher preview resolutions, at the cost of the memory used by each additional detector.
+    private static final int DETECTOR_COUNT = 1;
+
+    //crop frames down to the region around the face before detection, which makes detection much cheaper at higher
+    //preview resolutions; a full frame is still processed periodically to find new faces
+    private static final boolean CROP_TO_FACES = true;
+
+    //preview at a higher resolution than FrameDetector needs, and shrink frames to roughly this height before detection
+    private static final int PREVIEW_HEIGHT = 720;
+    private static final int DETECTOR_INPUT_HEIGHT = 360;
+
+    //bounds for the rate at which frames are submitted to the detector (and the camera is run at), which otherwise
+    //follows the rate the detector can keep up with
+    private static final float MIN_DETECTION_FRAME_RATE = 5;
+    private static final float MAX_DETECTION_FRAME_RATE = 30;
+
+    //record the camera's frames into the app's "recordings" directory while the SDK runs
+    private static final boolean RECORD_FRAMES = false;
+    //have the camera button replay the newest recording, over and over at its recorded pace, instead of the camera,
+    //so detector runs can be repeated and compared
+    private static final boolean REPLAY_RECORDING = false;
+
     MetricsPanel metricsPanel; //Fragment to display metric scores
+    final float[] metricValues = new float[Metrics.ALL.length]; //the displayed face's metrics, indexed by ordinal
 
     //UI Elements
     Button sdkButton;
@@ -46,12 +72,13 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
     long numberSDKFramesReceived = 0;
     long lastSDKFPSResetTime = -1L;
 
-    //floats to ensure the timestamps we send to FrameDetector are sequentially increasing
-    float lastTimestamp = -1f;
-    final float epsilon = .01f;
-
     CameraView cameraView; // controls the camera
     AsyncFrameDetector asyncDetector; // runs FrameDetector on a background thread
+    FrameRateGovernor frameRateGovernor; // limits the frame rate to what FrameDetector can keep up with
+    PipelineStats pipelineStats; // latency of each stage between the camera and the metrics panel
+    MetricsFileWriter resultsWriter; // records every face's metrics while the SDK runs, if recording is possible
+    FrameRecordingWriter frameRecorder; // records camera frames while the SDK runs, if RECORD_FRAMES is set
+    RecordedFrameSource replaySource; // stands in for the camera, if REPLAY_RECORDING is set
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -102,6 +129,34 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
 
         asyncDetector = new AsyncFrameDetector(this);
         asyncDetector.setOnDetectorEventListener(this);
+        asyncDetector.setFrameBufferPool(cameraView.getFrameBufferPool());
+        asyncDetector.setDetectorCount(DETECTOR_COUNT);
+        asyncDetector.setRegionOfInterestEnabled(CROP_TO_FACES);
+        asyncDetector.setDetectorInputSize(DETECTOR_INPUT_HEIGHT);
+        cameraView.setTargetPreviewHeight(PREVIEW_HEIGHT);
+
+        //Slow the camera down when FrameDetector can't keep up with it, to save battery and keep the device cool
+        frameRateGovernor = new FrameRateGovernor(MIN_DETECTION_FRAME_RATE, MAX_DETECTION_FRAME_RATE);
+        frameRateGovernor.setOnTargetFrameRateChangedListener(new FrameRateGovernor.OnTargetFrameRateChangedListener() {
+            @Override
+            public void onTargetFrameRateChanged(float framesPerSecond) {
+                Log.i(LOG_TAG, String.format("Detection frame rate target: %.1f fps (%.1f ms per frame)",
+                        framesPerSecond, frameRateGovernor.getAverageProcessingMillis()));
+                cameraView.setPreviewFrameRate(framesPerSecond);
+            }
+        });
+        asyncDetector.setFrameRateGovernor(frameRateGovernor);
+
+        //Measure where each frame's time goes; the histograms are logged whenever the detector is stopped
+        pipelineStats = new PipelineStats();
+        asyncDetector.setPipelineStats(pipelineStats);
+        metricsPanel.setOnMetricsRefreshedListener(new MetricsPanel.OnMetricsRefreshedListener() {
+            @Override
+            public void onMetricsRefreshed() {
+                //the panel's text has been updated with the latest results; it is drawn in this frame's layout pass
+                pipelineStats.onResultsDisplayed(System.nanoTime());
+            }
+        });
 
         //Set up SDK Button
         sdkButton = (Button) findViewById(R.id.start_sdk_button);
@@ -110,11 +165,11 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
             public void onClick(View v) {
                 if (isSDKRunning) {
                     isSDKRunning = false;
-                    asyncDetector.stop();
+                    stopDetector();
                     sdkButton.setText("Start SDK");
                 } else {
                     isSDKRunning = true;
-                    asyncDetector.start();
+                    startDetector();
                     sdkButton.setText("Stop SDK");
                 }
                 resetFPS();
@@ -128,11 +183,66 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
         numberCameraFramesReceived = numberSDKFramesReceived = 0;
     }
 
+    /*
+     * Starts the detector, recording its results into a new file in the app's "sessions" directory.
+     */
+    void startDetector() {
+        File directory = getExternalFilesDir("sessions");
+        if (directory != null) {
+            File file = new File(directory, String.format("session-%d.afm", System.currentTimeMillis()));
+            try {
+                resultsWriter = new MetricsFileWriter(file);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to record results to " + file + ": " + e.getMessage());
+            }
+        }
+        asyncDetector.setResultsWriter(resultsWriter);
+        asyncDetector.start();
+
+        File recordings = RECORD_FRAMES ? getExternalFilesDir("recordings") : null;
+        if (recordings != null) {
+            File file = new File(recordings, String.format("frames-%d.nv21", System.currentTimeMillis()));
+            try {
+                frameRecorder = new FrameRecordingWriter(file);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to record frames to " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    void stopDetector() {
+        asyncDetector.stop();
+        cameraView.setPreviewFrameRate(MAX_DETECTION_FRAME_RATE);
+
+        asyncDetector.setResultsWriter(null);
+        if (resultsWriter != null) {
+            try {
+                resultsWriter.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to record results: " + e.getMessage());
+            }
+            resultsWriter = null;
+        }
+        if (frameRecorder != null) {
+            try {
+                frameRecorder.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to record frames: " + e.getMessage());
+            }
+            frameRecorder = null;
+        }
+    }
+
     void startCamera() {
         if (isCameraStarted) {
-            cameraView.stopCamera();
+            stopCamera();
+        }
+        if (REPLAY_RECORDING) {
+            startReplay();
+        } else {
+            asyncDetector.setFrameBufferPool(cameraView.getFrameBufferPool());
+            cameraView.startCamera(isCameraFront ? CameraHelper.CameraType.CAMERA_FRONT : CameraHelper.CameraType.CAMERA_BACK);
         }
-        cameraView.startCamera(isCameraFront ? CameraHelper.CameraType.CAMERA_FRONT : CameraHelper.CameraType.CAMERA_BACK);
         isCameraStarted = true;
         asyncDetector.reset();
     }
@@ -141,16 +251,63 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
         if (!isCameraStarted)
             return;
 
-        cameraView.stopCamera();
+        if (replaySource != null) {
+            Log.i(LOG_TAG, String.format("Replayed %d frames, dropped %d", replaySource.getFramesReplayed(),
+                    replaySource.getFramesDropped()));
+            try {
+                replaySource.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to close the recording: " + e.getMessage());
+            }
+            replaySource = null;
+        } else {
+            cameraView.stopCamera();
+        }
         isCameraStarted = false;
     }
 
+    /*
+     * Replays the newest file in the app's "recordings" directory, in place of the camera.
+     */
+    void startReplay() {
+        File newest = null;
+        File directory = getExternalFilesDir("recordings");
+        File[] files = directory != null ? directory.listFiles() : null;
+        if (files != null) {
+            for (File file : files) {
+                if (newest == null || file.lastModified() > newest.lastModified()) {
+                    newest = file;
+                }
+            }
+        }
+        if (newest == null) {
+            Log.e(LOG_TAG, "No recording to replay");
+            return;
+        }
+
+        try {
+            replaySource = new RecordedFrameSource(newest);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to replay " + newest + ": " + e.getMessage());
+            return;
+        }
+        Log.i(LOG_TAG, String.format("Replaying %d frames from %s", replaySource.getFrameCount(), newest));
+        replaySource.setOnFrameAvailableListener(new FrameSource.OnFrameAvailableListener() {
+            @Override
+            public void onFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation, long captureNanos) {
+                submitFrame(replaySource.getFrameBufferPool(), frame, width, height, rotation, captureNanos);
+            }
+        });
+        asyncDetector.setFrameBufferPool(replaySource.getFrameBufferPool());
+        replaySource.start(RecordedFrameSource.Pacing.ORIGINAL, true);
+    }
+
 
     @Override
     public void onResume() {
         super.onResume();
         if (isSDKRunning) {
-            asyncDetector.start();
+            startDetector();
         }
         if (isCameraRequestedByUser) {
             startCamera();
@@ -163,22 +320,15 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
     public void onPause() {
         super.onPause();
         if (asyncDetector.isRunning()) {
-            asyncDetector.stop();
+            stopDetector();
         }
         stopCamera();
     }
 
-    private void setMetricTextViewText(Face face) {
-        // set the text for all the numeric metrics (scored or measured)
-        for (Metrics metric : Metrics.getEmotions()) {
-            metricsPanel.setMetricFloatValue(metric,getScore(metric,face));
-        }
-        for (Metrics metric : Metrics.getExpressions()) {
-            metricsPanel.setMetricFloatValue(metric,getScore(metric,face));
-        }
-        for (Metrics metric : Metrics.getMeasurements()) {
-            metricsPanel.setMetricFloatValue(metric,getScore(metric,face));
-        }
+    private void setMetricTextViewText(Face face, int scale) {
+        // set the text for all the numeric metrics (scored or measured), read from the face in one pass
+        FaceMetrics.getValues(face, scale, metricValues);
+        metricsPanel.setMetricFloatValues(FaceMetrics.NUMERIC_METRICS, metricValues);
 
         // set the text for the appearance metrics
         String textValue="";
@@ -257,130 +407,20 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
         metricsPanel.setMetricTextValue(Metrics.ETHNICITY, textValue);
     }
 
-    private float getScore(Metrics metric, Face face) {
-
-        float score;
-
-        switch (metric) {
-            case ANGER:
-                score = face.emotions.getAnger();
-                break;
-            case CONTEMPT:
-                score = face.emotions.getContempt();
-                break;
-            case DISGUST:
-                score = face.emotions.getDisgust();
-                break;
-            case FEAR:
-                score = face.emotions.getFear();
-                break;
-            case JOY:
-                score = face.emotions.getJoy();
-                break;
-            case SADNESS:
-                score = face.emotions.getSadness();
-                break;
-            case SURPRISE:
-                score = face.emotions.getSurprise();
-                break;
-            case ATTENTION:
-                score = face.expressions.getAttention();
-                break;
-            case BROW_FURROW:
-                score = face.expressions.getBrowFurrow();
-                break;
-            case BROW_RAISE:
-                score = face.expressions.getBrowRaise();
-                break;
-            case CHEEK_RAISE:
-                score = face.expressions.getCheekRaise();
-                break;
-            case CHIN_RAISE:
-                score = face.expressions.getChinRaise();
-                break;
-            case DIMPLER:
-                score = face.expressions.getDimpler();
-                break;
-            case ENGAGEMENT:
-                score = face.emotions.getEngagement();
-                break;
-            case EYE_CLOSURE:
-                score = face.expressions.getEyeClosure();
-                break;
-            case EYE_WIDEN:
-                score = face.expressions.getEyeWiden();
-                break;
-            case INNER_BROW_RAISE:
-                score = face.expressions.getInnerBrowRaise();
-                break;
-            case JAW_DROP:
-                score = face.expressions.getJawDrop();
-                break;
-            case LID_TIGHTEN:
-                score = face.expressions.getLidTighten();
-                break;
-            case LIP_DEPRESSOR:
-                score = face.expressions.getLipCornerDepressor();
-                break;
-            case LIP_PRESS:
-                score = face.expressions.getLipPress();
-                break;
-            case LIP_PUCKER:
-                score = face.expressions.getLipPucker();
-                break;
-            case LIP_STRETCH:
-                score = face.expressions.getLipStretch();
-                break;
-            case LIP_SUCK:
-                score = face.expressions.getLipSuck();
-                break;
-            case MOUTH_OPEN:
-                score = face.expressions.getMouthOpen();
-                break;
-            case NOSE_WRINKLE:
-                score = face.expressions.getNoseWrinkle();
-                break;
-            case SMILE:
-                score = face.expressions.getSmile();
-                break;
-            case SMIRK:
-                score = face.expressions.getSmirk();
-                break;
-            case UPPER_LIP_RAISER:
-                score = face.expressions.getUpperLipRaise();
-                break;
-            case VALENCE:
-                score = face.emotions.getValence();
-                break;
-            case YAW:
-                score = face.measurements.orientation.getYaw();
-                break;
-            case ROLL:
-                score = face.measurements.orientation.getRoll();
-                break;
-            case PITCH:
-                score = face.measurements.orientation.getPitch();
-                break;
-            case INTER_OCULAR_DISTANCE:
-                score = face.measurements.getInterocularDistance();
-                break;
-            default:
-                score = Float.NaN;
-                break;
+    @Override
+    public void onCameraFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation, long captureNanos) {
+        if (frameRecorder != null) {
+            frameRecorder.write(frame, width, height, rotation, captureNanos);
         }
-        return score;
+        submitFrame(cameraView.getFrameBufferPool(), frame, width, height, rotation, captureNanos);
     }
 
-    @Override
-    public void onCameraFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation) {
+    void submitFrame(FrameBufferPool pool, byte[] frame, int width, int height, Frame.ROTATE rotation, long captureNanos) {
         numberCameraFramesReceived += 1;
         cameraFPS.setText(String.format("CAM: %.3f", 1000f * (float) numberCameraFramesReceived / (SystemClock.elapsedRealtime() - lastCameraFPSResetTime)));
 
-        float timeStamp = (float)SystemClock.elapsedRealtime()/1000f;
-        if (timeStamp > (lastTimestamp + epsilon)) {
-            lastTimestamp = timeStamp;
-            asyncDetector.process(createFrameFromData(frame,width,height,rotation),timeStamp);
-        }
+        //the detector's timestamps are derived from the capture times, so frames are not dropped for callback jitter
+        asyncDetector.process(pool.obtainFrame(frame, width, height, rotation), captureNanos);
     }
 
     @Override
@@ -396,7 +436,7 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
     float lastReceivedTimestamp = -1f;
 
     @Override
-    public void onImageResults(List<Face> faces, Frame image, float timeStamp) {
+    public void onImageResults(List<Face> faces, Frame image, float timeStamp, int scale) {
         //statusTextView.setText(String.format("Most recent time stamp: %.4f",timeStamp));
         if (timeStamp < lastReceivedTimestamp)
             throw new RuntimeException("Got a timestamp out of order!");
@@ -406,14 +446,11 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
         if (faces == null)
             return; //No Face Detected
         if (faces.size() ==0) {
-            for (Metrics metric : Metrics.values()) {
-                metricsPanel.setMetricNA(metric);
-            }
+            metricsPanel.setAllMetricsNA();
         } else {
             Face face = faces.get(0);
-            setMetricTextViewText(face);
+            setMetricTextViewText(face, scale);
         }
-
         numberSDKFramesReceived += 1;
         processorFPS.setText(String.format("SDK: %.3f", 1000f * (float) numberSDKFramesReceived / (SystemClock.elapsedRealtime() - lastSDKFPSResetTime)));
 
@@ -423,10 +460,4 @@ public class MainActivity extends Activity implements CameraView.OnCameraViewEve
     public void onDetectorStarted() {
 
     }
-
-    static Frame createFrameFromData(byte[] frameData, int width, int height, Frame.ROTATE rotation) {
-        Frame.ByteArrayFrame frame = new Frame.ByteArrayFrame(frameData, width, height, Frame.COLOR_FORMAT.YUV_NV21);
-        frame.setTargetRotation(rotation);
-        return frame;
-    }
 }
@@ -50,6 +50,9 @@ public enum Metrics {
     GENDER,
     GLASSES;
 
+    // values() returns a new copy of the array on every call; this one is shared, so it must not be modified
+    static final Metrics[] ALL = values();
+
 
     String getUpperCaseName() {
         return toString().replace("_", " ");
@@ -68,7 +71,7 @@ public enum Metrics {
     }
 
     static int numberOfAppearances() {
-        return Metrics.values().length - numberOfEmotions() - numberOfExpressions() - numberOfMeasurements();
+        return ALL.length - numberOfEmotions() - numberOfExpressions() - numberOfMeasurements();
     }
 
     /**
@@ -76,7 +79,7 @@ public enum Metrics {
      */
     static Metrics[] getEmotions() {
         Metrics[] emotions = new Metrics[numberOfEmotions()];
-        Metrics[] allMetrics = Metrics.values();
+        Metrics[] allMetrics = ALL;
         System.arraycopy(allMetrics, 0, emotions, 0, numberOfEmotions());
         return emotions;
     }
@@ -86,7 +89,7 @@ public enum Metrics {
     */
     static Metrics[] getExpressions() {
         Metrics[] expressions = new Metrics[numberOfExpressions()];
-        Metrics[] allMetrics = Metrics.values();
+        Metrics[] allMetrics = ALL;
         System.arraycopy(allMetrics, numberOfEmotions(), expressions, 0, numberOfExpressions());
         return expressions;
     }
@@ -96,7 +99,7 @@ public enum Metrics {
      */
     static Metrics[] getMeasurements() {
         Metrics[] measurements = new Metrics[numberOfMeasurements()];
-        Metrics[] allMetrics = Metrics.values();
+        Metrics[] allMetrics = ALL;
         System.arraycopy(allMetrics, numberOfEmotions() + numberOfExpressions(),
                 measurements, 0, numberOfMeasurements());
         return measurements;
@@ -107,7 +110,7 @@ public enum Metrics {
      */
     static Metrics[] getAppearances() {
         Metrics[] appearances = new Metrics[numberOfAppearances()];
-        Metrics[] allMetrics = Metrics.values();
+        Metrics[] allMetrics = ALL;
         System.arraycopy(allMetrics, numberOfEmotions() + numberOfExpressions() + numberOfMeasurements(),
                 appearances, 0, numberOfAppearances());
         return appearances;
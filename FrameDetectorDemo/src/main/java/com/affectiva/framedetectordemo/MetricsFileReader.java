@@ -0,0 +1,351 @@
+package com.affectiva.framedetectordemo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Queries a file recorded by MetricsFileWriter in place, by memory-mapping it.
+ *
+ * Opening the file reads the header, checks that its columns are the Metrics values in the same order (so a file
+ * recorded by a different version of the app is rejected rather than misread), and indexes the blocks. Queries then
+ * read values straight out of the mapping: blocks whose time span lies outside the queried range are skipped without
+ * being touched, and rows are never turned into objects.
+ *
+ * A block left incomplete by a recording that was cut short is ignored, along with anything after it.
+ * Files are mapped in one piece, so they must be smaller than 2GB.
+ */
+class MetricsFileReader implements Closeable {
+
+    /**
+     * Receives the rows of a time range scan.
+     */
+    interface RowCallback {
+        void onRow(float timestamp, int faceId, float value);
+    }
+
+    /**
+     * Summary statistics of a metric over a time range. NaN values (e.g. metrics that were not computed) are skipped.
+     */
+    static class Summary {
+        int count;
+        float min = Float.NaN;
+        float max = Float.NaN;
+        double sum;
+
+        float getMean() {
+            return count == 0 ? Float.NaN : (float) (sum / count);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d min=%.2f max=%.2f mean=%.2f", count, min, max, getMean());
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer data;
+    private final int columnCount;
+
+    // the block index
+    private int blockCount;
+    private int[] blockOffsets;
+    private int[] blockRows;
+    private float[] blockMinTimestamps;
+    private float[] blockMaxTimestamps;
+    private int rowCount;
+
+    MetricsFileReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large to map");
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            data.order(ByteOrder.LITTLE_ENDIAN);
+            columnCount = readHeader();
+            indexBlocks();
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mapping itself is released when it is garbage collected
+        file.close();
+    }
+
+    int getRowCount() {
+        return rowCount;
+    }
+
+    int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * Returns the earliest timestamp in the file, or NaN if it is empty.
+     */
+    float getStartTime() {
+        float start = Float.NaN;
+        for (int block = 0; block < blockCount; block++) {
+            if (Float.isNaN(start) || blockMinTimestamps[block] < start) {
+                start = blockMinTimestamps[block];
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Returns the latest timestamp in the file, or NaN if it is empty.
+     */
+    float getEndTime() {
+        float end = Float.NaN;
+        for (int block = 0; block < blockCount; block++) {
+            if (Float.isNaN(end) || blockMaxTimestamps[block] > end) {
+                end = blockMaxTimestamps[block];
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Passes every row with startTime <= timestamp <= endTime to the callback, in file order, with the value of the
+     * given metric.
+     *
+     * @return the number of rows passed to the callback
+     */
+    int scan(Metrics metric, float startTime, float endTime, RowCallback callback) {
+        int column = metric.ordinal();
+        int count = 0;
+        for (int block = 0; block < blockCount; block++) {
+            if (!overlaps(block, startTime, endTime)) {
+                continue;
+            }
+            int rows = blockRows[block];
+            int timestamps = timestampsOffset(block);
+            int faceIds = faceIdsOffset(block);
+            int values = valuesOffset(block, column);
+            for (int row = 0; row < rows; row++) {
+                float timestamp = data.getFloat(timestamps + 4 * row);
+                if (timestamp >= startTime && timestamp <= endTime) {
+                    callback.onRow(timestamp, data.getInt(faceIds + 4 * row), data.getFloat(values + 4 * row));
+                    count += 1;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Computes the count, minimum, maximum and mean of a metric over startTime <= timestamp <= endTime, across all
+     * faces.
+     */
+    Summary summarize(Metrics metric, float startTime, float endTime) {
+        Summary summary = new Summary();
+        int column = metric.ordinal();
+        for (int block = 0; block < blockCount; block++) {
+            if (!overlaps(block, startTime, endTime)) {
+                continue;
+            }
+            boolean wholeBlock = blockMinTimestamps[block] >= startTime && blockMaxTimestamps[block] <= endTime;
+            int rows = blockRows[block];
+            int timestamps = timestampsOffset(block);
+            int values = valuesOffset(block, column);
+            for (int row = 0; row < rows; row++) {
+                if (!wholeBlock) {
+                    float timestamp = data.getFloat(timestamps + 4 * row);
+                    if (timestamp < startTime || timestamp > endTime) {
+                        continue;
+                    }
+                }
+                float value = data.getFloat(values + 4 * row);
+                if (Float.isNaN(value)) {
+                    continue;
+                }
+                if (summary.count == 0) {
+                    summary.min = value;
+                    summary.max = value;
+                } else {
+                    summary.min = Math.min(summary.min, value);
+                    summary.max = Math.max(summary.max, value);
+                }
+                summary.sum += value;
+                summary.count += 1;
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Finds the rows, within startTime <= timestamp <= endTime, at which a face's value of the metric crosses the
+     * threshold: rises above it (if rising is true) or falls to or below it (if rising is false), compared to the same
+     * face's previous row. A face's first row counts as a crossing if it is already past the threshold, so e.g.
+     * "JOY > 80" finds every episode of joy, including one in progress when the range starts.
+     *
+     * @return the number of crossings passed to the callback
+     */
+    int findCrossings(Metrics metric, float threshold, boolean rising, float startTime, float endTime,
+                      RowCallback callback) {
+        int column = metric.ordinal();
+        FaceStates states = new FaceStates();
+        int count = 0;
+        for (int block = 0; block < blockCount; block++) {
+            if (!overlaps(block, startTime, endTime)) {
+                continue;
+            }
+            int rows = blockRows[block];
+            int timestamps = timestampsOffset(block);
+            int faceIds = faceIdsOffset(block);
+            int values = valuesOffset(block, column);
+            for (int row = 0; row < rows; row++) {
+                float timestamp = data.getFloat(timestamps + 4 * row);
+                if (timestamp < startTime || timestamp > endTime) {
+                    continue;
+                }
+                float value = data.getFloat(values + 4 * row);
+                if (Float.isNaN(value)) {
+                    continue;
+                }
+                int faceId = data.getInt(faceIds + 4 * row);
+                boolean past = rising ? value > threshold : value <= threshold;
+                if (past && !states.wasPast(faceId)) {
+                    callback.onRow(timestamp, faceId, value);
+                    count += 1;
+                }
+                states.set(faceId, past);
+            }
+        }
+        return count;
+    }
+
+    private boolean overlaps(int block, float startTime, float endTime) {
+        return blockMaxTimestamps[block] >= startTime && blockMinTimestamps[block] <= endTime;
+    }
+
+    private int timestampsOffset(int block) {
+        return blockOffsets[block] + MetricsFileWriter.BLOCK_HEADER_SIZE;
+    }
+
+    private int faceIdsOffset(int block) {
+        return timestampsOffset(block) + 4 * blockRows[block];
+    }
+
+    private int valuesOffset(int block, int column) {
+        return timestampsOffset(block) + 4 * blockRows[block] * (2 + column);
+    }
+
+    /*
+        Reads and validates the header, leaving the buffer positioned at the first block.
+     */
+    private int readHeader() throws IOException {
+        try {
+            if (data.getInt() != MetricsFileWriter.MAGIC) {
+                throw new IOException("Not a metrics file");
+            }
+            int version = data.getInt();
+            if (version != MetricsFileWriter.VERSION) {
+                throw new IOException("Unsupported metrics file version " + version);
+            }
+            data.getInt(); // rows per block: blocks carry their own row counts
+            int columns = data.getInt();
+
+            Metrics[] metrics = Metrics.values();
+            if (columns != metrics.length) {
+                throw new IOException(String.format("File has %d columns, expected %d", columns, metrics.length));
+            }
+            for (int column = 0; column < columns; column++) {
+                byte[] name = new byte[data.getShort() & 0xffff];
+                data.get(name);
+                String columnName = new String(name, MetricsFileWriter.UTF_8);
+                if (!columnName.equals(metrics[column].name())) {
+                    throw new IOException(String.format("Column %d is %s, expected %s", column, columnName,
+                            metrics[column].name()));
+                }
+            }
+            return columns;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated metrics file header");
+        }
+    }
+
+    private void indexBlocks() {
+        int capacity = 16;
+        blockOffsets = new int[capacity];
+        blockRows = new int[capacity];
+        blockMinTimestamps = new float[capacity];
+        blockMaxTimestamps = new float[capacity];
+
+        int offset = data.position();
+        int limit = data.limit();
+        while (offset + MetricsFileWriter.BLOCK_HEADER_SIZE <= limit) {
+            if (data.getInt(offset) != MetricsFileWriter.BLOCK_MAGIC) {
+                break;
+            }
+            int rows = data.getInt(offset + 4);
+            long size = MetricsFileWriter.BLOCK_HEADER_SIZE + 4L * rows * (2 + columnCount);
+            if (rows < 0 || offset + size > limit) {
+                break; // incomplete
+            }
+
+            if (blockCount == capacity) {
+                capacity *= 2;
+                blockOffsets = Arrays.copyOf(blockOffsets, capacity);
+                blockRows = Arrays.copyOf(blockRows, capacity);
+                blockMinTimestamps = Arrays.copyOf(blockMinTimestamps, capacity);
+                blockMaxTimestamps = Arrays.copyOf(blockMaxTimestamps, capacity);
+            }
+            blockOffsets[blockCount] = offset;
+            blockRows[blockCount] = rows;
+            blockMinTimestamps[blockCount] = data.getFloat(offset + 8);
+            blockMaxTimestamps[blockCount] = data.getFloat(offset + 12);
+            blockCount += 1;
+            rowCount += rows;
+            offset += size;
+        }
+    }
+
+    /*
+        Whether each face's last value was past the threshold. Face ids are small integers, so a linear scan over the
+        faces seen so far is enough.
+     */
+    private static class FaceStates {
+        private int[] faceIds = new int[4];
+        private boolean[] past = new boolean[4];
+        private int size = 0;
+
+        boolean wasPast(int faceId) {
+            for (int i = 0; i < size; i++) {
+                if (faceIds[i] == faceId) {
+                    return past[i];
+                }
+            }
+            return false;
+        }
+
+        void set(int faceId, boolean isPast) {
+            for (int i = 0; i < size; i++) {
+                if (faceIds[i] == faceId) {
+                    past[i] = isPast;
+                    return;
+                }
+            }
+            if (size == faceIds.length) {
+                faceIds = Arrays.copyOf(faceIds, size * 2);
+                past = Arrays.copyOf(past, size * 2);
+            }
+            faceIds[size] = faceId;
+            past[size] = isPast;
+            size += 1;
+        }
+    }
+}
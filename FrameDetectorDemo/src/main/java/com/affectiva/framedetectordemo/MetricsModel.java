@@ -0,0 +1,103 @@
+package com.affectiva.framedetectordemo;
+
+import java.util.Arrays;
+
+/**
+ * The values shown in a MetricsPanel, double-buffered so that they can be written from any thread at detector rate
+ * while the panel reads a stable copy at its own pace.
+ *
+ * Writers update the back buffer under a lock, which is held only to copy a few values. The main thread calls swap()
+ * when it is about to refresh, which makes the latest values the front buffer; reading the front buffer needs no
+ * lock, since only the main thread swaps. Each metric holds either a float value or a text; NaN and no text is "--".
+ */
+class MetricsModel {
+
+    private final Object lock = new Object();
+    private float[] backValues = new float[Metrics.ALL.length];
+    private String[] backTexts = new String[Metrics.ALL.length];
+    private float[] frontValues = new float[Metrics.ALL.length];
+    private String[] frontTexts = new String[Metrics.ALL.length];
+    private boolean hasUpdate = false;
+
+    MetricsModel() {
+        Arrays.fill(backValues, Float.NaN);
+        Arrays.fill(frontValues, Float.NaN);
+    }
+
+    void setValue(Metrics metric, float value) {
+        synchronized (lock) {
+            backValues[metric.ordinal()] = value;
+            backTexts[metric.ordinal()] = null;
+            hasUpdate = true;
+        }
+    }
+
+    /**
+     * Sets the values of the given metrics from an array indexed by Metrics ordinal (see FaceMetrics.getValues()).
+     */
+    void setValues(Metrics[] metrics, float[] values) {
+        synchronized (lock) {
+            for (Metrics metric : metrics) {
+                backValues[metric.ordinal()] = values[metric.ordinal()];
+                backTexts[metric.ordinal()] = null;
+            }
+            hasUpdate = true;
+        }
+    }
+
+    void setText(Metrics metric, String text) {
+        synchronized (lock) {
+            backValues[metric.ordinal()] = Float.NaN;
+            backTexts[metric.ordinal()] = text;
+            hasUpdate = true;
+        }
+    }
+
+    void setNA(Metrics metric) {
+        setValue(metric, Float.NaN);
+    }
+
+    void setAllNA() {
+        synchronized (lock) {
+            Arrays.fill(backValues, Float.NaN);
+            Arrays.fill(backTexts, null);
+            hasUpdate = true;
+        }
+    }
+
+    /**
+     * Makes the latest values the front buffer. Must be called on the main thread.
+     *
+     * @return false if nothing has been written since the last swap
+     */
+    boolean swap() {
+        synchronized (lock) {
+            if (!hasUpdate) {
+                return false;
+            }
+            float[] values = frontValues;
+            frontValues = backValues;
+            backValues = values;
+            String[] texts = frontTexts;
+            frontTexts = backTexts;
+            backTexts = texts;
+
+            // writers may update only some metrics, so the back buffer has to start out as the latest state
+            System.arraycopy(frontValues, 0, backValues, 0, backValues.length);
+            System.arraycopy(frontTexts, 0, backTexts, 0, backTexts.length);
+            hasUpdate = false;
+            return true;
+        }
+    }
+
+    /*
+        The front buffer, for the main thread.
+     */
+    float getValue(Metrics metric) {
+        return frontValues[metric.ordinal()];
+    }
+
+    String getText(Metrics metric) {
+        return frontTexts[metric.ordinal()];
+    }
+}
@@ -0,0 +1,190 @@
+package com.affectiva.framedetectordemo;
+
+import android.graphics.PointF;
+
+import com.affectiva.android.affdex.sdk.Frame;
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.util.List;
+
+/**
+ * Shrinks NV21 frames by an integer factor before they are handed to the detector, so the camera can preview at a
+ * higher resolution than the detector needs.
+ *
+ * The factor is chosen per frame so that the frame's shorter side stays at or above the configured detector input
+ * size; frames that are already small enough are passed through untouched. Each block of factor x factor pixels is
+ * averaged (a box filter), with a dedicated path for the common 2x case. The output frame and its buffer are reused,
+ * so nothing is allocated per frame, and a FrameDetector (which processes synchronously) must be done with one output
+ * frame before downscale() is called again.
+ *
+ * Call mapResults() on the faces found in the frame most recently returned by downscale() to scale their points back
+ * up to the input frame's coordinates. Measurements in pixels, such as the interocular distance, can't be changed on
+ * the SDK's Face, so pass getLastScale() along with the faces to FaceMetrics.getValues() to scale those.
+ *
+ * Not thread safe: use one instance per detector thread.
+ */
+class Nv21Downscaler {
+
+    private final int targetSize;
+
+    private int lastScale = 1;
+    private byte[] outputBuffer;
+    private Frame.ByteArrayFrame outputFrame;
+    private int outputWidth, outputHeight;
+
+    /**
+     * @param targetSize the smallest the shorter side of a downscaled frame may be, in pixels
+     */
+    Nv21Downscaler(int targetSize) {
+        if (targetSize <= 0) {
+            throw new IllegalArgumentException("targetSize must be positive");
+        }
+        this.targetSize = targetSize;
+    }
+
+    /**
+     * Returns a downscaled copy of the given frame, or the frame itself if it is already small enough (or is not an
+     * NV21 ByteArrayFrame).
+     */
+    Frame downscale(Frame frame) {
+        lastScale = 1;
+        if (!(frame instanceof Frame.ByteArrayFrame) || frame.getColorFormat() != Frame.COLOR_FORMAT.YUV_NV21) {
+            return frame;
+        }
+
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int scale = Math.min(width, height) / targetSize;
+        if (scale < 2) {
+            return frame;
+        }
+
+        // NV21 needs even dimensions
+        int scaledWidth = (width / scale) & ~1;
+        int scaledHeight = (height / scale) & ~1;
+        if (outputFrame == null || outputWidth != scaledWidth || outputHeight != scaledHeight) {
+            outputBuffer = new byte[scaledWidth * scaledHeight * 3 / 2];
+            outputFrame = new Frame.ByteArrayFrame(outputBuffer, scaledWidth, scaledHeight, Frame.COLOR_FORMAT.YUV_NV21);
+            outputWidth = scaledWidth;
+            outputHeight = scaledHeight;
+        }
+
+        byte[] input = ((Frame.ByteArrayFrame) frame).getByteArray();
+        if (scale == 2) {
+            halve(input, width, height, outputBuffer, scaledWidth, scaledHeight);
+        } else {
+            boxFilter(input, width, height, scale, outputBuffer, scaledWidth, scaledHeight);
+        }
+        outputFrame.setTargetRotation(frame.getTargetRotation());
+
+        lastScale = scale;
+        return outputFrame;
+    }
+
+    /**
+     * The factor the frame most recently returned by downscale() was shrunk by (1 if it was passed through).
+     */
+    int getLastScale() {
+        return lastScale;
+    }
+
+    /**
+     * Scales the face points found in the frame most recently returned by downscale() up to the coordinates of the
+     * frame passed to it (in place).
+     */
+    void mapResults(List<Face> faces) {
+        if (lastScale == 1 || faces == null) {
+            return;
+        }
+        // map to the center of the block of input pixels each output pixel was averaged from
+        float offset = (lastScale - 1) / 2f;
+        for (Face face : faces) {
+            PointF[] points = face.getFacePoints();
+            if (points == null) {
+                continue;
+            }
+            for (PointF point : points) {
+                point.x = point.x * lastScale + offset;
+                point.y = point.y * lastScale + offset;
+            }
+        }
+    }
+
+    /*
+        2x downscale: each output sample is the rounded mean of a 2x2 block of luma samples, or of two rows of two VU
+        pairs.
+     */
+    static void halve(byte[] src, int srcWidth, int srcHeight, byte[] dst, int dstWidth, int dstHeight) {
+        for (int y = 0; y < dstHeight; y++) {
+            int row0 = 2 * y * srcWidth;
+            int row1 = row0 + srcWidth;
+            int out = y * dstWidth;
+            for (int x = 0; x < dstWidth; x++) {
+                int in = 2 * x;
+                dst[out + x] = (byte) (((src[row0 + in] & 0xff) + (src[row0 + in + 1] & 0xff)
+                        + (src[row1 + in] & 0xff) + (src[row1 + in + 1] & 0xff) + 2) >> 2);
+            }
+        }
+
+        int srcChroma = srcWidth * srcHeight;
+        int dstChroma = dstWidth * dstHeight;
+        for (int y = 0; y < dstHeight / 2; y++) {
+            int row0 = srcChroma + 2 * y * srcWidth;
+            int row1 = row0 + srcWidth;
+            int out = dstChroma + y * dstWidth;
+            for (int x = 0; x < dstWidth; x += 2) {
+                int in = 2 * x;
+                // V, then U
+                dst[out + x] = (byte) (((src[row0 + in] & 0xff) + (src[row0 + in + 2] & 0xff)
+                        + (src[row1 + in] & 0xff) + (src[row1 + in + 2] & 0xff) + 2) >> 2);
+                dst[out + x + 1] = (byte) (((src[row0 + in + 1] & 0xff) + (src[row0 + in + 3] & 0xff)
+                        + (src[row1 + in + 1] & 0xff) + (src[row1 + in + 3] & 0xff) + 2) >> 2);
+            }
+        }
+    }
+
+    /*
+        Downscale by any integer factor: each output sample is the rounded mean of a scale x scale block of input
+        samples of the same plane (and, for chroma, the same component).
+     */
+    static void boxFilter(byte[] src, int srcWidth, int srcHeight, int scale, byte[] dst, int dstWidth, int dstHeight) {
+        int area = scale * scale;
+        int half = area / 2;
+
+        for (int y = 0; y < dstHeight; y++) {
+            int rowStart = y * scale * srcWidth;
+            int out = y * dstWidth;
+            for (int x = 0; x < dstWidth; x++) {
+                int sum = 0;
+                int in = rowStart + x * scale;
+                for (int dy = 0; dy < scale; dy++, in += srcWidth) {
+                    for (int dx = 0; dx < scale; dx++) {
+                        sum += src[in + dx] & 0xff;
+                    }
+                }
+                dst[out + x] = (byte) ((sum + half) / area);
+            }
+        }
+
+        // the chroma plane holds (srcWidth / 2) x (srcHeight / 2) VU pairs
+        int srcChroma = srcWidth * srcHeight;
+        int dstChroma = dstWidth * dstHeight;
+        for (int y = 0; y < dstHeight / 2; y++) {
+            int rowStart = srcChroma + y * scale * srcWidth;
+            int out = dstChroma + y * dstWidth;
+            for (int x = 0; x < dstWidth; x += 2) {
+                int sumV = 0;
+                int sumU = 0;
+                int in = rowStart + x * scale;
+                for (int dy = 0; dy < scale; dy++, in += srcWidth) {
+                    for (int dx = 0; dx < 2 * scale; dx += 2) {
+                        sumV += src[in + dx] & 0xff;
+                        sumU += src[in + dx + 1] & 0xff;
+                    }
+                }
+                dst[out + x] = (byte) ((sumV + half) / area);
+                dst[out + x + 1] = (byte) ((sumU + half) / area);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.affectiva.framedetectordemo;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms for each stage a camera frame goes through on its way to the metrics panel:
+ *
+ * CONVERT:  capture to enqueue in AsyncFrameDetector (delivery by the camera, and wrapping the buffer in a Frame)
+ * QUEUE:    enqueue to the start of FrameDetector.process() on a detector thread
+ * DETECT:   FrameDetector.process()
+ * DELIVER:  end of processing to delivery on the main thread (including waiting for earlier frames to be delivered)
+ * DISPLAY:  delivery to the MetricsPanel showing the results (see onResultsDisplayed())
+ * TOTAL:    capture to the MetricsPanel showing the results
+ *
+ * All timestamps are System.nanoTime() values; the capture time is the camera's sensor timestamp where it has one
+ * (see CameraHelper.OnCameraHelperEventListener). Recording never blocks or allocates, so it is safe on every thread
+ * in the pipeline.
+ */
+class PipelineStats {
+
+    enum Stage {
+        CONVERT, QUEUE, DETECT, DELIVER, DISPLAY, TOTAL
+    }
+
+    private static final String LOG_TAG = "PipelineStats";
+
+    private final LatencyHistogram[] histograms;
+
+    // the most recently delivered frame which has not been displayed yet (0 if none), so the panel needs no timestamps
+    private final AtomicLong pendingDeliveryNanos = new AtomicLong();
+    private volatile long pendingCaptureNanos;
+
+    PipelineStats() {
+        Stage[] stages = Stage.values();
+        histograms = new LatencyHistogram[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    void record(Stage stage, long nanos) {
+        histograms[stage.ordinal()].recordNanos(nanos);
+    }
+
+    /**
+     * Records the stages up to delivery of a processed frame, and remembers it as the frame waiting to be displayed.
+     */
+    void onFrameDelivered(long captureNanos, long enqueueNanos, long detectStartNanos, long detectEndNanos,
+                          long deliveryNanos) {
+        record(Stage.CONVERT, enqueueNanos - captureNanos);
+        record(Stage.QUEUE, detectStartNanos - enqueueNanos);
+        record(Stage.DETECT, detectEndNanos - detectStartNanos);
+        record(Stage.DELIVER, deliveryNanos - detectEndNanos);
+
+        pendingCaptureNanos = captureNanos;
+        pendingDeliveryNanos.set(deliveryNanos);
+    }
+
+    /**
+     * Records the display stage for the most recently delivered frame. Call this once the MetricsPanel has been
+     * refreshed with its results, which are drawn in the next layout pass; frames whose results were superseded before
+     * the panel refreshed are not counted.
+     */
+    void onResultsDisplayed(long displayedNanos) {
+        // read the capture time first: if a newer frame is delivered in between, both stages are slightly off
+        // for this one sample, which is preferable to locking the delivery path
+        long captureNanos = pendingCaptureNanos;
+        long deliveryNanos = pendingDeliveryNanos.getAndSet(0);
+        if (deliveryNanos == 0) {
+            return; // nothing new since the last refresh
+        }
+        record(Stage.DISPLAY, displayedNanos - deliveryNanos);
+        record(Stage.TOTAL, displayedNanos - captureNanos);
+    }
+
+    void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        pendingDeliveryNanos.set(0);
+    }
+
+    void log() {
+        for (Stage stage : Stage.values()) {
+            Log.i(LOG_TAG, String.format("%-8s %s", stage, getHistogram(stage)));
+        }
+    }
+}
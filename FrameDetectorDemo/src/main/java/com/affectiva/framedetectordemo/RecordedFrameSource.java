@@ -0,0 +1,459 @@
+package com.affectiva.framedetectordemo;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Replays a file recorded by FrameRecordingWriter, standing in for the camera: frames reach the listener on the main
+ * thread, in buffers of this source's FrameBufferPool, just as they do from CameraHelper. This makes detector runs
+ * repeatable, and lets AsyncFrameDetector be measured without a camera.
+ *
+ * The file is indexed when opened. While replaying, a background thread reads each frame from the file into a free pool
+ * buffer and posts it to the main thread, where it is released once the listener is done with it. Frames can be
+ * paced:
+ * <ul>
+ * <li>ORIGINAL: at the recorded intervals, stamped with the time they are replayed at. As with the camera, a frame for
+ * which no buffer is free is dropped.</li>
+ * <li>AS_FAST_AS_POSSIBLE: each frame as soon as a buffer is free, stamped with the time it was read, so the listener
+ * sets the pace. Recorded intervals are not kept, so detector timestamps follow the replay.</li>
+ * </ul>
+ *
+ * A frame left incomplete by a recording that was cut short is ignored, along with anything after it. Frames are read
+ * at their offsets rather than mapped, so a recording can be as long as the disk allows (720p at 30 fps passes 2GB in
+ * under a minute), even on 32-bit devices with no room for a mapping that size. start(), stop() and close() must be
+ * called on the main thread.
+ */
+class RecordedFrameSource implements FrameSource, FrameBufferPool.OnBufferAvailableListener, Closeable {
+
+    enum Pacing {
+        ORIGINAL, AS_FAST_AS_POSSIBLE
+    }
+
+    interface OnReplayFinishedListener {
+        void onReplayFinished();
+    }
+
+    private static final String LOG_TAG = "RecordedFrameSource";
+    // enough for one detector; AsyncFrameDetector grows the pool to run more (see FrameBufferPool.getCapacityFor())
+    private static final int FRAME_BUFFER_COUNT = FrameBufferPool.getCapacityFor(1);
+    // the interval to leave between the last frame and the first when looping, if the recording has a single frame
+    private static final long DEFAULT_FRAME_INTERVAL_NANOS = 33333333;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final FrameBufferPool framePool = new FrameBufferPool(FRAME_BUFFER_COUNT);
+    private final MainThreadHandler mainHandler;
+    private FrameSource.OnFrameAvailableListener listener;
+    private OnReplayFinishedListener replayFinishedListener;
+
+    // the frame index
+    private int frameCount;
+    private long[] frameOffsets;
+    private long[] frameCaptureNanos;
+    private int[] frameWidths;
+    private int[] frameHeights;
+    private Frame.ROTATE[] frameRotations;
+    private int[] frameLengths;
+
+    private final ArrayDeque<byte[]> freeBuffers = new ArrayDeque<>(FRAME_BUFFER_COUNT); // guarded by itself
+    private final ArrayDeque<ReplayedFrame> spareFrames = new ArrayDeque<>(FRAME_BUFFER_COUNT); // guarded by freeBuffers
+    private Thread replayThread;
+    private volatile boolean isReplaying = false;
+    // incremented by each start(), so frames posted by an earlier replay are never delivered
+    private int session = 0;
+    private long framesReplayed = 0;
+    private long framesDropped = 0;
+
+    RecordedFrameSource(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        try {
+            indexFrames();
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+        if (frameCount == 0) {
+            file.close();
+            throw new IOException(path + " holds no frames");
+        }
+
+        int largestFrame = 0;
+        for (int i = 0; i < frameCount; i++) {
+            largestFrame = Math.max(largestFrame, frameLengths[i]);
+        }
+        framePool.allocate(largestFrame);
+        mainHandler = new MainThreadHandler(this);
+    }
+
+    void setOnFrameAvailableListener(FrameSource.OnFrameAvailableListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets a listener to be told, on the main thread, when the last frame has been delivered. Not called when looping.
+     */
+    void setOnReplayFinishedListener(OnReplayFinishedListener listener) {
+        this.replayFinishedListener = listener;
+    }
+
+    @Override
+    public FrameBufferPool getFrameBufferPool() {
+        return framePool;
+    }
+
+    int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the number of frames delivered since start() was called.
+     */
+    long getFramesReplayed() {
+        return framesReplayed;
+    }
+
+    /**
+     * Returns the number of frames dropped since start() was called, because no buffer was free in time.
+     */
+    long getFramesDropped() {
+        synchronized (freeBuffers) {
+            return framesDropped;
+        }
+    }
+
+    /**
+     * Starts replaying from the first frame, stopping any replay already running.
+     *
+     * @param loop whether to go back to the first frame after the last, until stop() is called
+     */
+    void start(final Pacing pacing, final boolean loop) {
+        stop();
+        framesReplayed = 0;
+        synchronized (freeBuffers) {
+            framesDropped = 0;
+        }
+        framePool.setOnBufferAvailableListener(this);
+        framePool.recycleFreeBuffers();
+
+        isReplaying = true;
+        final int replaySession = ++session;
+        replayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay(pacing, loop, replaySession);
+            }
+        }, "FrameReplayThread");
+        replayThread.start();
+    }
+
+    /**
+     * Stops replaying. Frames already posted to the main thread are released without being delivered.
+     */
+    void stop() {
+        if (replayThread == null) {
+            return;
+        }
+        isReplaying = false;
+        synchronized (freeBuffers) {
+            freeBuffers.notifyAll();
+        }
+        try {
+            replayThread.join();
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "Interrupted waiting for the replay thread to stop");
+        }
+        replayThread = null;
+        framePool.setOnBufferAvailableListener(null);
+        synchronized (freeBuffers) {
+            freeBuffers.clear();
+        }
+    }
+
+    boolean isReplaying() {
+        return replayThread != null;
+    }
+
+    /**
+     * Stops replaying and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        stop();
+        file.close();
+    }
+
+    private void indexFrames() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FrameRecordingWriter.FRAME_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.limit(FrameRecordingWriter.HEADER_SIZE);
+        if (!readFully(header, 0) || header.getInt(0) != FrameRecordingWriter.MAGIC) {
+            throw new IOException("not a frame recording");
+        }
+        if (header.getInt(4) != FrameRecordingWriter.VERSION) {
+            throw new IOException("unsupported frame recording version " + header.getInt(4));
+        }
+
+        int capacity = 64;
+        frameOffsets = new long[capacity];
+        frameCaptureNanos = new long[capacity];
+        frameWidths = new int[capacity];
+        frameHeights = new int[capacity];
+        frameRotations = new Frame.ROTATE[capacity];
+        frameLengths = new int[capacity];
+        Frame.ROTATE[] rotations = Frame.ROTATE.values();
+
+        long size = channel.size();
+        long offset = FrameRecordingWriter.HEADER_SIZE;
+        while (true) {
+            header.clear();
+            if (!readFully(header, offset)) {
+                break; // cut short in a frame's header, or the end of the recording
+            }
+            long captureNanos = header.getLong(0);
+            int width = header.getInt(8);
+            int height = header.getInt(12);
+            int rotation = header.getInt(16);
+            int length = header.getInt(20);
+            long body = offset + FrameRecordingWriter.FRAME_HEADER_SIZE;
+            if (length <= 0 || length > size - body || width <= 0 || height <= 0
+                    || rotation < 0 || rotation >= rotations.length) {
+                break; // cut short, or not a frame
+            }
+
+            if (frameCount == capacity) {
+                capacity *= 2;
+                frameOffsets = Arrays.copyOf(frameOffsets, capacity);
+                frameCaptureNanos = Arrays.copyOf(frameCaptureNanos, capacity);
+                frameWidths = Arrays.copyOf(frameWidths, capacity);
+                frameHeights = Arrays.copyOf(frameHeights, capacity);
+                frameRotations = Arrays.copyOf(frameRotations, capacity);
+                frameLengths = Arrays.copyOf(frameLengths, capacity);
+            }
+            frameOffsets[frameCount] = body;
+            frameCaptureNanos[frameCount] = captureNanos;
+            frameWidths[frameCount] = width;
+            frameHeights[frameCount] = height;
+            frameRotations[frameCount] = rotations[rotation];
+            frameLengths[frameCount] = length;
+            frameCount += 1;
+            offset = body + length;
+        }
+    }
+
+    /*
+        Reads from the file at position until target is full. Returns false if the file ends first.
+     */
+    private boolean readFully(ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            int count = channel.read(target, position);
+            if (count < 0) {
+                return false;
+            }
+            position += count;
+        }
+        return true;
+    }
+
+    /*
+        The replay thread. With ORIGINAL pacing, frame i is due at startNanos plus its offset from the first frame;
+        each loop moves startNanos on by the recording's length plus one frame interval. If reading a frame fails, the
+        replay finishes there.
+     */
+    private void replay(Pacing pacing, boolean loop, int replaySession) {
+        long recordingNanos = frameCaptureNanos[frameCount - 1] - frameCaptureNanos[0];
+        long loopNanos = recordingNanos + (frameCount > 1 ? recordingNanos / (frameCount - 1) : DEFAULT_FRAME_INTERVAL_NANOS);
+        long startNanos = System.nanoTime();
+
+        int index = 0;
+        while (isReplaying) {
+            long captureNanos;
+            byte[] buffer;
+            if (pacing == Pacing.ORIGINAL) {
+                captureNanos = startNanos + frameCaptureNanos[index] - frameCaptureNanos[0];
+                if (!waitUntil(captureNanos)) {
+                    return;
+                }
+                synchronized (freeBuffers) {
+                    buffer = freeBuffers.poll();
+                    if (buffer == null) {
+                        framesDropped += 1;
+                    }
+                }
+            } else {
+                buffer = takeFreeBuffer();
+                if (buffer == null) {
+                    return;
+                }
+                captureNanos = System.nanoTime();
+            }
+
+            if (buffer != null) {
+                try {
+                    if (!readFully(ByteBuffer.wrap(buffer, 0, frameLengths[index]), frameOffsets[index])) {
+                        throw new IOException("the recording was truncated while replaying");
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Unable to read frame " + index + ": " + e.getMessage());
+                    onBufferAvailable(buffer);
+                    mainHandler.obtainMessage(MainThreadHandler.REPLAY_FINISHED, replaySession, 0).sendToTarget();
+                    return;
+                }
+                if (framePool.retain(buffer)) {
+                    ReplayedFrame frame;
+                    synchronized (freeBuffers) {
+                        frame = spareFrames.poll();
+                    }
+                    if (frame == null) {
+                        frame = new ReplayedFrame();
+                    }
+                    frame.buffer = buffer;
+                    frame.width = frameWidths[index];
+                    frame.height = frameHeights[index];
+                    frame.rotation = frameRotations[index];
+                    frame.captureNanos = captureNanos;
+                    frame.session = replaySession;
+                    mainHandler.obtainMessage(MainThreadHandler.FRAME_AVAILABLE, frame).sendToTarget();
+                }
+            }
+
+            if (++index == frameCount) {
+                if (!loop) {
+                    mainHandler.obtainMessage(MainThreadHandler.REPLAY_FINISHED, replaySession, 0).sendToTarget();
+                    return;
+                }
+                index = 0;
+                startNanos += loopNanos;
+            }
+        }
+    }
+
+    /*
+        Sleeps until System.nanoTime() reaches the given time. Returns false if the replay was stopped meanwhile.
+     */
+    private boolean waitUntil(long nanoTime) {
+        synchronized (freeBuffers) {
+            long remaining;
+            while (isReplaying && (remaining = nanoTime - System.nanoTime()) > 0) {
+                try {
+                    freeBuffers.wait(remaining / 1000000, (int) (remaining % 1000000));
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return isReplaying;
+        }
+    }
+
+    /*
+        Waits for a free buffer. Returns null if the replay was stopped meanwhile.
+     */
+    private byte[] takeFreeBuffer() {
+        synchronized (freeBuffers) {
+            while (isReplaying && freeBuffers.isEmpty()) {
+                try {
+                    freeBuffers.wait();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            return isReplaying ? freeBuffers.poll() : null;
+        }
+    }
+
+    /*
+        Delivers a replayed frame on the main thread, then drops our reference to its buffer.
+     */
+    private void deliverFrame(ReplayedFrame frame) {
+        if (frame.session == session && isReplaying && listener != null) {
+            framesReplayed += 1;
+            listener.onFrameAvailable(frame.buffer, frame.width, frame.height, frame.rotation, frame.captureNanos);
+        }
+        framePool.release(frame.buffer);
+        frame.buffer = null;
+        synchronized (freeBuffers) {
+            spareFrames.offer(frame);
+        }
+    }
+
+    private void finishReplay(int replaySession) {
+        if (replaySession != session || replayThread == null) {
+            return; // stopped or restarted in the meantime
+        }
+        stop();
+        if (replayFinishedListener != null) {
+            replayFinishedListener.onReplayFinished();
+        }
+    }
+
+    // Implement FrameBufferPool.OnBufferAvailableListener interface
+    @Override
+    public void onBufferAvailable(byte[] buffer) {
+        synchronized (freeBuffers) {
+            freeBuffers.add(buffer);
+            freeBuffers.notifyAll();
+        }
+    }
+
+    /*
+        A frame on its way from the replay thread to the main thread. Instances are reused.
+     */
+    private static class ReplayedFrame {
+        byte[] buffer;
+        int width;
+        int height;
+        Frame.ROTATE rotation;
+        long captureNanos;
+        int session;
+    }
+
+    /*
+        A Handler on the main thread, for handing frames over from the replay thread.
+        This Handler class holds a WeakReference to the RecordedFrameSource to avoid memory leaks.
+     */
+    static class MainThreadHandler extends Handler {
+        WeakReference<RecordedFrameSource> sourceRef;
+
+        final static int FRAME_AVAILABLE = 0;
+        final static int REPLAY_FINISHED = 1;
+
+        MainThreadHandler(RecordedFrameSource source) {
+            super(Looper.getMainLooper());
+            sourceRef = new WeakReference<>(source);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            RecordedFrameSource source = sourceRef.get();
+            switch (msg.what) {
+                case FRAME_AVAILABLE:
+                    if (source != null) {
+                        source.deliverFrame((ReplayedFrame) msg.obj);
+                    }
+                    break;
+                case REPLAY_FINISHED:
+                    if (source != null) {
+                        source.finishReplay(msg.arg1);
+                    }
+                    break;
+                default:
+                    Log.e(LOG_TAG, "Received unhandled message of code " + String.valueOf(msg.what));
+                    break;
+            }
+        }
+    }
+}
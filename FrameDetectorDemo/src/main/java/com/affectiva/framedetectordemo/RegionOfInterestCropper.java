@@ -0,0 +1,252 @@
+package com.affectiva.framedetectordemo;
+
+import android.graphics.PointF;
+
+import com.affectiva.android.affdex.sdk.Frame;
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.util.List;
+
+/**
+ * Crops NV21 frames down to the region around the faces found in the previous frame, so the detector has fewer
+ * pixels to search.
+ *
+ * Call crop() on each frame before handing it to the detector, then mapResults() on the faces the detector returns
+ * for it. mapResults() moves the face points from the cropped frame's coordinates back into the full frame's
+ * (rotated) coordinates, and uses them to choose the region for the next frame. Every FULL_FRAME_INTERVAL frames,
+ * and whenever the faces are lost, a full frame is passed through instead, so faces entering the scene are found.
+ *
+ * Regions are computed in the raw (unrotated) coordinates of the camera buffer, since that is what is cropped.
+ * Region sizes only change when the faces no longer fit or have shrunk well inside, so the detector sees frames of
+ * a stable size. The cropped frame and its buffer are reused, so a FrameDetector (which processes synchronously)
+ * must be done with one cropped frame before crop() is called again.
+ *
+ * Not thread safe: use one instance per detector thread.
+ */
+class RegionOfInterestCropper {
+
+    // how much to pad the faces' bounding box by, on each side, as a fraction of the box's size
+    private static final float PADDING = 0.5f;
+    // pass a full frame through at least this often, to pick up new faces
+    private static final int FULL_FRAME_INTERVAL = 30;
+    // don't bother cropping when the region would cover most of the frame anyway
+    private static final float MAX_REGION_FRACTION = 0.7f;
+    private static final int MIN_REGION_SIZE = 64;
+    // region dimensions are multiples of this, which keeps them even as NV21 requires
+    private static final int REGION_ALIGNMENT = 16;
+
+    // the region to crop the next frame to, in raw frame coordinates; regionWidth is 0 if there is none
+    private int regionLeft, regionTop, regionWidth, regionHeight;
+    private int framesSinceFullFrame = 0;
+
+    // the frame most recently returned by crop(), which mapResults() refers to
+    private boolean lastFrameCropped = false;
+    private int lastFrameWidth, lastFrameHeight;
+    private Frame.ROTATE lastRotation = Frame.ROTATE.NO_ROTATION;
+    private int lastLeft, lastTop, lastWidth, lastHeight;
+
+    private byte[] cropBuffer;
+    private Frame.ByteArrayFrame croppedFrame;
+
+    /**
+     * Returns a frame holding just the current region of the given frame, or the given frame itself if it should be
+     * processed in full (or is not an NV21 ByteArrayFrame).
+     */
+    Frame crop(Frame frame) {
+        lastFrameCropped = false;
+        if (!(frame instanceof Frame.ByteArrayFrame) || frame.getColorFormat() != Frame.COLOR_FORMAT.YUV_NV21) {
+            regionWidth = 0;
+            lastFrameWidth = 0; // nothing for mapResults() to do
+            return frame;
+        }
+
+        lastFrameWidth = frame.getWidth();
+        lastFrameHeight = frame.getHeight();
+        lastRotation = frame.getTargetRotation() == null ? Frame.ROTATE.NO_ROTATION : frame.getTargetRotation();
+
+        framesSinceFullFrame += 1;
+        if (regionWidth == 0 || framesSinceFullFrame >= FULL_FRAME_INTERVAL
+                || regionLeft + regionWidth > lastFrameWidth || regionTop + regionHeight > lastFrameHeight) {
+            framesSinceFullFrame = 0;
+            return frame;
+        }
+
+        lastLeft = regionLeft;
+        lastTop = regionTop;
+        lastWidth = regionWidth;
+        lastHeight = regionHeight;
+
+        int size = lastWidth * lastHeight * 3 / 2;
+        if (croppedFrame == null || cropBuffer.length != size || croppedFrame.getWidth() != lastWidth) {
+            cropBuffer = new byte[size];
+            croppedFrame = new Frame.ByteArrayFrame(cropBuffer, lastWidth, lastHeight, Frame.COLOR_FORMAT.YUV_NV21);
+        }
+        cropNv21(((Frame.ByteArrayFrame) frame).getByteArray(), lastFrameWidth, lastFrameHeight,
+                lastLeft, lastTop, lastWidth, lastHeight, cropBuffer);
+        croppedFrame.setTargetRotation(lastRotation);
+
+        lastFrameCropped = true;
+        return croppedFrame;
+    }
+
+    /**
+     * Whether the frame most recently returned by crop() was cropped.
+     */
+    boolean wasCropped() {
+        return lastFrameCropped;
+    }
+
+    /**
+     * Maps the face points found in the frame most recently returned by crop() into the coordinates of the full,
+     * rotated frame (in place), and picks the region to crop the next frame to.
+     */
+    void mapResults(List<Face> faces) {
+        if (lastFrameWidth == 0) {
+            return;
+        }
+        if (faces == null || faces.isEmpty()) {
+            regionWidth = 0; // lost the faces: look at the whole frame next time
+            return;
+        }
+
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (Face face : faces) {
+            PointF[] points = face.getFacePoints();
+            if (points == null) {
+                continue;
+            }
+            for (PointF point : points) {
+                // into raw coordinates of the frame the detector saw, then into raw coordinates of the full frame
+                if (lastFrameCropped) {
+                    toRawCoordinates(point, lastWidth, lastHeight, lastRotation);
+                    point.x += lastLeft;
+                    point.y += lastTop;
+                } else {
+                    toRawCoordinates(point, lastFrameWidth, lastFrameHeight, lastRotation);
+                }
+
+                minX = Math.min(minX, point.x);
+                minY = Math.min(minY, point.y);
+                maxX = Math.max(maxX, point.x);
+                maxY = Math.max(maxY, point.y);
+
+                // and back into the rotated coordinates the detector reports points in
+                toRotatedCoordinates(point, lastFrameWidth, lastFrameHeight, lastRotation);
+            }
+        }
+
+        if (minX > maxX) {
+            regionWidth = 0;
+        } else {
+            updateRegion(minX, minY, maxX, maxY);
+        }
+    }
+
+    /**
+     * Forgets the current region, so the next frame is processed in full.
+     */
+    void reset() {
+        regionWidth = 0;
+        framesSinceFullFrame = 0;
+        lastFrameCropped = false;
+    }
+
+    /*
+        Pads the faces' bounding box, and sizes and positions the region around it. The region keeps its current size
+        if the padded box still fits in it and is not much smaller.
+     */
+    private void updateRegion(float minX, float minY, float maxX, float maxY) {
+        float padX = (maxX - minX) * PADDING;
+        float padY = (maxY - minY) * PADDING;
+        int width = align(Math.max(MIN_REGION_SIZE, (int) Math.ceil(maxX - minX + 2 * padX)));
+        int height = align(Math.max(MIN_REGION_SIZE, (int) Math.ceil(maxY - minY + 2 * padY)));
+
+        if (width * height > MAX_REGION_FRACTION * lastFrameWidth * lastFrameHeight
+                || width > lastFrameWidth || height > lastFrameHeight) {
+            regionWidth = 0;
+            return;
+        }
+
+        boolean fits = regionWidth >= width && regionHeight >= height;
+        boolean tooLarge = regionWidth * regionHeight > 2 * width * height;
+        if (!fits || tooLarge) {
+            regionWidth = width;
+            regionHeight = height;
+        }
+
+        // center the region on the faces, keeping it inside the frame and on even coordinates
+        int left = (int) ((minX + maxX) / 2) - regionWidth / 2;
+        int top = (int) ((minY + maxY) / 2) - regionHeight / 2;
+        regionLeft = Math.max(0, Math.min(left, lastFrameWidth - regionWidth)) & ~1;
+        regionTop = Math.max(0, Math.min(top, lastFrameHeight - regionHeight)) & ~1;
+    }
+
+    private static int align(int size) {
+        return (size + REGION_ALIGNMENT - 1) / REGION_ALIGNMENT * REGION_ALIGNMENT;
+    }
+
+    /*
+        Copies a region of an NV21 image into dst. The region's position and size must be even, so that each 2x2
+        block of Y samples and its VU pair are copied together.
+     */
+    static void cropNv21(byte[] src, int srcWidth, int srcHeight, int left, int top, int width, int height, byte[] dst) {
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(src, (top + row) * srcWidth + left, dst, row * width, width);
+        }
+        int srcChroma = srcWidth * srcHeight;
+        int dstChroma = width * height;
+        for (int row = 0; row < height / 2; row++) {
+            System.arraycopy(src, srcChroma + (top / 2 + row) * srcWidth + left, dst, dstChroma + row * width, width);
+        }
+    }
+
+    /*
+        Maps a point in the coordinates of a frame rotated by rotation into the coordinates of the raw frame, which is
+        rawWidth x rawHeight.
+     */
+    static void toRawCoordinates(PointF point, int rawWidth, int rawHeight, Frame.ROTATE rotation) {
+        float x = point.x;
+        float y = point.y;
+        switch (rotation) {
+            case BY_90_CW:
+                point.x = y;
+                point.y = rawHeight - 1 - x;
+                break;
+            case BY_90_CCW:
+                point.x = rawWidth - 1 - y;
+                point.y = x;
+                break;
+            case BY_180:
+                point.x = rawWidth - 1 - x;
+                point.y = rawHeight - 1 - y;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /*
+        The inverse of toRawCoordinates().
+     */
+    static void toRotatedCoordinates(PointF point, int rawWidth, int rawHeight, Frame.ROTATE rotation) {
+        float x = point.x;
+        float y = point.y;
+        switch (rotation) {
+            case BY_90_CW:
+                point.x = rawHeight - 1 - y;
+                point.y = x;
+                break;
+            case BY_90_CCW:
+                point.x = y;
+                point.y = rawWidth - 1 - x;
+                break;
+            case BY_180:
+                point.x = rawWidth - 1 - x;
+                point.y = rawHeight - 1 - y;
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.affectiva.framedetectordemo;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks which frames Nv21Downscaler shrinks, and that a shrunk frame's interocular distance, scaled by the factor it
+ * reports, matches the full-size frame's.
+ */
+public class Nv21DownscalerTest {
+    private static final int INPUT_SIZE = 360;
+    private static final float DISTANCE = 120f; // the interocular distance in the full-size frame, in pixels
+    private static final float SCORE = 50f;
+    private static final float TOLERANCE = 1e-5f;
+
+    private final Nv21Downscaler downscaler = new Nv21Downscaler(INPUT_SIZE);
+    private final float[] values = new float[Metrics.ALL.length];
+
+    @Test
+    public void halvesAFrameTwiceTheInputSize() {
+        Frame output = downscaler.downscale(newFrame(1280, 720));
+
+        assertEquals(2, downscaler.getLastScale());
+        assertEquals(640, output.getWidth());
+        assertEquals(360, output.getHeight());
+    }
+
+    @Test
+    public void passesAFrameUnderTwiceTheInputSizeThrough() {
+        Frame frame = newFrame(640, 480);
+
+        assertSame(frame, downscaler.downscale(frame));
+        assertEquals(1, downscaler.getLastScale());
+        assertEquals(DISTANCE, interocularDistance(DISTANCE, downscaler.getLastScale()), TOLERANCE);
+    }
+
+    @Test
+    public void reportsTheFullSizeInterocularDistanceForAHalvedFrame() {
+        float fullSize = interocularDistance(DISTANCE, 1);
+
+        downscaler.downscale(newFrame(1280, 720));
+        int scale = downscaler.getLastScale();
+        // the detector measures the halved frame in its own pixels
+        float halved = interocularDistance(DISTANCE / scale, scale);
+
+        assertEquals(fullSize, halved, TOLERANCE);
+    }
+
+    @Test
+    public void leavesScoresUnscaled() {
+        interocularDistance(DISTANCE, 2);
+
+        assertEquals(SCORE, values[Metrics.JOY.ordinal()], TOLERANCE);
+        assertEquals(SCORE, values[Metrics.SMILE.ordinal()], TOLERANCE);
+    }
+
+    private static Frame newFrame(int width, int height) {
+        return new Frame.ByteArrayFrame(new byte[width * height * 3 / 2], width, height, Frame.COLOR_FORMAT.YUV_NV21);
+    }
+
+    /*
+        Runs a face's metrics, with the given measured interocular distance, through the scaling FaceMetrics.getValues()
+        applies, and returns the distance it reports.
+     */
+    private float interocularDistance(float measured, int scale) {
+        Arrays.fill(values, SCORE);
+        values[Metrics.INTER_OCULAR_DISTANCE.ordinal()] = measured;
+        FaceMetrics.scaleMeasurements(values, scale);
+        return values[Metrics.INTER_OCULAR_DISTANCE.ordinal()];
+    }
+}
@@ -0,0 +1,160 @@
+package com.affectiva.framedetectordemo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks which chroma layout Yuv420Converter detects for the planes of an 8x4 image laid out as NV21, NV12 and I420,
+ * and that toNv21() packs the same bytes whether it copies the chroma in bulk or sample by sample.
+ */
+public class Yuv420ConverterTest {
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 4;
+    private static final int Y_SIZE = WIDTH * HEIGHT;
+    private static final int CHROMA_WIDTH = WIDTH / 2;
+    private static final int CHROMA_HEIGHT = HEIGHT / 2;
+    private static final int CHROMA_SIZE = 2 * CHROMA_WIDTH * CHROMA_HEIGHT; // V and U samples
+    private static final int INTERLEAVED_ROW_STRIDE = 2 * CHROMA_WIDTH;
+
+    private final byte[] luma = new byte[Y_SIZE];
+    private final byte[] expected = new byte[Y_SIZE + CHROMA_SIZE];
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < Y_SIZE; i++) {
+            luma[i] = (byte) (16 + i);
+        }
+        // the NV21 image every layout below holds: Y, then V0 U0 V1 U1 ...
+        System.arraycopy(luma, 0, expected, 0, Y_SIZE);
+        for (int i = 0; i < CHROMA_SIZE / 2; i++) {
+            expected[Y_SIZE + 2 * i] = v(i);
+            expected[Y_SIZE + 2 * i + 1] = u(i);
+        }
+    }
+
+    @Test
+    public void detectsOverlappingPlanesAsNv21() {
+        ByteBuffer[] planes = nv21Planes(false);
+
+        assertEquals(Yuv420Converter.ChromaLayout.NV21, Yuv420Converter.detectChromaLayout(planes[0], planes[1],
+                INTERLEAVED_ROW_STRIDE, 2, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void detectsNv12AsOther() {
+        // U0 V0 U1 V1 ...: the U plane starts one byte before the V plane
+        byte[] uv = new byte[CHROMA_SIZE];
+        for (int i = 0; i < CHROMA_SIZE / 2; i++) {
+            uv[2 * i] = u(i);
+            uv[2 * i + 1] = v(i);
+        }
+        ByteBuffer uPlane = plane(uv, 0, CHROMA_SIZE - 1);
+        ByteBuffer vPlane = plane(uv, 1, CHROMA_SIZE - 1);
+
+        assertEquals(Yuv420Converter.ChromaLayout.OTHER, Yuv420Converter.detectChromaLayout(uPlane, vPlane,
+                INTERLEAVED_ROW_STRIDE, 2, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void leavesFlatChromaUndecided() {
+        ByteBuffer[] planes = nv21Planes(true);
+
+        assertEquals(Yuv420Converter.ChromaLayout.UNKNOWN, Yuv420Converter.detectChromaLayout(planes[0], planes[1],
+                INTERLEAVED_ROW_STRIDE, 2, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void detectsPaddedRowsAsOther() {
+        ByteBuffer[] planes = nv21Planes(false);
+
+        assertEquals(Yuv420Converter.ChromaLayout.OTHER, Yuv420Converter.detectChromaLayout(planes[0], planes[1],
+                INTERLEAVED_ROW_STRIDE + 4, 2, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void detectsSeparatePlanesAsOther() {
+        ByteBuffer[] planes = i420Planes();
+
+        assertEquals(Yuv420Converter.ChromaLayout.OTHER, Yuv420Converter.detectChromaLayout(planes[0], planes[1],
+                CHROMA_WIDTH, 1, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void packsTheSameBytesInBulkAndSampleBySample() {
+        ByteBuffer[] planes = nv21Planes(false);
+        ByteBuffer yPlane = plane(luma, 0, Y_SIZE);
+        byte[] bulk = new byte[Yuv420Converter.getNv21Size(WIDTH, HEIGHT)];
+        byte[] bySample = new byte[bulk.length];
+
+        Yuv420Converter.toNv21(yPlane, WIDTH, planes[0], planes[1], INTERLEAVED_ROW_STRIDE, 2, WIDTH, HEIGHT,
+                Yuv420Converter.ChromaLayout.NV21, bulk);
+        Yuv420Converter.toNv21(yPlane, WIDTH, planes[0], planes[1], INTERLEAVED_ROW_STRIDE, 2, WIDTH, HEIGHT,
+                Yuv420Converter.ChromaLayout.UNKNOWN, bySample);
+
+        assertArrayEquals(expected, bulk);
+        assertArrayEquals(expected, bySample);
+        assertEquals(0, yPlane.position());
+        assertEquals(0, planes[0].position());
+        assertEquals(0, planes[1].position());
+    }
+
+    @Test
+    public void packsSeparatePlanesAndPaddedLumaRows() {
+        int yRowStride = WIDTH + 4;
+        byte[] paddedLuma = new byte[yRowStride * HEIGHT];
+        for (int row = 0; row < HEIGHT; row++) {
+            System.arraycopy(luma, row * WIDTH, paddedLuma, row * yRowStride, WIDTH);
+        }
+        ByteBuffer[] planes = i420Planes();
+        byte[] nv21 = new byte[Yuv420Converter.getNv21Size(WIDTH, HEIGHT)];
+
+        Yuv420Converter.toNv21(plane(paddedLuma, 0, paddedLuma.length), yRowStride, planes[0], planes[1],
+                CHROMA_WIDTH, 1, WIDTH, HEIGHT, Yuv420Converter.ChromaLayout.OTHER, nv21);
+
+        assertArrayEquals(expected, nv21);
+    }
+
+    private static byte u(int i) {
+        return (byte) (64 + 3 * i);
+    }
+
+    private static byte v(int i) {
+        return (byte) (192 - 5 * i);
+    }
+
+    /*
+        The U and V planes of an NV21 buffer: the V plane starts at V0, and the U plane one byte later, at U0. If flat,
+        every U and every V sample is the same.
+     */
+    private static ByteBuffer[] nv21Planes(boolean flat) {
+        byte[] vu = new byte[CHROMA_SIZE];
+        for (int i = 0; i < CHROMA_SIZE / 2; i++) {
+            vu[2 * i] = flat ? v(0) : v(i);
+            vu[2 * i + 1] = flat ? u(0) : u(i);
+        }
+        return new ByteBuffer[] {plane(vu, 1, CHROMA_SIZE - 1), plane(vu, 0, CHROMA_SIZE - 1)};
+    }
+
+    /*
+        Separate U and V planes, with a pixel stride of 1.
+     */
+    private static ByteBuffer[] i420Planes() {
+        byte[] uPlane = new byte[CHROMA_SIZE / 2];
+        byte[] vPlane = new byte[CHROMA_SIZE / 2];
+        for (int i = 0; i < uPlane.length; i++) {
+            uPlane[i] = u(i);
+            vPlane[i] = v(i);
+        }
+        return new ByteBuffer[] {ByteBuffer.wrap(uPlane), ByteBuffer.wrap(vPlane)};
+    }
+
+    // a plane as Image.Plane.getBuffer() returns it: positioned at 0 at its first byte
+    private static ByteBuffer plane(byte[] bytes, int offset, int length) {
+        return ByteBuffer.wrap(bytes, offset, length).slice();
+    }
+}
@@ -0,0 +1,278 @@
+package com.affectiva.imagedetectordemo;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.LruCache;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes images at no more than the resolution they are needed at, so even very large photos fit in memory.
+ *
+ * Each image's size is read first, and the image then decoded with the smallest power of two inSampleSize which
+ * brings its long side down to the size asked for, so a large image's bitmap is between half that size and that size.
+ * With a BitmapPool, the image is decoded into a pooled bitmap when one fits. A JPEG's EXIF orientation isn't applied
+ * to the pixels, which would take a copy of the image; it is returned as the rotation to give the image's Frame
+ * instead.
+ *
+ * With a cache, decoded images are kept in an LRU cache keyed by URI and size, so opening the same image again
+ * doesn't decode it again. Cached bitmaps are shared, so the caller mustn't modify or recycle them, and a decoder
+ * can't have both a cache and a pool.
+ *
+ * Images can be content: and file: URIs, or assets, through getAssetUri(). decode() may be called from any thread.
+ */
+class BitmapDecoder {
+
+    /**
+     * An image's bitmap, with what is known about the image it was decoded from.
+     */
+    static final class DecodedImage {
+        final Bitmap bitmap;
+        // the size of the image before it was subsampled
+        final int width;
+        final int height;
+        // the rotation which turns the bitmap upright
+        final Frame.ROTATE rotation;
+
+        DecodedImage(Bitmap bitmap, int width, int height, Frame.ROTATE rotation) {
+            this.bitmap = bitmap;
+            this.width = width;
+            this.height = height;
+            this.rotation = rotation;
+        }
+
+        /**
+         * Returns a frame of the bitmap, which the detector will turn upright.
+         */
+        Frame.BitmapFrame newFrame() {
+            Frame.BitmapFrame frame = new Frame.BitmapFrame(bitmap, Frame.COLOR_FORMAT.UNKNOWN_TYPE);
+            frame.setTargetRotation(rotation);
+            return frame;
+        }
+    }
+
+    /**
+     * The longest side, in pixels, which images are decoded to for detection: it leaves faces in all but group photos
+     * large enough to be found.
+     */
+    static final int DETECTION_SIZE = 1280;
+
+    private static final String ASSET_PATH_PREFIX = "/android_asset/";
+
+    // EXIF orientation values, and the rotations which undo them; mirrored orientations are treated as unmirrored
+    private static final int EXIF_ORIENTATION_TAG = 0x0112;
+    private static final Frame.ROTATE[] EXIF_ROTATIONS = {
+            Frame.ROTATE.NO_ROTATION, // 0: undefined
+            Frame.ROTATE.NO_ROTATION, // 1: normal
+            Frame.ROTATE.NO_ROTATION, // 2: mirrored
+            Frame.ROTATE.BY_180, // 3: upside down
+            Frame.ROTATE.BY_180, // 4: upside down, mirrored
+            Frame.ROTATE.BY_90_CCW, // 5: on its side, mirrored
+            Frame.ROTATE.BY_90_CW, // 6: on its left side
+            Frame.ROTATE.BY_90_CW, // 7: on its side, mirrored
+            Frame.ROTATE.BY_90_CCW, // 8: on its right side
+    };
+
+    private final ContentResolver contentResolver;
+    private final AssetManager assetManager;
+    private final BitmapPool bitmapPool;
+    private final LruCache<String, DecodedImage> cache;
+
+    /**
+     * @param bitmapPool  the pool to decode into, or null to allocate every bitmap
+     * @param cacheSizeKb the most bitmap memory the cache may hold, in KB, or 0 for no cache
+     */
+    BitmapDecoder(Context context, BitmapPool bitmapPool, int cacheSizeKb) {
+        if (bitmapPool != null && cacheSizeKb > 0) {
+            throw new IllegalArgumentException("a decoder can't both pool and cache bitmaps");
+        }
+        contentResolver = context.getContentResolver();
+        assetManager = context.getAssets();
+        this.bitmapPool = bitmapPool;
+        cache = cacheSizeKb <= 0 ? null : new LruCache<String, DecodedImage>(cacheSizeKb) {
+            @Override
+            protected int sizeOf(String key, DecodedImage image) {
+                return Math.max(1, image.bitmap.getByteCount() / 1024);
+            }
+        };
+    }
+
+    /**
+     * Returns the URI of a file in the app's assets, for decode().
+     */
+    static Uri getAssetUri(String path) {
+        return Uri.parse("file://" + ASSET_PATH_PREFIX + path);
+    }
+
+    /**
+     * Decodes the image at uri, subsampled to no more than size pixels on its long side, or returns null if it isn't
+     * an image BitmapFactory can decode.
+     */
+    DecodedImage decode(Uri uri, int size) throws IOException {
+        String key = uri + "@" + size;
+        if (cache != null) {
+            DecodedImage cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int width = options.outWidth;
+        int height = options.outHeight;
+        Frame.ROTATE rotation = "image/jpeg".equals(options.outMimeType) ? readExifRotation(uri)
+                : Frame.ROTATE.NO_ROTATION;
+
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inSampleSize = getSampleSize(width, height, size);
+        Bitmap bitmap;
+        if (bitmapPool != null) {
+            bitmapPool.setInBitmap(options);
+            try {
+                bitmap = decodeStream(uri, options);
+            } catch (IllegalArgumentException e) {
+                // this image's format can't be decoded into the pooled bitmap
+                bitmapPool.put(options.inBitmap);
+                options.inBitmap = null;
+                bitmap = decodeStream(uri, options);
+            }
+            if (bitmap == null && options.inBitmap != null) {
+                bitmapPool.put(options.inBitmap);
+            }
+        } else {
+            bitmap = decodeStream(uri, options);
+        }
+        if (bitmap == null) {
+            return null;
+        }
+
+        DecodedImage image = new DecodedImage(bitmap, width, height, rotation);
+        if (cache != null) {
+            cache.put(key, image);
+        }
+        return image;
+    }
+
+    private static int getSampleSize(int width, int height, int size) {
+        int sampleSize = 1;
+        while (Math.max(width, height) / sampleSize > size) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private Bitmap decodeStream(Uri uri, BitmapFactory.Options options) throws IOException {
+        InputStream in = open(uri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    private InputStream open(Uri uri) throws IOException {
+        InputStream in;
+        String path = uri.getPath();
+        if ("file".equals(uri.getScheme()) && path != null && path.startsWith(ASSET_PATH_PREFIX)) {
+            in = assetManager.open(path.substring(ASSET_PATH_PREFIX.length()));
+        } else {
+            in = contentResolver.openInputStream(uri);
+        }
+        if (in == null) {
+            throw new FileNotFoundException("no content for " + uri);
+        }
+        return in;
+    }
+
+    /*
+        Returns the rotation which undoes the orientation in a JPEG's EXIF data, or NO_ROTATION if it has none we
+        can read. Only the headers are read, up to the EXIF segment, which comes before the image data.
+     */
+    private Frame.ROTATE readExifRotation(Uri uri) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(open(uri)));
+        try {
+            if (in.readUnsignedShort() != 0xFFD8) { // start of image
+                return Frame.ROTATE.NO_ROTATION;
+            }
+            while (true) {
+                int marker = in.readUnsignedShort();
+                if ((marker & 0xFF00) != 0xFF00 || marker == 0xFFDA || marker == 0xFFD9) {
+                    return Frame.ROTATE.NO_ROTATION; // the image data starts, or this isn't a JPEG after all
+                }
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return Frame.ROTATE.NO_ROTATION;
+                }
+                if (marker == 0xFFE1) { // APP1, which holds EXIF data (or XMP)
+                    byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    int orientation = getExifOrientation(segment);
+                    if (orientation >= 0) {
+                        return orientation < EXIF_ROTATIONS.length ? EXIF_ROTATIONS[orientation]
+                                : Frame.ROTATE.NO_ROTATION;
+                    }
+                } else {
+                    while (length > 0) {
+                        int skipped = in.skipBytes(length);
+                        if (skipped <= 0) {
+                            return Frame.ROTATE.NO_ROTATION;
+                        }
+                        length -= skipped;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            return Frame.ROTATE.NO_ROTATION; // truncated
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+        Returns the orientation tag's value from an APP1 segment, or -1 if it isn't EXIF data or has no orientation.
+     */
+    private static int getExifOrientation(byte[] segment) {
+        if (segment.length < 14 || segment[0] != 'E' || segment[1] != 'x' || segment[2] != 'i' || segment[3] != 'f'
+                || segment[4] != 0 || segment[5] != 0) {
+            return -1;
+        }
+        // a TIFF header follows, in the byte order it names
+        ByteBuffer tiff = ByteBuffer.wrap(segment, 6, segment.length - 6).slice();
+        if (segment[6] == 'I' && segment[7] == 'I') {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (segment[6] != 'M' || segment[7] != 'M') {
+            return -1;
+        }
+        try {
+            int ifd = tiff.getInt(4); // the first IFD, which describes the main image
+            int entryCount = tiff.getShort(ifd) & 0xFFFF;
+            for (int i = 0; i < entryCount; i++) {
+                int entry = ifd + 2 + 12 * i;
+                if ((tiff.getShort(entry) & 0xFFFF) == EXIF_ORIENTATION_TAG) {
+                    return tiff.getShort(entry + 8) & 0xFFFF;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // corrupt offsets
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,81 @@
+package com.affectiva.imagedetectordemo;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Keeps bitmaps which are no longer in use, so BitmapFactory can decode new images into them (through
+ * BitmapFactory.Options.inBitmap) instead of allocating a new bitmap for every image.
+ *
+ * Before KitKat, a bitmap can only be reused for an image of exactly the same size, decoded without subsampling; from
+ * KitKat on, any bitmap with a large enough allocation can be. The pool holds at most maxSize bitmaps; bitmaps put
+ * in a full pool are recycled. All methods may be called from any thread.
+ */
+class BitmapPool {
+
+    private final int maxSize;
+    private final ArrayDeque<Bitmap> bitmaps;
+
+    BitmapPool(int maxSize) {
+        this.maxSize = maxSize;
+        bitmaps = new ArrayDeque<>(maxSize);
+    }
+
+    /**
+     * Sets options.inBitmap (and options.inMutable) to a pooled bitmap which the image described by options'
+     * outWidth, outHeight and inSampleSize can be decoded into, removing it from the pool, or clears inBitmap if no
+     * pooled bitmap fits. Decoding the image into the bitmap may still fail (with an IllegalArgumentException) for
+     * formats which don't support reuse, in which case the caller should decode again without it.
+     */
+    synchronized void setInBitmap(BitmapFactory.Options options) {
+        options.inBitmap = null;
+        options.inMutable = true; // only mutable bitmaps can be reused later
+        int sampleSize = Math.max(1, options.inSampleSize);
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+
+        for (Iterator<Bitmap> it = bitmaps.iterator(); it.hasNext(); ) {
+            Bitmap bitmap = it.next();
+            if (canDecodeInto(bitmap, width, height, sampleSize)) {
+                it.remove();
+                options.inBitmap = bitmap;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns a bitmap to the pool once nothing uses it any more.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmaps.size() >= maxSize) {
+            bitmap.recycle();
+            return;
+        }
+        bitmaps.addLast(bitmap);
+    }
+
+    /**
+     * Recycles every pooled bitmap.
+     */
+    synchronized void clear() {
+        for (Bitmap bitmap : bitmaps) {
+            bitmap.recycle();
+        }
+        bitmaps.clear();
+    }
+
+    private static boolean canDecodeInto(Bitmap bitmap, int width, int height, int sampleSize) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount() >= width * height * 4; // decoded as ARGB_8888
+        }
+        return sampleSize == 1 && bitmap.getWidth() == width && bitmap.getHeight() == height;
+    }
+}
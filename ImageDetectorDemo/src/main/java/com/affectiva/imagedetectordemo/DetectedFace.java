@@ -0,0 +1,72 @@
+package com.affectiva.imagedetectordemo;
+
+import android.graphics.PointF;
+
+import com.affectiva.android.affdex.sdk.Frame;
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What the app keeps of a face the detector found: its metrics and face points. Unlike the SDK's Face, it can be
+ * stored in and rebuilt from a ResultCache.
+ */
+final class DetectedFace {
+    // indexed by MetricsManager's numeric metric codes
+    final float[] scores;
+    final Face.GENDER gender;
+    final Face.AGE age;
+    final Face.ETHNICITY ethnicity;
+    // in the coordinates of the unrotated image the face was found in, whatever the frame's target rotation
+    final PointF[] points;
+
+    DetectedFace(float[] scores, Face.GENDER gender, Face.AGE age, Face.ETHNICITY ethnicity, PointF[] points) {
+        this.scores = scores;
+        this.gender = gender;
+        this.age = age;
+        this.ethnicity = ethnicity;
+        this.points = points;
+    }
+
+    DetectedFace(Face face) {
+        scores = new float[MetricsManager.getTotalNumNumericMetrics()];
+        for (int n = 0; n < scores.length; n++) {
+            scores[n] = MetricsManager.getScore(n, face);
+        }
+        gender = face.appearance.getGender();
+        age = face.appearance.getAge();
+        ethnicity = face.appearance.getEthnicity();
+        PointF[] facePoints = face.getFacePoints();
+        points = facePoints != null ? facePoints : new PointF[0];
+    }
+
+    /**
+     * Returns the faces the detector found in frame, or null if faces is null.
+     *
+     * The detector reports face points in the coordinates of the frame turned by its target rotation; they are turned
+     * back (in place) into the coordinates of the unrotated image, as VideoDetectorDemo does before drawing them.
+     */
+    static List<DetectedFace> fromFaces(List<Face> faces, Frame frame) {
+        if (faces == null) {
+            return null;
+        }
+        Frame.ROTATE rotation = frame.getTargetRotation();
+        int rotatedWidth = frame.getWidth();
+        int rotatedHeight = frame.getHeight();
+        if (rotation == Frame.ROTATE.BY_90_CW || rotation == Frame.ROTATE.BY_90_CCW) {
+            rotatedWidth = frame.getHeight();
+            rotatedHeight = frame.getWidth();
+        }
+
+        List<DetectedFace> detectedFaces = new ArrayList<>(faces.size());
+        for (Face face : faces) {
+            PointF[] points = face.getFacePoints();
+            if (points != null) {
+                Frame.revertPointRotation(points, rotatedWidth, rotatedHeight, rotation);
+            }
+            detectedFaces.add(new DetectedFace(face));
+        }
+        return detectedFaces;
+    }
+}
@@ -0,0 +1,143 @@
+package com.affectiva.imagedetectordemo;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PointF;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+/**
+ * Shows an image, turned by a Frame rotation and scaled to fit the view, with face points drawn over it.
+ *
+ * The bitmap is never copied: it is drawn through a matrix which both rotates and scales it, so changing the rotation
+ * costs nothing more than a redraw. Face points are given in the bitmap's own, unrotated coordinates (see
+ * DetectedFace.fromFaces()) and are drawn through the same matrix, so they stay on the face whatever the rotation.
+ */
+public class FaceImageView extends View {
+
+    private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint circlePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Matrix imageMatrix = new Matrix(); // from the bitmap to the view
+    private boolean isMatrixValid = false;
+
+    private Bitmap bitmap;
+    private Frame.ROTATE rotation = Frame.ROTATE.NO_ROTATION;
+    private float[] points = new float[0]; // x, y pairs
+    private float[] mappedPoints = new float[0]; // points, in the view's coordinates
+    private int pointCount = 0;
+
+    public FaceImageView(Context context) {
+        super(context);
+        init();
+    }
+
+    public FaceImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    public FaceImageView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        init();
+    }
+
+    private void init() {
+        circlePaint.setColor(Color.RED);
+    }
+
+    /**
+     * Shows bitmap turned by rotation, and clears the face points.
+     */
+    void setImage(Bitmap bitmap, Frame.ROTATE rotation) {
+        this.bitmap = bitmap;
+        this.rotation = rotation;
+        pointCount = 0;
+        isMatrixValid = false;
+        invalidate();
+    }
+
+    /**
+     * Draws points (in the unrotated bitmap's coordinates) over the image, replacing any drawn before, or clears them
+     * if points is null.
+     */
+    void setFacePoints(PointF[] points) {
+        pointCount = points == null ? 0 : points.length;
+        if (this.points.length < 2 * pointCount) {
+            this.points = new float[2 * pointCount];
+            mappedPoints = new float[2 * pointCount];
+        }
+        for (int i = 0; i < pointCount; i++) {
+            this.points[2 * i] = points[i].x;
+            this.points[2 * i + 1] = points[i].y;
+        }
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        isMatrixValid = false;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        canvas.drawColor(Color.BLACK);
+        if (bitmap == null || getWidth() <= 0 || getHeight() <= 0) {
+            return;
+        }
+        if (!isMatrixValid) {
+            updateMatrix();
+        }
+
+        canvas.drawBitmap(bitmap, imageMatrix, bitmapPaint);
+
+        if (pointCount > 0) {
+            float radius = (float) getWidth() / 100f;
+            imageMatrix.mapPoints(mappedPoints, 0, points, 0, pointCount);
+            for (int i = 0; i < pointCount; i++) {
+                canvas.drawCircle(mappedPoints[2 * i], mappedPoints[2 * i + 1], radius, circlePaint);
+            }
+        }
+    }
+
+    /*
+        The image matrix turns the bitmap into the rotated image, turning it about its top left corner and moving it
+        back to the origin, then scales the rotated image to fit the view, centered.
+     */
+    private void updateMatrix() {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        boolean isSideways = rotation == Frame.ROTATE.BY_90_CW || rotation == Frame.ROTATE.BY_90_CCW;
+        int rotatedWidth = isSideways ? height : width;
+        int rotatedHeight = isSideways ? width : height;
+
+        switch (rotation) {
+            case BY_90_CW:
+                imageMatrix.setRotate(90);
+                imageMatrix.postTranslate(height, 0);
+                break;
+            case BY_90_CCW:
+                imageMatrix.setRotate(-90);
+                imageMatrix.postTranslate(0, width);
+                break;
+            case BY_180:
+                imageMatrix.setRotate(180);
+                imageMatrix.postTranslate(width, height);
+                break;
+            default:
+                imageMatrix.reset();
+                break;
+        }
+        float scale = Math.min((float) getWidth() / rotatedWidth, (float) getHeight() / rotatedHeight);
+        imageMatrix.postScale(scale, scale);
+        imageMatrix.postTranslate((getWidth() - rotatedWidth * scale) / 2f, (getHeight() - rotatedHeight * scale) / 2f);
+        isMatrixValid = true;
+    }
+}
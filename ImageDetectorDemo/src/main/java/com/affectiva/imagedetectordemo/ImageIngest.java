@@ -0,0 +1,471 @@
+package com.affectiva.imagedetectordemo;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.Frame;
+import com.affectiva.android.affdex.sdk.detector.Detector;
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Runs every image in a directory tree or a MediaStore collection through the detector, and writes the results to an
+ * index file.
+ *
+ * The work is pipelined across threads. A feeder thread lists the images and hands them to a pool of decode threads,
+ * which decode each one (at BitmapDecoder.DETECTION_SIZE, into a bitmap reused from a BitmapPool) and look it up in
+ * the ResultCache. Images the cache doesn't know are queued on whichever of a few PhotoDetectorSessions has the least
+ * work waiting, so ingesting a library again only runs the detector on images which are new or have changed. A
+ * results thread caches each image's results, writes them to the index, and returns its bitmap to the pool. No more
+ * than maxInFlight images are between decoding and the index at any time, so the memory used doesn't grow with the
+ * size of the library.
+ *
+ * The index is UTF-8 text with tab separated columns, starting with a header line naming them:
+ * <pre>
+ * uri  width  height  faces  face  (one column per metric, as named by MetricsManager)
+ * </pre>
+ * There is a line for each face found, numbered from 0 in the face column, or a single line with empty face and
+ * metric columns if there were none. faces is -1 if the image couldn't be decoded or processed. width and height are
+ * those of the image file, before subsampling, or 0 if it couldn't be decoded. Lines are in the order images finish,
+ * not the order they were listed.
+ *
+ * An ImageIngest is used once: call one of the start methods, and the listener hears about progress and completion
+ * on the main thread.
+ */
+class ImageIngest {
+
+    interface Listener {
+        /**
+         * Called after each image, with the number of images done so far and the number found in all.
+         */
+        void onIngestProgress(int doneCount, int totalCount);
+
+        /**
+         * Called once every image has been processed and the index closed, or once the images already being
+         * processed have finished after cancel().
+         *
+         * @param failedCount the number of images which couldn't be decoded or processed
+         * @param error       the error which stopped the ingest, if listing the images or writing the index failed
+         */
+        void onIngestFinished(int doneCount, int failedCount, boolean isCancelled, IOException error);
+    }
+
+    private static final String LOG_TAG = "ImageIngest";
+    private static final int DECODE_THREAD_COUNT = 2;
+    // each session runs its own detector, which takes a lot of memory of its own
+    private static final int MAX_SESSION_COUNT = 2;
+    private static final String[] IMAGE_EXTENSIONS = {".jpg", ".jpeg", ".png", ".webp", ".bmp", ".gif"};
+
+    private final ContentResolver contentResolver;
+    private final PhotoDetectorSession.Config config;
+    private final File indexFile;
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final PhotoDetectorSession[] sessions;
+    private final AtomicIntegerArray sessionLoads; // images queued on each session
+    private final ExecutorService decodeExecutor;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final BitmapPool bitmapPool;
+    private final BitmapDecoder decoder;
+    private final ResultCache resultCache;
+    private final HandlerThread resultsThread;
+    private final Handler resultsHandler;
+
+    private boolean isStarted = false;
+    private volatile boolean isCancelled = false;
+    private volatile int totalCount = 0;
+
+    // only used on the results thread, until the feeder thread has waited for it to finish
+    private Writer indexWriter;
+    private IOException writeError;
+    private int doneCount = 0;
+    private int failedCount = 0;
+    private int cachedCount = 0;
+
+    ImageIngest(Context context, PhotoDetectorSession.Config config, File indexFile, Listener listener) {
+        this.contentResolver = context.getContentResolver();
+        this.config = config;
+        this.indexFile = indexFile;
+        this.listener = listener;
+
+        resultsThread = new HandlerThread("IngestResultsThread", Process.THREAD_PRIORITY_BACKGROUND);
+        resultsThread.start();
+        resultsHandler = new Handler(resultsThread.getLooper());
+
+        int sessionCount = Math.max(1, Math.min(MAX_SESSION_COUNT,
+                Runtime.getRuntime().availableProcessors() - DECODE_THREAD_COUNT));
+        sessions = new PhotoDetectorSession[sessionCount];
+        for (int i = 0; i < sessionCount; i++) {
+            sessions[i] = new PhotoDetectorSession(context, resultsThread.getLooper());
+        }
+        sessionLoads = new AtomicIntegerArray(sessionCount);
+
+        // enough to keep every session busy with one image, while it has the next one queued and the decode threads
+        // are working on more
+        maxInFlight = DECODE_THREAD_COUNT + 2 * sessionCount;
+        inFlight = new Semaphore(maxInFlight);
+        bitmapPool = new BitmapPool(maxInFlight);
+        decoder = new BitmapDecoder(context, bitmapPool, 0);
+        resultCache = ResultCache.getInstance(context);
+        decodeExecutor = Executors.newFixedThreadPool(DECODE_THREAD_COUNT, new DecodeThreadFactory());
+    }
+
+    /**
+     * Processes every image file (by extension) in directory and its subdirectories.
+     */
+    synchronized void startDirectory(final File directory) {
+        start(new ImageLister() {
+            @Override
+            public List<Uri> listImages() throws IOException {
+                return listDirectory(directory);
+            }
+        });
+    }
+
+    /**
+     * Processes every image in a MediaStore collection, such as MediaStore.Images.Media.EXTERNAL_CONTENT_URI.
+     */
+    synchronized void startMediaStore(final Uri collection) {
+        start(new ImageLister() {
+            @Override
+            public List<Uri> listImages() throws IOException {
+                return queryMediaStore(contentResolver, collection);
+            }
+        });
+    }
+
+    /**
+     * Stops handing out new images. The images already being processed are finished, and written to the index, before
+     * the listener's onIngestFinished() is called.
+     */
+    void cancel() {
+        isCancelled = true;
+    }
+
+    private interface ImageLister {
+        List<Uri> listImages() throws IOException;
+    }
+
+    private void start(final ImageLister lister) {
+        if (isStarted) {
+            throw new IllegalStateException("an ImageIngest can only be started once");
+        }
+        isStarted = true;
+
+        Thread feederThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                feed(lister);
+            }
+        }, "IngestFeederThread");
+        feederThread.start();
+    }
+
+    /*
+        The feeder thread: list the images and queue them for decoding as room opens up in the pipeline, then wait
+        for the pipeline to empty and shut it down.
+     */
+    private void feed(ImageLister lister) {
+        IOException error = null;
+        try {
+            indexWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile), "UTF-8"));
+            writeIndexHeader();
+            List<Uri> images = lister.listImages();
+            totalCount = images.size();
+            Log.d(LOG_TAG, "ingesting " + totalCount + " images with " + sessions.length + " detector sessions");
+
+            for (final Uri uri : images) {
+                inFlight.acquireUninterruptibly();
+                if (isCancelled) {
+                    inFlight.release();
+                    break;
+                }
+                decodeExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        decodeAndProcess(uri);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to ingest images: " + e.getMessage());
+            error = e;
+        } catch (SecurityException e) {
+            Log.e(LOG_TAG, "Not allowed to read the images: " + e.getMessage());
+            error = new IOException(e.getMessage(), e);
+        }
+
+        // once every permit is back, the results thread has handled every image it will be given
+        inFlight.acquireUninterruptibly(maxInFlight);
+        decodeExecutor.shutdown();
+        for (PhotoDetectorSession session : sessions) {
+            session.close();
+        }
+        resultsThread.quit();
+        bitmapPool.clear();
+
+        if (indexWriter != null) {
+            try {
+                indexWriter.close();
+            } catch (IOException e) {
+                if (writeError == null) {
+                    writeError = e;
+                }
+            }
+        }
+        if (error == null) {
+            error = writeError;
+        }
+
+        Log.d(LOG_TAG, "ingested " + doneCount + " images, " + cachedCount + " of them from the result cache");
+        final int finalDoneCount = doneCount;
+        final int finalFailedCount = failedCount;
+        final IOException finalError = error;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onIngestFinished(finalDoneCount, finalFailedCount, isCancelled, finalError);
+            }
+        });
+    }
+
+    /*
+        A decode thread: decode the image, and unless its results are cached, queue it on the least busy session.
+     */
+    private void decodeAndProcess(final Uri uri) {
+        if (isCancelled) {
+            inFlight.release();
+            return;
+        }
+
+        BitmapDecoder.DecodedImage decoded = null;
+        try {
+            decoded = decoder.decode(uri, BitmapDecoder.DETECTION_SIZE);
+        } catch (IOException | RuntimeException e) {
+            Log.w(LOG_TAG, "Unable to decode " + uri + ": " + e.getMessage());
+        }
+        if (decoded == null) {
+            resultsHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onImageDone(uri, 0, 0, null, null, -1, false);
+                }
+            });
+            return;
+        }
+
+        final BitmapDecoder.DecodedImage image = decoded;
+        final long contentHash = ResultCache.hashContent(image.bitmap);
+        final List<DetectedFace> cachedFaces = resultCache.get(contentHash, image.rotation, config);
+        if (cachedFaces != null) {
+            resultsHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onImageDone(uri, image.width, image.height, cachedFaces, image.bitmap, -1, true);
+                }
+            });
+            return;
+        }
+
+        final int session = getLeastBusySession();
+        sessionLoads.incrementAndGet(session);
+        sessions[session].process(image.newFrame(), config, new Detector.ImageListener() {
+            @Override
+            public void onImageResults(List<Face> faces, Frame frame, float timestamp) {
+                List<DetectedFace> detectedFaces = DetectedFace.fromFaces(faces, frame);
+                if (detectedFaces != null) {
+                    resultCache.put(contentHash, image.rotation, config, detectedFaces);
+                }
+                onImageDone(uri, image.width, image.height, detectedFaces, image.bitmap, session, false);
+            }
+        });
+    }
+
+    private int getLeastBusySession() {
+        int best = 0;
+        for (int i = 1; i < sessions.length; i++) {
+            if (sessionLoads.get(i) < sessionLoads.get(best)) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /*
+        The results thread: write an image's results to the index, and free its place in the pipeline. faces is null
+        if the image failed, and session is -1 if it never reached one.
+     */
+    private void onImageDone(Uri uri, int width, int height, List<DetectedFace> faces, Bitmap bitmap, int session,
+                             boolean isCached) {
+        if (faces == null) {
+            failedCount += 1;
+        }
+        if (isCached) {
+            cachedCount += 1;
+        }
+        try {
+            writeIndexLines(uri, width, height, faces);
+        } catch (IOException e) {
+            if (writeError == null) {
+                Log.e(LOG_TAG, "Unable to write the index: " + e.getMessage());
+                writeError = e;
+                isCancelled = true; // there's no point processing images whose results can't be kept
+            }
+        }
+
+        if (session >= 0) {
+            sessionLoads.decrementAndGet(session);
+        }
+        bitmapPool.put(bitmap);
+        doneCount += 1;
+        inFlight.release();
+
+        final int progress = doneCount;
+        final int total = totalCount;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onIngestProgress(progress, total);
+            }
+        });
+    }
+
+    private void writeIndexHeader() throws IOException {
+        StringBuilder line = new StringBuilder("uri\twidth\theight\tfaces\tface");
+        for (int n = 0; n < MetricsManager.getTotalNumMetrics(); n++) {
+            line.append('\t').append(MetricsManager.getMetricLowerCaseName(n));
+        }
+        indexWriter.write(line.append('\n').toString());
+    }
+
+    private void writeIndexLines(Uri uri, int width, int height, List<DetectedFace> faces) throws IOException {
+        if (writeError != null) {
+            return;
+        }
+        String prefix = uri + "\t" + width + "\t" + height + "\t" + (faces == null ? -1 : faces.size()) + "\t";
+        if (faces == null || faces.isEmpty()) {
+            StringBuilder line = new StringBuilder(prefix);
+            for (int n = 0; n < MetricsManager.getTotalNumMetrics(); n++) {
+                line.append('\t');
+            }
+            indexWriter.write(line.append('\n').toString());
+            return;
+        }
+
+        for (int i = 0; i < faces.size(); i++) {
+            DetectedFace face = faces.get(i);
+            StringBuilder line = new StringBuilder(prefix).append(i);
+            for (int n = 0; n < MetricsManager.getTotalNumNumericMetrics(); n++) {
+                line.append('\t').append(String.format(Locale.US, "%.3f", face.scores[n]));
+            }
+            line.append('\t').append(face.gender.name().toLowerCase(Locale.US));
+            line.append('\t').append(face.age.name().toLowerCase(Locale.US));
+            line.append('\t').append(face.ethnicity.name().toLowerCase(Locale.US));
+            indexWriter.write(line.append('\n').toString());
+        }
+    }
+
+    /*
+        Lists the image files under directory, breadth first, in name order within each directory.
+     */
+    private static List<Uri> listDirectory(File directory) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new FileNotFoundException(directory + " is not a directory");
+        }
+        List<Uri> images = new ArrayList<>();
+        ArrayDeque<File> directories = new ArrayDeque<>();
+        directories.add(directory);
+        while (!directories.isEmpty()) {
+            File[] files = directories.poll().listFiles();
+            if (files == null) {
+                continue; // unreadable
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.getName().startsWith(".")) {
+                    continue;
+                }
+                if (file.isDirectory()) {
+                    directories.add(file);
+                } else if (isImageFile(file)) {
+                    images.add(Uri.fromFile(file));
+                }
+            }
+        }
+        return images;
+    }
+
+    private static boolean isImageFile(File file) {
+        String name = file.getName().toLowerCase(Locale.US);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Uri> queryMediaStore(ContentResolver contentResolver, Uri collection) throws IOException {
+        Cursor cursor = contentResolver.query(collection, new String[]{MediaStore.Images.Media._ID}, null, null,
+                MediaStore.Images.Media._ID);
+        if (cursor == null) {
+            throw new IOException("unable to query " + collection);
+        }
+        try {
+            List<Uri> images = new ArrayList<>(cursor.getCount());
+            int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID);
+            while (cursor.moveToNext()) {
+                images.add(ContentUris.withAppendedId(collection, cursor.getLong(idColumn)));
+            }
+            return images;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static class DecodeThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ImageDecodeThread-" + threadCount.incrementAndGet());
+        }
+    }
+}
@@ -1,23 +1,16 @@
 package com.affectiva.imagedetectordemo;
 
 import android.app.Activity;
-import android.content.Context;
 import android.content.Intent;
-import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Matrix;
-import android.graphics.Paint;
 import android.graphics.PointF;
-import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Looper;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
-import android.widget.ImageView;
+import android.widget.Button;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -25,38 +18,61 @@ import android.widget.Toast;
 import com.affectiva.android.affdex.sdk.Frame;
 import com.affectiva.android.affdex.sdk.detector.Detector;
 import com.affectiva.android.affdex.sdk.detector.Face;
-import com.affectiva.android.affdex.sdk.detector.PhotoDetector;
 
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 /**
  * A sample app showing how to use ImageDetector.
  *
- * This app is not a production release and is known to have bugs. Specifically, the UI thread is blocked while the image is being processed,
- * and the app will crash if the user tries loading a very large image.
+ * This app is not a production release and is known to have bugs.
  *
  * For some images, facial tracking dots will not appear in the correct location.
  *
+ * Rotating the image doesn't copy it: the decoded bitmap is kept as it is, and the rotation is applied by the matrix
+ * FaceImageView draws it with, and by the frame's target rotation for the detector. Results are kept in a ResultCache,
+ * keyed by the image's content and rotation, so turning back to a rotation already seen, or reopening an image (even
+ * after a restart, or one the library ingest has processed), shows its results without detecting again.
+ *
  * Also, the UI element that displays metrics is not aesthetic.
  *
+ * The Analyze Library button runs every image in the device's MediaStore through the detector in the background (see
+ * ImageIngest), writing the results to an index file in the app's external files directory.
+ *
  */
-public class MainActivity extends Activity implements Detector.ImageListener {
+public class MainActivity extends Activity implements Detector.ImageListener, ImageIngest.Listener {
 
     public static final String LOG_TAG = "Affectiva";
     public static final int PICK_IMAGE = 100;
+    static final String INGEST_INDEX_FILE_NAME = "library_index.tsv";
+
+    // the rotations of an image, a quarter turn clockwise apart
+    private static final Frame.ROTATE[] CLOCKWISE_ROTATIONS = {Frame.ROTATE.NO_ROTATION, Frame.ROTATE.BY_90_CW,
+            Frame.ROTATE.BY_180, Frame.ROTATE.BY_90_CCW};
 
-    ImageView imageView;
+    // the detector settings every image is processed with
+    static final PhotoDetectorSession.Config DETECTOR_CONFIG = new PhotoDetectorSession.Config(1,
+            Detector.FaceDetectorMode.LARGE_FACES, true, true, true);
+
+    FaceImageView imageView;
     TextView[] metricScoreTextViews;
 
     LinearLayout metricsContainer;
+    Button ingestButton;
 
 
-    PhotoDetector detector;
-    Bitmap bitmap = null;
-    Frame.BitmapFrame frame;
+    PhotoDetectorSession detectorSession; // keeps a started PhotoDetector between images
+    BitmapDecoder decoder; // caches the images decoded recently, so they open instantly
+    Bitmap bitmap = null; // the image as it was decoded, never rotated
+    Frame.ROTATE bitmapOrientation = Frame.ROTATE.NO_ROTATION; // from the image's EXIF data
+    int quarterTurns = 0; // the user's rotation of the image, clockwise
+    long contentHash; // identifies the bitmap in resultCache
+    ResultCache resultCache;
+    // the rotations of the bitmap waiting for results
+    final Set<Frame.ROTATE> pendingRotations = EnumSet.noneOf(Frame.ROTATE.class);
+    ImageIngest ingest; // the library ingest in progress, if any
 
 
     @Override
@@ -65,6 +81,10 @@ public class MainActivity extends Activity implements Detector.ImageListener {
         setContentView(R.layout.activity_main);
 
         initUI();
+        detectorSession = new PhotoDetectorSession(this, Looper.getMainLooper());
+        // an eighth of the app's memory
+        decoder = new BitmapDecoder(this, null, (int) (Runtime.getRuntime().maxMemory() / 1024 / 8));
+        resultCache = ResultCache.getInstance(this);
 
         Log.e(LOG_TAG, "onCreate");
 
@@ -84,20 +104,18 @@ public class MainActivity extends Activity implements Detector.ImageListener {
 
     void loadInitialImage() throws IOException {
         if (bitmap == null) {
-            bitmap = getBitmapFromAsset(this, "images/default.jpg");
-        }
-        setAndProcessBitmap(Frame.ROTATE.NO_ROTATION, false);
-    }
-
-    void startDetector() {
-        if (!detector.isRunning()) {
-            detector.start();
+            setImage(decoder.decode(BitmapDecoder.getAssetUri("images/default.jpg"), BitmapDecoder.DETECTION_SIZE));
         }
+        setAndProcessBitmap();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        detectorSession.close();
+        if (ingest != null) {
+            ingest.cancel();
+        }
         Log.e(LOG_TAG, "onDestroy");
     }
 
@@ -108,40 +126,28 @@ public class MainActivity extends Activity implements Detector.ImageListener {
 
     }
 
-    void stopDetector() {
-        if (detector.isRunning()) {
-            detector.stop();
-        }
-    }
-
     void initUI() {
         metricsContainer = (LinearLayout) findViewById(R.id.metrics_container);
         metricScoreTextViews = MetricsPanelCreator.createScoresTextViews();
         MetricsPanelCreator.populateMetricsContainer(metricsContainer,metricScoreTextViews,this);
 
-        imageView = (ImageView) findViewById(R.id.image_view);
+        imageView = (FaceImageView) findViewById(R.id.image_view);
+        ingestButton = (Button) findViewById(R.id.ingest_button);
     }
 
 
 
-    public Bitmap getBitmapFromAsset(Context context, String filePath) throws IOException {
-        AssetManager assetManager = context.getAssets();
-
-        InputStream istr;
-        Bitmap bitmap;
-        istr = assetManager.open(filePath);
-        bitmap = BitmapFactory.decodeStream(istr);
-
-        return bitmap;
-    }
-
-    public Bitmap getBitmapFromUri(Uri uri) throws FileNotFoundException {
-        InputStream istr;
-        Bitmap bitmap;
-        istr = getContentResolver().openInputStream(uri);
-        bitmap = BitmapFactory.decodeStream(istr);
-
-        return bitmap;
+    /*
+        Shows a newly decoded image; setAndProcessBitmap() then processes it.
+     */
+    void setImage(BitmapDecoder.DecodedImage image) {
+        if (image != null && image.bitmap != bitmap) {
+            bitmap = image.bitmap;
+            bitmapOrientation = image.rotation;
+            quarterTurns = 0;
+            contentHash = ResultCache.hashContent(bitmap);
+            pendingRotations.clear();
+        }
     }
 
     public void select_new_image(View view) {
@@ -151,112 +157,78 @@ public class MainActivity extends Activity implements Detector.ImageListener {
         startActivityForResult(gallery, PICK_IMAGE);
     }
 
-    void setAndProcessBitmap(Frame.ROTATE rotation, boolean isExpectingFaceDetection) {
-        if (bitmap == null) {
+    public void analyze_library(View view) {
+        if (ingest != null) {
+            ingest.cancel();
+            ingestButton.setText(R.string.ingest_cancelling);
             return;
         }
 
-        switch (rotation) {
-            case BY_90_CCW:
-                bitmap = Frame.rotateImage(bitmap,-90);
-                break;
-            case BY_90_CW:
-                bitmap = Frame.rotateImage(bitmap,90);
-                break;
-            case BY_180:
-                bitmap = Frame.rotateImage(bitmap,180);
-                break;
-            default:
-                //keep bitmap as it is
+        File directory = getExternalFilesDir(null);
+        if (directory == null) { // external storage isn't mounted
+            directory = getFilesDir();
         }
-
-        frame = new Frame.BitmapFrame(bitmap, Frame.COLOR_FORMAT.UNKNOWN_TYPE);
-
-        detector = new PhotoDetector(this,1, Detector.FaceDetectorMode.LARGE_FACES );
-        detector.setDetectAllEmotions(true);
-        detector.setDetectAllExpressions(true);
-        detector.setDetectAllAppearances(true);
-        detector.setImageListener(this);
-
-        startDetector();
-        detector.process(frame);
-        stopDetector();
-
+        ingest = new ImageIngest(this, DETECTOR_CONFIG, new File(directory, INGEST_INDEX_FILE_NAME), this);
+        ingest.startMediaStore(MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+        ingestButton.setText(getString(R.string.ingest_progress, 0, 0));
     }
 
-    @SuppressWarnings("SuspiciousNameCombination")
-    Bitmap drawCanvas(int width, int height, PointF[] points, Frame frame, Paint circlePaint) {
-        if (width <= 0 || height <= 0) {
-            return null;
+    @Override
+    public void onIngestProgress(int doneCount, int totalCount) {
+        if (ingest != null) {
+            ingestButton.setText(getString(R.string.ingest_progress, doneCount, totalCount));
         }
+    }
 
-        Bitmap blackBitmap = Bitmap.createBitmap(width,height, Bitmap.Config.ARGB_8888);
-        blackBitmap.eraseColor(Color.BLACK);
-        Canvas c = new Canvas(blackBitmap);
-
-        Frame.ROTATE frameRot = frame.getTargetRotation();
-        Bitmap bitmap;
-
-        int frameWidth = frame.getWidth();
-        int frameHeight = frame.getHeight();
-        int canvasWidth = c.getWidth();
-        int canvasHeight = c.getHeight();
-        int scaledWidth;
-        int scaledHeight;
-        int topOffset = 0;
-        int leftOffset= 0;
-        float radius = (float)canvasWidth/100f;
-
-        if (frame instanceof Frame.BitmapFrame) {
-            bitmap = ((Frame.BitmapFrame)frame).getBitmap();
-        } else { //frame is ByteArrayFrame
-            byte[] pixels = ((Frame.ByteArrayFrame)frame).getByteArray();
-            ByteBuffer buffer = ByteBuffer.wrap(pixels);
-            bitmap = Bitmap.createBitmap(frameWidth, frameHeight, Bitmap.Config.ARGB_8888);
-            bitmap.copyPixelsFromBuffer(buffer);
+    @Override
+    public void onIngestFinished(int doneCount, int failedCount, boolean isCancelled, IOException error) {
+        ingest = null;
+        ingestButton.setText(R.string.analyze_library);
+        if (error != null) {
+            Toast.makeText(this, getString(R.string.ingest_failed, error.getMessage()), Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(this, getString(R.string.ingest_finished, doneCount, failedCount), Toast.LENGTH_LONG).show();
         }
+    }
 
-        if (frameRot == Frame.ROTATE.BY_90_CCW || frameRot == Frame.ROTATE.BY_90_CW) {
-            int temp = frameWidth;
-            frameWidth = frameHeight;
-            frameHeight = temp;
+    /*
+        Shows the bitmap in its current rotation, and its results, detecting them first if need be.
+     */
+    void setAndProcessBitmap() {
+        if (bitmap == null) {
+            return;
         }
 
-        float frameAspectRatio = (float)frameWidth/(float)frameHeight;
-        float canvasAspectRatio = (float) canvasWidth/(float) canvasHeight;
-        if (frameAspectRatio > canvasAspectRatio) { //width should be the same
-            scaledWidth = canvasWidth;
-            scaledHeight = (int)((float)canvasWidth / frameAspectRatio);
-            topOffset = (canvasHeight - scaledHeight)/2;
-        } else { //height should be the same
-            scaledHeight = canvasHeight;
-            scaledWidth = (int) ((float)canvasHeight*frameAspectRatio);
-            leftOffset = (canvasWidth - scaledWidth)/2;
+        Frame.ROTATE rotation = getRotation();
+        imageView.setImage(bitmap, rotation);
+        List<DetectedFace> cachedFaces = resultCache.get(contentHash, rotation, DETECTOR_CONFIG);
+        if (cachedFaces != null) {
+            showResults(cachedFaces);
+            return;
+        }
+        imageView.setFacePoints(null); // shown with the old rotation's metrics until the results come back
+        if (!pendingRotations.add(rotation)) {
+            return;
         }
 
-        float scaling = (float)scaledWidth/(float)frame.getOriginalBitmapFrame().getWidth();
-
-        Matrix matrix = new Matrix();
-        matrix.postRotate((float)frameRot.toDouble());
-        Bitmap rotatedBitmap = Bitmap.createBitmap(bitmap,0,0,frameWidth,frameHeight,matrix,false);
-        c.drawBitmap(rotatedBitmap,null,new Rect(leftOffset,topOffset,leftOffset+scaledWidth,topOffset+scaledHeight),null);
-
-
-        if (points != null) {
-            //Save our own reference to the list of points, in case the previous reference is overwritten by the main thread.
-
-            for (PointF point : points) {
+        Frame.BitmapFrame frame = new Frame.BitmapFrame(bitmap, Frame.COLOR_FORMAT.UNKNOWN_TYPE);
+        frame.setTargetRotation(rotation);
 
-                //transform from the camera coordinates to our screen coordinates
-                //The camera preview is displayed as a mirror, so X pts have to be mirrored back.
-                float x = (point.x * scaling) + leftOffset;
-                float y = (point.y * scaling) + topOffset;
+        // results come back through onImageResults(), on the main thread
+        detectorSession.process(frame, DETECTOR_CONFIG, this);
+    }
 
-                c.drawCircle(x, y, radius, circlePaint);
+    /*
+        Returns the rotation which turns the bitmap the way it is shown: upright, then turned by the user.
+     */
+    Frame.ROTATE getRotation() {
+        int turns = quarterTurns;
+        for (int i = 0; i < CLOCKWISE_ROTATIONS.length; i++) {
+            if (CLOCKWISE_ROTATIONS[i] == bitmapOrientation) {
+                turns += i;
             }
         }
-
-        return blackBitmap;
+        return CLOCKWISE_ROTATIONS[turns % CLOCKWISE_ROTATIONS.length];
     }
 
     @Override
@@ -267,13 +239,17 @@ public class MainActivity extends Activity implements Detector.ImageListener {
 
             Uri imageUri = data.getData();
             try {
-                bitmap = MediaStore.Images.Media.getBitmap(getContentResolver(),imageUri);
+                BitmapDecoder.DecodedImage image = decoder.decode(imageUri, BitmapDecoder.DETECTION_SIZE);
+                if (image == null) {
+                    Toast.makeText(this,"Unable to open image.",Toast.LENGTH_LONG).show();
+                }
+                setImage(image);
 
             } catch (IOException e) {
                 Toast.makeText(this,"Unable to open image.",Toast.LENGTH_LONG).show();
             }
 
-            setAndProcessBitmap(Frame.ROTATE.NO_ROTATION, true);
+            setAndProcessBitmap();
 
         } else {
             Toast.makeText(this,"No image selected.",Toast.LENGTH_LONG).show();
@@ -281,44 +257,55 @@ public class MainActivity extends Activity implements Detector.ImageListener {
     }
 
     public void rotate_left(View view) {
-        setAndProcessBitmap(Frame.ROTATE.BY_90_CCW, true);
+        quarterTurns = (quarterTurns + 3) % 4;
+        setAndProcessBitmap();
     }
 
     public void rotate_right(View view) {
-        setAndProcessBitmap(Frame.ROTATE.BY_90_CW,true);
+        quarterTurns = (quarterTurns + 1) % 4;
+        setAndProcessBitmap();
     }
 
     @Override
     public void onImageResults(List<Face> faces, Frame image, float timestamp) {
+        if (((Frame.BitmapFrame) image).getBitmap() != bitmap) {
+            return; // a new image was opened while this one was being processed
+        }
+        pendingRotations.remove(image.getTargetRotation());
+        List<DetectedFace> detectedFaces = DetectedFace.fromFaces(faces, image);
+        if (detectedFaces != null) { // null if the detector couldn't be started, which may not happen next time
+            resultCache.put(contentHash, image.getTargetRotation(), DETECTOR_CONFIG, detectedFaces);
+        }
+        if (image.getTargetRotation() == getRotation()) {
+            showResults(detectedFaces);
+        }
+    }
 
+    private void showResults(List<DetectedFace> faces) {
         PointF[] points = null;
 
         if (faces != null && faces.size() > 0) {
-            Face face = faces.get(0);
+            DetectedFace face = faces.get(0);
             setMetricTextViewText(face);
-            points = face.getFacePoints();
+            points = face.points;
         } else {
             for (int n = 0; n < MetricsManager.getTotalNumMetrics(); n++) {
                 metricScoreTextViews[n].setText("---");
             }
         }
 
-        Paint circlePaint = new Paint();
-        circlePaint.setColor(Color.RED);
-        Bitmap imageBitmap = drawCanvas(imageView.getWidth(),imageView.getHeight(),points,image,circlePaint);
-        if (imageBitmap != null)
-            imageView.setImageBitmap(imageBitmap);
+        imageView.setFacePoints(points);
     }
 
-    private void setMetricTextViewText(Face face) {
+    private void setMetricTextViewText(DetectedFace face) {
         // set the text for all the numeric metrics (scored or measured)
         for (int n = 0; n < MetricsManager.getTotalNumNumericMetrics(); n++) {
-            metricScoreTextViews[n].setText(String.format("%.3f", getScore(n, face)));
+            metricScoreTextViews[n].setText(String.format("%.3f", face.scores[n]));
         }
 
         // set the text for the appearance metrics
         String textValue="";
-        switch (face.appearance.getGender()) {
+        switch (face.gender) {
             case UNKNOWN:
                 textValue = "unknown";
                 break;
@@ -331,7 +318,7 @@ public class MainActivity extends Activity implements Detector.ImageListener {
         }
         metricScoreTextViews[MetricsManager.GENDER].setText(textValue);
 
-        switch (face.appearance.getAge()) {
+        switch (face.age) {
             case AGE_UNKNOWN:
                 textValue = "unknown";
                 break;
@@ -359,7 +346,7 @@ public class MainActivity extends Activity implements Detector.ImageListener {
         }
         metricScoreTextViews[MetricsManager.AGE].setText(textValue);
 
-        switch (face.appearance.getEthnicity()) {
+        switch (face.ethnicity) {
             case UNKNOWN:
                 textValue = "unknown";
                 break;
@@ -381,118 +368,4 @@ public class MainActivity extends Activity implements Detector.ImageListener {
         }
         metricScoreTextViews[MetricsManager.ETHNICITY].setText(textValue);
     }
-
-    float getScore(int metricCode, Face face) {
-
-        float score;
-
-        switch (metricCode) {
-            case MetricsManager.ANGER:
-                score = face.emotions.getAnger();
-                break;
-            case MetricsManager.CONTEMPT:
-                score = face.emotions.getContempt();
-                break;
-            case MetricsManager.DISGUST:
-                score = face.emotions.getDisgust();
-                break;
-            case MetricsManager.FEAR:
-                score = face.emotions.getFear();
-                break;
-            case MetricsManager.JOY:
-                score = face.emotions.getJoy();
-                break;
-            case MetricsManager.SADNESS:
-                score = face.emotions.getSadness();
-                break;
-            case MetricsManager.SURPRISE:
-                score = face.emotions.getSurprise();
-                break;
-            case MetricsManager.ATTENTION:
-                score = face.expressions.getAttention();
-                break;
-            case MetricsManager.BROW_FURROW:
-                score = face.expressions.getBrowFurrow();
-                break;
-            case MetricsManager.BROW_RAISE:
-                score = face.expressions.getBrowRaise();
-                break;
-            case MetricsManager.CHEEK_RAISE:
-                score = face.expressions.getCheekRaise();
-                break;
-            case MetricsManager.CHIN_RAISE:
-                score = face.expressions.getChinRaise();
-                break;
-            case MetricsManager.DIMPLER:
-                score = face.expressions.getDimpler();
-                break;
-            case MetricsManager.ENGAGEMENT:
-                score = face.emotions.getEngagement();
-                break;
-            case MetricsManager.EYE_CLOSURE:
-                score = face.expressions.getEyeClosure();
-                break;
-            case MetricsManager.EYE_WIDEN:
-                score = face.expressions.getEyeWiden();
-                break;
-            case MetricsManager.INNER_BROW_RAISE:
-                score = face.expressions.getInnerBrowRaise();
-                break;
-            case MetricsManager.JAW_DROP:
-                score = face.expressions.getJawDrop();
-                break;
-            case MetricsManager.LID_TIGHTEN:
-                score = face.expressions.getLidTighten();
-                break;
-            case MetricsManager.LIP_DEPRESSOR:
-                score = face.expressions.getLipCornerDepressor();
-                break;
-            case MetricsManager.LIP_PRESS:
-                score = face.expressions.getLipPress();
-                break;
-            case MetricsManager.LIP_PUCKER:
-                score = face.expressions.getLipPucker();
-                break;
-            case MetricsManager.LIP_STRETCH:
-                score = face.expressions.getLipStretch();
-                break;
-            case MetricsManager.LIP_SUCK:
-                score = face.expressions.getLipSuck();
-                break;
-            case MetricsManager.MOUTH_OPEN:
-                score = face.expressions.getMouthOpen();
-                break;
-            case MetricsManager.NOSE_WRINKLE:
-                score = face.expressions.getNoseWrinkle();
-                break;
-            case MetricsManager.SMILE:
-                score = face.expressions.getSmile();
-                break;
-            case MetricsManager.SMIRK:
-                score = face.expressions.getSmirk();
-                break;
-            case MetricsManager.UPPER_LIP_RAISE:
-                score = face.expressions.getUpperLipRaise();
-                break;
-            case MetricsManager.VALENCE:
-                score = face.emotions.getValence();
-                break;
-            case MetricsManager.YAW:
-                score = face.measurements.orientation.getYaw();
-                break;
-            case MetricsManager.ROLL:
-                score = face.measurements.orientation.getRoll();
-                break;
-            case MetricsManager.PITCH:
-                score = face.measurements.orientation.getPitch();
-                break;
-            case MetricsManager.INTER_OCULAR_DISTANCE:
-                score = face.measurements.getInterocularDistance();
-                break;
-            default:
-                score = Float.NaN;
-                break;
-        }
-        return score;
-    }
 }
@@ -1,5 +1,7 @@
 package com.affectiva.imagedetectordemo;
 
+import com.affectiva.android.affdex.sdk.detector.Face;
+
 public class MetricsManager {
     //Emotions
     private static final int EMOTIONS_BASE = 0;
@@ -189,4 +191,121 @@ public class MetricsManager {
         }
         return toReturn;
     }
+
+    /**
+     * Returns the face's score for a numeric metric (see getTotalNumNumericMetrics()), or NaN for any other metric.
+     */
+    static float getScore(int metricCode, Face face) {
+
+        float score;
+
+        switch (metricCode) {
+            case ANGER:
+                score = face.emotions.getAnger();
+                break;
+            case CONTEMPT:
+                score = face.emotions.getContempt();
+                break;
+            case DISGUST:
+                score = face.emotions.getDisgust();
+                break;
+            case FEAR:
+                score = face.emotions.getFear();
+                break;
+            case JOY:
+                score = face.emotions.getJoy();
+                break;
+            case SADNESS:
+                score = face.emotions.getSadness();
+                break;
+            case SURPRISE:
+                score = face.emotions.getSurprise();
+                break;
+            case ATTENTION:
+                score = face.expressions.getAttention();
+                break;
+            case BROW_FURROW:
+                score = face.expressions.getBrowFurrow();
+                break;
+            case BROW_RAISE:
+                score = face.expressions.getBrowRaise();
+                break;
+            case CHEEK_RAISE:
+                score = face.expressions.getCheekRaise();
+                break;
+            case CHIN_RAISE:
+                score = face.expressions.getChinRaise();
+                break;
+            case DIMPLER:
+                score = face.expressions.getDimpler();
+                break;
+            case ENGAGEMENT:
+                score = face.emotions.getEngagement();
+                break;
+            case EYE_CLOSURE:
+                score = face.expressions.getEyeClosure();
+                break;
+            case EYE_WIDEN:
+                score = face.expressions.getEyeWiden();
+                break;
+            case INNER_BROW_RAISE:
+                score = face.expressions.getInnerBrowRaise();
+                break;
+            case JAW_DROP:
+                score = face.expressions.getJawDrop();
+                break;
+            case LID_TIGHTEN:
+                score = face.expressions.getLidTighten();
+                break;
+            case LIP_DEPRESSOR:
+                score = face.expressions.getLipCornerDepressor();
+                break;
+            case LIP_PRESS:
+                score = face.expressions.getLipPress();
+                break;
+            case LIP_PUCKER:
+                score = face.expressions.getLipPucker();
+                break;
+            case LIP_STRETCH:
+                score = face.expressions.getLipStretch();
+                break;
+            case LIP_SUCK:
+                score = face.expressions.getLipSuck();
+                break;
+            case MOUTH_OPEN:
+                score = face.expressions.getMouthOpen();
+                break;
+            case NOSE_WRINKLE:
+                score = face.expressions.getNoseWrinkle();
+                break;
+            case SMILE:
+                score = face.expressions.getSmile();
+                break;
+            case SMIRK:
+                score = face.expressions.getSmirk();
+                break;
+            case UPPER_LIP_RAISE:
+                score = face.expressions.getUpperLipRaise();
+                break;
+            case VALENCE:
+                score = face.emotions.getValence();
+                break;
+            case YAW:
+                score = face.measurements.orientation.getYaw();
+                break;
+            case ROLL:
+                score = face.measurements.orientation.getRoll();
+                break;
+            case PITCH:
+                score = face.measurements.orientation.getPitch();
+                break;
+            case INTER_OCULAR_DISTANCE:
+                score = face.measurements.getInterocularDistance();
+                break;
+            default:
+                score = Float.NaN;
+                break;
+        }
+        return score;
+    }
 }
@@ -0,0 +1,230 @@
+package com.affectiva.imagedetectordemo;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.Frame;
+import com.affectiva.android.affdex.sdk.detector.Detector;
+import com.affectiva.android.affdex.sdk.detector.Face;
+import com.affectiva.android.affdex.sdk.detector.PhotoDetector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs still images through PhotoDetectors on a background thread, without paying the detector's startup cost for
+ * each image.
+ *
+ * Images passed to process() are queued, and processed one at a time in the order they were submitted. The session
+ * keeps one started PhotoDetector per Config it has been asked for, so consecutive images (or the same image rotated)
+ * reuse an initialized detector. Once the queue has been empty for IDLE_TIMEOUT_MILLIS, the detectors are stopped and
+ * dropped to free their memory; the next image starts them again.
+ *
+ * Results are passed to each image's Detector.ImageListener on the looper given to the constructor, in submission
+ * order. If a detector couldn't be started, the listener gets null faces. process() may be called from any thread.
+ */
+class PhotoDetectorSession {
+
+    /**
+     * The settings of a PhotoDetector. Images processed with equal Configs share a detector.
+     */
+    static final class Config {
+        final int maxFaces;
+        final Detector.FaceDetectorMode faceMode;
+        final boolean detectAllEmotions;
+        final boolean detectAllExpressions;
+        final boolean detectAllAppearances;
+
+        Config(int maxFaces, Detector.FaceDetectorMode faceMode, boolean detectAllEmotions,
+               boolean detectAllExpressions, boolean detectAllAppearances) {
+            this.maxFaces = maxFaces;
+            this.faceMode = faceMode;
+            this.detectAllEmotions = detectAllEmotions;
+            this.detectAllExpressions = detectAllExpressions;
+            this.detectAllAppearances = detectAllAppearances;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Config)) {
+                return false;
+            }
+            Config other = (Config) o;
+            return maxFaces == other.maxFaces && faceMode == other.faceMode
+                    && detectAllEmotions == other.detectAllEmotions
+                    && detectAllExpressions == other.detectAllExpressions
+                    && detectAllAppearances == other.detectAllAppearances;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = maxFaces * 31 + faceMode.hashCode();
+            hash = hash * 8 + (detectAllEmotions ? 4 : 0) + (detectAllExpressions ? 2 : 0)
+                    + (detectAllAppearances ? 1 : 0);
+            return hash;
+        }
+    }
+
+    private static final String LOG_TAG = "PhotoDetectorSession";
+    // how long detectors are kept started after the queue empties
+    private static final long IDLE_TIMEOUT_MILLIS = 30000;
+
+    private final HandlerThread detectionThread;
+    private final DetectionHandler detectionHandler;
+    private boolean isClosed = false;
+
+    /**
+     * @param resultLooper the looper results are delivered on, such as the main looper
+     */
+    PhotoDetectorSession(Context context, Looper resultLooper) {
+        detectionThread = new HandlerThread("PhotoDetectorThread");
+        detectionThread.start();
+        detectionHandler = new DetectionHandler(context.getApplicationContext(), detectionThread.getLooper(),
+                new Handler(resultLooper));
+    }
+
+    /**
+     * Queues a frame for detection with the given settings.
+     */
+    synchronized void process(Frame frame, Config config, Detector.ImageListener listener) {
+        if (isClosed) {
+            throw new IllegalStateException("the session is closed");
+        }
+        Request request = new Request(frame, config, listener);
+        detectionHandler.sendMessage(detectionHandler.obtainMessage(DetectionHandler.PROCESS, request));
+    }
+
+    /**
+     * Stops the detectors and the background thread, once the images already queued have been processed.
+     */
+    synchronized void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        detectionHandler.sendMessage(detectionHandler.obtainMessage(DetectionHandler.QUIT));
+    }
+
+    private static class Request {
+        final Frame frame;
+        final Config config;
+        final Detector.ImageListener listener;
+
+        Request(Frame frame, Config config, Detector.ImageListener listener) {
+            this.frame = frame;
+            this.config = config;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * A handler for the PhotoDetectorThread, which owns the detectors.
+     */
+    private static class DetectionHandler extends Handler implements Detector.ImageListener {
+        static final int PROCESS = 0;
+        static final int IDLE = 1;
+        static final int QUIT = 2;
+
+        private final Context context;
+        private final Handler resultHandler;
+        private final Map<Config, PhotoDetector> detectors = new HashMap<>();
+        // the results of the frame being processed, set by onImageResults()
+        private List<Face> faces;
+        private float timestamp;
+
+        DetectionHandler(Context context, Looper looper, Handler resultHandler) {
+            super(looper);
+            this.context = context;
+            this.resultHandler = resultHandler;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case PROCESS:
+                    removeMessages(IDLE);
+                    process((Request) msg.obj);
+                    if (!hasMessages(PROCESS)) {
+                        sendEmptyMessageDelayed(IDLE, IDLE_TIMEOUT_MILLIS);
+                    }
+                    break;
+                case IDLE:
+                    Log.d(LOG_TAG, "idle, stopping " + detectors.size() + " detectors");
+                    stopDetectors();
+                    break;
+                case QUIT:
+                    removeMessages(IDLE);
+                    stopDetectors();
+                    getLooper().quit();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void process(final Request request) {
+            faces = null;
+            timestamp = 0;
+            PhotoDetector detector = getDetector(request.config);
+            if (detector != null) {
+                detector.process(request.frame); // calls onImageResults() before returning
+            }
+
+            // the SDK may reuse its list for the next frame, which this thread could be processing by the time the
+            // listener runs
+            final List<Face> results = faces != null ? new ArrayList<>(faces) : null;
+            final float resultTimestamp = timestamp;
+            resultHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    request.listener.onImageResults(results, request.frame, resultTimestamp);
+                }
+            });
+        }
+
+        /*
+            Returns the started detector for the config, starting one if need be, or null if it couldn't be started.
+         */
+        private PhotoDetector getDetector(Config config) {
+            PhotoDetector detector = detectors.get(config);
+            if (detector != null) {
+                return detector;
+            }
+
+            detector = new PhotoDetector(context, config.maxFaces, config.faceMode);
+            detector.setDetectAllEmotions(config.detectAllEmotions);
+            detector.setDetectAllExpressions(config.detectAllExpressions);
+            detector.setDetectAllAppearances(config.detectAllAppearances);
+            detector.setImageListener(this);
+            try {
+                detector.start();
+            } catch (IllegalStateException e) {
+                Log.e(LOG_TAG, "Unable to start a PhotoDetector: " + e.getMessage());
+                return null;
+            }
+            detectors.put(config, detector);
+            return detector;
+        }
+
+        private void stopDetectors() {
+            for (PhotoDetector detector : detectors.values()) {
+                if (detector.isRunning()) {
+                    detector.stop();
+                }
+            }
+            detectors.clear();
+        }
+
+        @Override
+        public void onImageResults(List<Face> faces, Frame image, float timestamp) {
+            this.faces = faces;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.affectiva.imagedetectordemo;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.PointF;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.affectiva.android.affdex.sdk.Frame;
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the faces found in images, so an image the detector has seen before (reopened, rotated back, or found again
+ * by a later ingest of the same library) doesn't have to be run through it again.
+ *
+ * Results are keyed by a hash of the image's content, the rotation it was detected in and the detector's Config.
+ * The content hash is an XXH64 hash of the bitmap's size and a grid of HASH_GRID_SIZE by HASH_GRID_SIZE pixels
+ * sampled from it, so it costs the same however large the bitmap is. Images which differ only between the sampled
+ * pixels share results, which is close enough for faces. Images decoded at the same size (see BitmapDecoder) hash the
+ * same wherever they were decoded.
+ *
+ * Every result is appended to a file as it is put, and the file's records are indexed by key when the cache is
+ * opened, so results outlive the process. The most recently used results are also kept in memory, in front of the
+ * file. The file holds (big endian):
+ * <pre>
+ * header:   int MAGIC, int VERSION, int scoreCount (MetricsManager's numeric metrics)
+ * records:  int length (of the rest of the record), long contentHash, int config, byte rotation (Frame.ROTATE
+ *           ordinal), byte faceCount, then for each face: float[scoreCount] scores, byte gender, byte age,
+ *           byte ethnicity (ordinals), byte pointCount, short[2 * pointCount] x, y points in quarter pixels of the
+ *           unrotated image
+ * </pre>
+ * A file from another version, or with a different number of metrics, is started over; a record cut short (by the
+ * process dying as it was written) is dropped.
+ *
+ * There is one cache per process, from getInstance(), which all methods may be used on from any thread.
+ */
+class ResultCache {
+
+    private static final String LOG_TAG = "ResultCache";
+    private static final String FILE_NAME = "photo_results.cache";
+
+    private static final int MAGIC = 0x41465243; // "AFRC"
+    private static final int VERSION = 2; // 1 stored points in the rotated image's coordinates
+    private static final int HEADER_SIZE = 12;
+    private static final int RECORD_KEY_SIZE = 13; // contentHash, config, rotation
+    private static final int MAX_FACES_PER_RECORD = 255;
+    private static final float POINT_SCALE = 4;
+
+    // the results kept in memory, in images and rotations
+    private static final int MEMORY_CACHE_SIZE = 256;
+    // the content hash samples this many rows, and this many pixels from each
+    private static final int HASH_GRID_SIZE = 64;
+
+    // XXH64's primes
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    private static ResultCache instance;
+
+    private final int scoreCount = MetricsManager.getTotalNumNumericMetrics();
+    private final LruCache<Key, List<DetectedFace>> memoryCache = new LruCache<>(MEMORY_CACHE_SIZE);
+    private final Map<Key, Long> recordOffsets = new HashMap<>();
+    private FileChannel channel; // null if the file couldn't be opened or written: only the memory cache is used
+    private long fileEnd;
+
+    /**
+     * Returns the process's cache, opening it (and reading its file's index) the first time.
+     */
+    static synchronized ResultCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ResultCache(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+        }
+        return instance;
+    }
+
+    private ResultCache(File file) {
+        try {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            load();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to open " + file + ", results will only be cached in memory: " + e.getMessage());
+            closeFile();
+        }
+    }
+
+    /**
+     * Returns the faces found in the image with contentHash, turned by rotation, with a detector set up by config, or
+     * null if they aren't known.
+     */
+    synchronized List<DetectedFace> get(long contentHash, Frame.ROTATE rotation, PhotoDetectorSession.Config config) {
+        Key key = new Key(contentHash, config, rotation);
+        List<DetectedFace> faces = memoryCache.get(key);
+        if (faces != null || channel == null) {
+            return faces;
+        }
+        Long offset = recordOffsets.get(key);
+        if (offset == null) {
+            return null;
+        }
+
+        try {
+            faces = readRecord(offset);
+        } catch (IOException | RuntimeException e) {
+            Log.w(LOG_TAG, "Unable to read a cached result: " + e.getMessage());
+            recordOffsets.remove(key); // it will be written again when the image is processed
+            return null;
+        }
+        memoryCache.put(key, faces);
+        return faces;
+    }
+
+    /**
+     * Keeps the faces found in an image. Nothing in faces may be changed afterwards.
+     */
+    synchronized void put(long contentHash, Frame.ROTATE rotation, PhotoDetectorSession.Config config,
+                          List<DetectedFace> faces) {
+        Key key = new Key(contentHash, config, rotation);
+        memoryCache.put(key, faces);
+        if (channel == null || recordOffsets.containsKey(key)) {
+            return;
+        }
+
+        ByteBuffer record = writeRecord(key, faces);
+        try {
+            writeFully(record, fileEnd);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to write a result, results will only be cached in memory: " + e.getMessage());
+            closeFile();
+            return;
+        }
+        recordOffsets.put(key, fileEnd);
+        fileEnd += record.limit();
+    }
+
+    /**
+     * Returns a hash of the bitmap's content, to identify the image by.
+     */
+    static long hashContent(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int columns = Math.min(width, HASH_GRID_SIZE);
+        int rows = Math.min(height, HASH_GRID_SIZE);
+        ByteBuffer samples = ByteBuffer.allocate(8 + 4 * columns * rows).order(ByteOrder.LITTLE_ENDIAN);
+        samples.putInt(width).putInt(height);
+
+        int[] row = new int[width];
+        for (int r = 0; r < rows; r++) {
+            // the middle of each cell of the grid
+            bitmap.getPixels(row, 0, width, 0, (2 * r + 1) * height / (2 * rows), width, 1);
+            for (int c = 0; c < columns; c++) {
+                samples.putInt(row[(2 * c + 1) * width / (2 * columns)]);
+            }
+        }
+        samples.flip();
+        return xxHash64(samples, 0);
+    }
+
+    /*
+        XXH64 of the bytes remaining in a little endian buffer.
+     */
+    static long xxHash64(ByteBuffer input, long seed) {
+        int position = input.position();
+        int end = input.limit();
+        long hash;
+
+        if (end - position >= 32) {
+            long v1 = seed + PRIME64_1 + PRIME64_2;
+            long v2 = seed + PRIME64_2;
+            long v3 = seed;
+            long v4 = seed - PRIME64_1;
+            do {
+                v1 = xxRound(v1, input.getLong(position));
+                v2 = xxRound(v2, input.getLong(position + 8));
+                v3 = xxRound(v3, input.getLong(position + 16));
+                v4 = xxRound(v4, input.getLong(position + 24));
+                position += 32;
+            } while (end - position >= 32);
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12)
+                    + Long.rotateLeft(v4, 18);
+            hash = xxMergeRound(hash, v1);
+            hash = xxMergeRound(hash, v2);
+            hash = xxMergeRound(hash, v3);
+            hash = xxMergeRound(hash, v4);
+        } else {
+            hash = seed + PRIME64_5;
+        }
+        hash += end - input.position();
+
+        for (; end - position >= 8; position += 8) {
+            hash ^= xxRound(0, input.getLong(position));
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+        }
+        if (end - position >= 4) {
+            hash ^= (input.getInt(position) & 0xFFFFFFFFL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+            position += 4;
+        }
+        for (; position < end; position++) {
+            hash ^= (input.get(position) & 0xFF) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long xxRound(long accumulator, long lane) {
+        accumulator += lane * PRIME64_2;
+        return Long.rotateLeft(accumulator, 31) * PRIME64_1;
+    }
+
+    private static long xxMergeRound(long accumulator, long value) {
+        accumulator ^= xxRound(0, value);
+        return accumulator * PRIME64_1 + PRIME64_4;
+    }
+
+    /*
+        Indexes the file's records, or starts the file over if it is empty or can't be read by this version.
+     */
+    private void load() throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (size < HEADER_SIZE || channel.read(header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC
+                || header.getInt(4) != VERSION || header.getInt(8) != scoreCount) {
+            if (size > 0) {
+                Log.i(LOG_TAG, "Starting over a result cache from another version");
+            }
+            channel.truncate(0);
+            header.clear();
+            header.putInt(MAGIC).putInt(VERSION).putInt(scoreCount);
+            header.flip();
+            writeFully(header, 0);
+            fileEnd = HEADER_SIZE;
+            return;
+        }
+
+        // only each record's key is read; the rest is read when the record is asked for
+        channel.position(HEADER_SIZE);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        long offset = HEADER_SIZE;
+        try {
+            while (offset + 4 <= size) {
+                int length = in.readInt();
+                if (length <= RECORD_KEY_SIZE || offset + 4 + length > size) {
+                    break;
+                }
+                Key key = new Key(in.readLong(), in.readInt(), in.readByte());
+                int skip = length - RECORD_KEY_SIZE;
+                while (skip > 0) {
+                    int skipped = in.skipBytes(skip);
+                    if (skipped <= 0) {
+                        throw new EOFException();
+                    }
+                    skip -= skipped;
+                }
+                recordOffsets.put(key, offset);
+                offset += 4 + length;
+            }
+        } catch (EOFException e) {
+            // the file is shorter than it was when size was read; whatever is past offset is dropped below
+        }
+
+        if (offset < size) {
+            Log.w(LOG_TAG, "Dropping " + (size - offset) + " bytes from the end of the result cache");
+            channel.truncate(offset);
+        }
+        fileEnd = offset;
+        Log.d(LOG_TAG, "opened with " + recordOffsets.size() + " results");
+    }
+
+    private List<DetectedFace> readRecord(long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(length, offset);
+        ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+        readFully(record, offset + 4);
+        record.position(RECORD_KEY_SIZE);
+
+        int faceCount = record.get() & 0xFF;
+        List<DetectedFace> faces = new ArrayList<>(faceCount);
+        for (int i = 0; i < faceCount; i++) {
+            float[] scores = new float[scoreCount];
+            for (int n = 0; n < scoreCount; n++) {
+                scores[n] = record.getFloat();
+            }
+            Face.GENDER gender = Face.GENDER.values()[record.get()];
+            Face.AGE age = Face.AGE.values()[record.get()];
+            Face.ETHNICITY ethnicity = Face.ETHNICITY.values()[record.get()];
+            PointF[] points = new PointF[record.get() & 0xFF];
+            for (int p = 0; p < points.length; p++) {
+                points[p] = new PointF(record.getShort() / POINT_SCALE, record.getShort() / POINT_SCALE);
+            }
+            faces.add(new DetectedFace(scores, gender, age, ethnicity, points));
+        }
+        return faces;
+    }
+
+    private ByteBuffer writeRecord(Key key, List<DetectedFace> faces) {
+        int faceCount = Math.min(faces.size(), MAX_FACES_PER_RECORD);
+        int length = RECORD_KEY_SIZE + 1;
+        for (int i = 0; i < faceCount; i++) {
+            length += 4 * scoreCount + 4 + 4 * Math.min(faces.get(i).points.length, 255);
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(4 + length);
+        record.putInt(length);
+        record.putLong(key.contentHash).putInt(key.config).put((byte) key.rotation);
+        record.put((byte) faceCount);
+        for (int i = 0; i < faceCount; i++) {
+            DetectedFace face = faces.get(i);
+            for (int n = 0; n < scoreCount; n++) {
+                record.putFloat(face.scores[n]);
+            }
+            record.put((byte) face.gender.ordinal()).put((byte) face.age.ordinal())
+                    .put((byte) face.ethnicity.ordinal());
+            int pointCount = Math.min(face.points.length, 255);
+            record.put((byte) pointCount);
+            for (int p = 0; p < pointCount; p++) {
+                record.putShort(toQuarterPixels(face.points[p].x)).putShort(toQuarterPixels(face.points[p].y));
+            }
+        }
+        record.flip();
+        return record;
+    }
+
+    private static short toQuarterPixels(float coordinate) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(coordinate * POINT_SCALE)));
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("the result cache is shorter than its index");
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void closeFile() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing more to do
+            }
+            channel = null;
+        }
+        recordOffsets.clear();
+    }
+
+    private static final class Key {
+        final long contentHash;
+        final int config;
+        final int rotation;
+
+        Key(long contentHash, PhotoDetectorSession.Config config, Frame.ROTATE rotation) {
+            this(contentHash, encodeConfig(config), rotation.ordinal());
+        }
+
+        Key(long contentHash, int config, int rotation) {
+            this.contentHash = contentHash;
+            this.config = config;
+            this.rotation = rotation;
+        }
+
+        /*
+            Packs a Config into an int, which unlike its hashCode() is different for every Config.
+         */
+        private static int encodeConfig(PhotoDetectorSession.Config config) {
+            return config.maxFaces << 8 | config.faceMode.ordinal() << 3 | (config.detectAllEmotions ? 4 : 0)
+                    | (config.detectAllExpressions ? 2 : 0) | (config.detectAllAppearances ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return contentHash == other.contentHash && config == other.config && rotation == other.rotation;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (contentHash ^ (contentHash >>> 32)) * 31 + config * 4 + rotation;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.affectiva.android.affdex.sdk.samples.serviceframedetector;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.Camera.CameraInfo;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Display;
+import android.view.OrientationEventListener;
+import android.view.Surface;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+import java.util.Collections;
+
+/**
+ * A camera2 counterpart to CameraHelper, for devices which have it. Frames come from an ImageReader in YUV_420_888;
+ * since camera2 needs no preview surface, the capture session has the ImageReader as its only output, and there is
+ * no dummy SurfaceTexture to feed.
+ *
+ * The ImageReader holds only MAX_IMAGES images, and acquireLatestImage() skips any the detector was too slow for.
+ * Each image is packed into a reused NV21 buffer (see Yuv420Converter) and handed straight back to the camera. As
+ * with CameraHelper, frames are delivered to the Listener on the thread which called acquire() (which must have a
+ * Looper), and the buffer is only valid until onFrameAvailable() returns. Each frame is passed on with the time its
+ * exposure started, from the image's sensor timestamp.
+ */
+@SuppressWarnings("deprecation")
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class Camera2Helper implements ImageReader.OnImageAvailableListener {
+    private static final String LOG_TAG = "Camera2Helper";
+    private static final float TARGET_FRAME_RATE = 30;
+    private static final int TARGET_HEIGHT = 480;
+    // one image being filled by the camera, and one being packed into the frame buffer
+    private static final int MAX_IMAGES = 2;
+
+    private final CameraManager cameraManager;
+    private final Display display;
+    private final CameraHelper.Listener listener;
+    private final OrientationHelper orientationHelper;
+    private int displayRotation;
+    private Frame.ROTATE frameRotation;
+
+    private Handler handler;
+    private CameraDevice camera;
+    private CameraCaptureSession session;
+    private ImageReader imageReader;
+    private Size streamSize;
+    private Range<Integer> frameRateRange;
+    private int sensorOrientation;
+    private boolean isFrontFacing;
+    private boolean isStartRequested = false;
+    private byte[] frameBuffer;
+    // how the stream's chroma planes are laid out, worked out from its first images
+    private Yuv420Converter.ChromaLayout chromaLayout;
+    // for converting sensor timestamps to System.nanoTime()
+    private boolean isTimestampRealtime;
+    private boolean hasTimestampOffset;
+    private long timestampOffsetNanos;
+
+    public Camera2Helper(@NonNull Context context, @NonNull Display display, @NonNull CameraHelper.Listener listener) {
+        if (!CameraHelper.checkPermission(context)) {
+            throw new IllegalStateException("app does not have camera permission");
+        }
+
+        cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        this.display = display;
+        this.listener = listener;
+        displayRotation = display.getRotation();
+        frameRotation = Frame.ROTATE.NO_ROTATION;
+        orientationHelper = new OrientationHelper(context);
+    }
+
+    /**
+     * Returns whether the cameras on this device are backed by a camera2 HAL. On LEGACY devices camera2 is only a
+     * translation layer over the old API, which just adds overhead. Must only be called from Lollipop on.
+     */
+    public static boolean isPreferred(@NonNull Context context) {
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            for (String id : manager.getCameraIdList()) {
+                Integer level = manager.getCameraCharacteristics(id).get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+                if (level == null || level == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (CameraAccessException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts opening the specified camera. Camera callbacks and frames are delivered on the calling thread.
+     *
+     * @param cameraToOpen one of {@link CameraInfo#CAMERA_FACING_BACK} or {@link CameraInfo#CAMERA_FACING_FRONT}
+     * @throws IllegalStateException if the device does not have a camera of the requested type, or it can't be opened
+     */
+    public void acquire(int cameraToOpen) {
+        if (Looper.myLooper() == null) {
+            throw new IllegalStateException("acquire must be called on a thread with a Looper");
+        }
+        handler = new Handler();
+        isFrontFacing = cameraToOpen == CameraInfo.CAMERA_FACING_FRONT;
+        int facing = isFrontFacing ? CameraCharacteristics.LENS_FACING_FRONT : CameraCharacteristics.LENS_FACING_BACK;
+
+        try {
+            String cameraId = null;
+            for (String id : cameraManager.getCameraIdList()) {
+                Integer lensFacing = cameraManager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+                if (lensFacing != null && lensFacing == facing) {
+                    cameraId = id;
+                    break;
+                }
+            }
+            if (cameraId == null) {
+                throw new IllegalStateException("This device does not have a camera of the requested type");
+            }
+
+            CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraId);
+            Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            sensorOrientation = orientation != null ? orientation : 0;
+            Integer timestampSource = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                    ? characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE) : null;
+            isTimestampRealtime = timestampSource != null
+                    && timestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+            hasTimestampOffset = false;
+            frameRateRange = findFrameRateRange(characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES));
+            streamSize = chooseStreamSize(characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP));
+            frameBuffer = new byte[Yuv420Converter.getNv21Size(streamSize.getWidth(), streamSize.getHeight())];
+            chromaLayout = Yuv420Converter.ChromaLayout.UNKNOWN;
+
+            imageReader = ImageReader.newInstance(streamSize.getWidth(), streamSize.getHeight(),
+                    ImageFormat.YUV_420_888, MAX_IMAGES);
+            imageReader.setOnImageAvailableListener(this, handler);
+            cameraManager.openCamera(cameraId, stateCallback, handler);
+        } catch (CameraAccessException | SecurityException e) {
+            release();
+            throw new IllegalStateException("Camera is unavailable: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Starts capturing, as soon as the camera has opened. Frames will be delivered to the listener.
+     */
+    public void start() {
+        Log.d(LOG_TAG, "Camera2Helper.start()");
+        if (imageReader == null) {
+            throw new IllegalStateException("acquire a camera before calling the start method");
+        }
+        if (!isStartRequested) {
+            isStartRequested = true;
+            setCameraDisplayOrientation();
+            orientationHelper.enable();
+            startSessionIfReady();
+        }
+    }
+
+    /**
+     * Stops capturing.
+     */
+    public void stop() {
+        Log.d(LOG_TAG, "Camera2Helper.stop()");
+        if (isStartRequested) {
+            isStartRequested = false;
+            orientationHelper.disable();
+            if (session != null) {
+                session.close();
+                session = null;
+            }
+        }
+    }
+
+    /**
+     * Releases the acquired camera
+     */
+    public void release() {
+        stop();
+        if (camera != null) {
+            camera.close();
+            camera = null;
+        }
+        if (imageReader != null) {
+            imageReader.close();
+            imageReader = null;
+        }
+    }
+
+    private final CameraDevice.StateCallback stateCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(@NonNull CameraDevice cameraDevice) {
+            if (imageReader == null) {
+                cameraDevice.close(); // released while opening
+                return;
+            }
+            camera = cameraDevice;
+            startSessionIfReady();
+        }
+
+        @Override
+        public void onDisconnected(@NonNull CameraDevice cameraDevice) {
+            Log.e(LOG_TAG, "Camera disconnected");
+            cameraDevice.close();
+            if (cameraDevice == camera) {
+                camera = null;
+                session = null;
+            }
+        }
+
+        @Override
+        public void onError(@NonNull CameraDevice cameraDevice, int error) {
+            Log.e(LOG_TAG, "Camera error " + error);
+            onDisconnected(cameraDevice);
+        }
+    };
+
+    private void startSessionIfReady() {
+        if (camera == null || !isStartRequested || session != null) {
+            return;
+        }
+        try {
+            camera.createCaptureSession(Collections.singletonList(imageReader.getSurface()),
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+                            if (camera == null || !isStartRequested) {
+                                cameraCaptureSession.close();
+                                return;
+                            }
+                            session = cameraCaptureSession;
+                            try {
+                                CaptureRequest.Builder builder = camera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                                builder.addTarget(imageReader.getSurface());
+                                if (frameRateRange != null) {
+                                    builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, frameRateRange);
+                                }
+                                session.setRepeatingRequest(builder.build(), null, null);
+                            } catch (CameraAccessException | IllegalStateException e) {
+                                Log.e(LOG_TAG, "Failed to start capturing: " + e.getMessage());
+                            }
+                        }
+
+                        @Override
+                        public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
+                            Log.e(LOG_TAG, "Failed to configure the capture session");
+                        }
+                    }, handler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(LOG_TAG, "Failed to start capturing: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (image == null) {
+            return;
+        }
+        try {
+            if (isStartRequested) {
+                Image.Plane[] planes = image.getPlanes();
+                if (chromaLayout == Yuv420Converter.ChromaLayout.UNKNOWN) {
+                    chromaLayout = Yuv420Converter.detectChromaLayout(planes[1].getBuffer(), planes[2].getBuffer(),
+                            planes[2].getRowStride(), planes[2].getPixelStride(), image.getWidth(), image.getHeight());
+                }
+                Yuv420Converter.toNv21(planes[0].getBuffer(), planes[0].getRowStride(), planes[1].getBuffer(),
+                        planes[2].getBuffer(), planes[2].getRowStride(), planes[2].getPixelStride(),
+                        image.getWidth(), image.getHeight(), chromaLayout, frameBuffer);
+                listener.onFrameAvailable(frameBuffer, image.getWidth(), image.getHeight(), frameRotation,
+                        toNanoTime(image.getTimestamp()));
+            }
+        } finally {
+            image.close();
+        }
+    }
+
+    // Converts an Image timestamp to the System.nanoTime() clock. Where the sensor uses the elapsedRealtime() clock,
+    // the conversion is exact. Otherwise the sensor's clock has an unknown base, so it is aligned to the smallest
+    // difference seen between a frame's arrival and its timestamp: the spacing of frames is still the sensor's own,
+    // but the capture time comes out late by the camera's minimum delivery delay.
+    private long toNanoTime(long sensorTimestamp) {
+        long now = System.nanoTime();
+        if (isTimestampRealtime) {
+            return sensorTimestamp + now - SystemClock.elapsedRealtimeNanos();
+        }
+        long offset = now - sensorTimestamp;
+        if (!hasTimestampOffset || offset < timestampOffsetNanos) {
+            timestampOffsetNanos = offset;
+            hasTimestampOffset = true;
+        }
+        return sensorTimestamp + timestampOffsetNanos;
+    }
+
+    // Finds the smallest YUV stream at least TARGET_HEIGHT tall which can run at TARGET_FRAME_RATE (the tallest, if
+    // none is that tall): a larger frame only costs the detector time.
+    private static Size chooseStreamSize(StreamConfigurationMap map) {
+        long maxFrameDuration = (long) (1e9 / TARGET_FRAME_RATE);
+        Size best = null;
+        Size tallest = null;
+        for (Size size : map.getOutputSizes(ImageFormat.YUV_420_888)) {
+            if (map.getOutputMinFrameDuration(ImageFormat.YUV_420_888, size) > maxFrameDuration) {
+                continue;
+            }
+            if (tallest == null || size.getHeight() > tallest.getHeight()) {
+                tallest = size;
+            }
+            if (size.getHeight() >= TARGET_HEIGHT && (best == null || size.getHeight() < best.getHeight()
+                    || (size.getHeight() == best.getHeight() && size.getWidth() < best.getWidth()))) {
+                best = size;
+            }
+        }
+        if (best == null && tallest == null) {
+            throw new IllegalStateException("The camera has no YUV stream size which can run at the target frame rate");
+        }
+        return best != null ? best : tallest;
+    }
+
+    // Finds the range with the maximum closest to TARGET_FRAME_RATE, as CameraHelper does
+    private static Range<Integer> findFrameRateRange(Range<Integer>[] ranges) {
+        if (ranges == null || ranges.length <= 1) {
+            return null; // no options or only one option: no need to set anything.
+        }
+
+        Range<Integer> optimalRange = null;
+        float minDiff = Float.MAX_VALUE;
+        for (Range<Integer> range : ranges) {
+            float currentDiff = Math.abs(range.getUpper() - TARGET_FRAME_RATE);
+            if (optimalRange == null || currentDiff <= minDiff) {
+                optimalRange = range;
+                minDiff = currentDiff;
+            }
+        }
+        return optimalRange;
+    }
+
+    // Works out how frames must be rotated to be upright, as CameraHelper.setCameraDisplayOrientation() does.
+    private void setCameraDisplayOrientation() {
+        int degrees = 0;
+        switch (displayRotation) {
+            case Surface.ROTATION_0:
+                degrees = 0;
+                break;
+            case Surface.ROTATION_90:
+                degrees = 90;
+                break;
+            case Surface.ROTATION_180:
+                degrees = 180;
+                break;
+            case Surface.ROTATION_270:
+                degrees = 270;
+                break;
+        }
+
+        int rotation = isFrontFacing ? (sensorOrientation + degrees) % 360 : (sensorOrientation - degrees + 360) % 360;
+        switch (rotation) {
+            case 90:
+                frameRotation = Frame.ROTATE.BY_90_CW;
+                break;
+            case 180:
+                frameRotation = Frame.ROTATE.BY_180;
+                break;
+            case 270:
+                frameRotation = Frame.ROTATE.BY_90_CCW;
+                break;
+            default:
+                frameRotation = Frame.ROTATE.NO_ROTATION;
+        }
+
+        listener.onFrameSizeSelected(streamSize.getWidth(), streamSize.getHeight(), frameRotation);
+    }
+
+    private class OrientationHelper extends OrientationEventListener {
+
+        private OrientationHelper(Context context) {
+            super(context);
+        }
+
+        // If you quickly rotate 180 degrees, Activity does not restart, so you need this orientation Listener.
+        @Override
+        public void onOrientationChanged(int orientation) {
+            // this is called on the main thread, so the change is applied on the camera's thread
+            if (display.getRotation() != displayRotation) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        displayRotation = display.getRotation();
+                        setCameraDisplayOrientation();
+                    }
+                });
+            }
+        }
+    }
+}
@@ -146,7 +146,7 @@ class CameraHelper {
             @Override
             public void onPreviewFrame(byte[] data, Camera camera) {
                 if (listener != null) {
-                    listener.onFrameAvailable(data, previewWidth, previewHeight, frameRotation);
+                    listener.onFrameAvailable(data, previewWidth, previewHeight, frameRotation, System.nanoTime());
                 }
                 setupPreviewWithCallbackBuffers();
             }
@@ -245,7 +245,11 @@ class CameraHelper {
     }
 
     public interface Listener {
-        void onFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation);
+        /**
+         * @param captureNanos when the frame was captured, on the System.nanoTime() clock: the sensor timestamp where
+         *                     the camera API provides one, the time the frame reached the app otherwise
+         */
+        void onFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation, long captureNanos);
 
         void onFrameSizeSelected(int width, int height, Frame.ROTATE rotation);
     }
@@ -349,7 +353,9 @@ class CameraHelper {
         @Override
         public void onPreviewFrame(@NonNull byte[] data, @NonNull Camera camera) {
             if (listener != null) {
-                listener.onFrameAvailable(data, previewWidth, previewHeight, frameRotation);
+                // preview callbacks carry no timestamp, and the dummy SurfaceTexture is never updated (there is no GL
+                // context to update it in), so the time the frame arrives is the closest we have to its capture
+                listener.onFrameAvailable(data, previewWidth, previewHeight, frameRotation, System.nanoTime());
             }
             // put the buffer back in the queue, so that it can be used again
             camera.addCallbackBuffer(data);
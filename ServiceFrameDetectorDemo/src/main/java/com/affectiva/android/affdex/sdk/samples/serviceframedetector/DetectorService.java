@@ -5,11 +5,12 @@ import android.content.Context;
 import android.content.Intent;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
-import android.os.SystemClock;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.view.Display;
@@ -20,21 +21,135 @@ import com.affectiva.android.affdex.sdk.Frame;
 import com.affectiva.android.affdex.sdk.detector.Face;
 import com.affectiva.android.affdex.sdk.detector.FrameDetector;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
 
 /**
  * Manages a background thread that connects to the front-facing camera and sends preview
  * frames to an Affdex FrameDetector.
+ *
+ * Clients bind to the service to receive the results, as compact records (see ResultRecords)
+ * delivered in batches.  Clients in the app's own process cast the binder to LocalBinder and
+ * subscribe a ResultsListener; clients in other processes use IDetectorService.  Binding doesn't
+ * start detection: records flow while the service is started.
+ *
+ * Every record is also written to a ResultRing in a memory-mapped file, which clients can read at
+ * their own pace instead of subscribing: in another process by mapping the descriptor from
+ * openResultRing(), in this one through LocalBinder.newResultRingReader().
  */
 public class DetectorService extends Service {
+    private static final String RESULT_RING_FILE = "result_ring";
+    private static final int RESULT_RING_SLOTS = 64; // a couple of seconds of frames
+
+    /**
+     * Receives batches of result records, on the detection thread.  records holds recordCount
+     * records, and is reused once onResults() returns, so copy out anything needed later.
+     */
+    public interface ResultsListener {
+        void onResults(float[] records, int recordCount);
+    }
+
+    /**
+     * The binder returned by onBind().  Being an IDetectorService.Stub, it serves remote clients
+     * too.
+     */
+    public static class LocalBinder extends IDetectorService.Stub {
+        private final ResultsPublisher publisher;
+        private final File ringFile;
+        private final ByteBuffer ringBuffer; // null if the ring couldn't be set up
+
+        private LocalBinder(ResultsPublisher publisher, File ringFile, @Nullable ByteBuffer ringBuffer) {
+            this.publisher = publisher;
+            this.ringFile = ringFile;
+            this.ringBuffer = ringBuffer;
+        }
+
+        /**
+         * Starts sending result records to listener, at most maxRecordsPerSecond of them (0 for a
+         * record per processed frame), in batches of batchSize records.  Subscribing an already
+         * subscribed listener replaces its settings.
+         */
+        public void subscribe(ResultsListener listener, float maxRecordsPerSecond, int batchSize) {
+            publisher.subscribe(listener, maxRecordsPerSecond, batchSize);
+        }
+
+        public void unsubscribe(ResultsListener listener) {
+            publisher.unsubscribe(listener);
+        }
+
+        @Override
+        public void subscribe(IDetectorResultsCallback callback, float maxRecordsPerSecond, int batchSize) {
+            publisher.subscribe(callback, maxRecordsPerSecond, batchSize);
+        }
+
+        @Override
+        public void unsubscribe(IDetectorResultsCallback callback) {
+            publisher.unsubscribe(callback);
+        }
+
+        /**
+         * Returns a reader of the service's ResultRing, sharing the service's mapping of it, or null
+         * if the ring couldn't be set up.
+         */
+        @Nullable
+        public ResultRing.Reader newResultRingReader() {
+            return ringBuffer != null ? new ResultRing.Reader(ringBuffer) : null;
+        }
+
+        @Override
+        public ParcelFileDescriptor openResultRing() {
+            if (ringBuffer == null) {
+                return null;
+            }
+            try {
+                return ParcelFileDescriptor.open(ringFile, ParcelFileDescriptor.MODE_READ_ONLY);
+            } catch (FileNotFoundException e) {
+                Log.w(DemoApplication.LOG_TAG, "couldn't open the result ring: " + e.getMessage());
+                return null;
+            }
+        }
+    }
 
     private HandlerThread detectionThread;
     private DetectionHandler detectionHandler;
+    private ResultsPublisher resultsPublisher;
+    private LocalBinder binder;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        File ringFile = new File(getCacheDir(), RESULT_RING_FILE);
+        ByteBuffer ringBuffer = null;
+        ResultRing.Writer ringWriter = null;
+        try {
+            ringBuffer = mapResultRing(ringFile, ResultRing.getBufferSize(RESULT_RING_SLOTS));
+            ringWriter = new ResultRing.Writer(ringBuffer, RESULT_RING_SLOTS);
+        } catch (IOException e) {
+            Log.w(DemoApplication.LOG_TAG, "couldn't set up the result ring: " + e.getMessage());
+        }
+        resultsPublisher = new ResultsPublisher(ringWriter);
+        binder = new LocalBinder(resultsPublisher, ringFile, ringBuffer);
+    }
+
+    private static ByteBuffer mapResultRing(File file, int size) throws IOException {
+        RandomAccessFile ringFile = new RandomAccessFile(file, "rw");
+        try {
+            ringFile.setLength(size);
+            return ringFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size); // outlives the file's closing
+        } finally {
+            ringFile.close();
+        }
+    }
 
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        return null; // binding support not implemented
+        return binder;
     }
 
     @Override
@@ -48,7 +163,7 @@ public class DetectorService extends Service {
             // fire up the background thread
             detectionThread = new DetectionThread();
             detectionThread.start();
-            detectionHandler = new DetectionHandler(getApplicationContext(), detectionThread);
+            detectionHandler = new DetectionHandler(getApplicationContext(), detectionThread, resultsPublisher);
             detectionHandler.sendStartMessage();
         }
 
@@ -67,6 +182,7 @@ public class DetectorService extends Service {
             } catch (InterruptedException ignored) {
             }
         }
+        resultsPublisher.close();
         super.onDestroy();
     }
 
@@ -84,24 +200,34 @@ public class DetectorService extends Service {
         private static final int START = 0;
         private static final int STOP = 1;
 
-        private CameraHelper cameraHelper;
+        private CameraHelper cameraHelper; // null if camera2Helper is used
+        private Camera2Helper camera2Helper; // null before Lollipop, or if camera2 is only emulated
         private FrameDetector frameDetector;
         private SurfaceTexture surfaceTexture;
         private DetectorListener listener;
+        private RegionOfInterestCropper cropper;
+        private ResultsPublisher resultsPublisher;
 
-        private DetectionHandler(Context context, HandlerThread detectionThread) {
+        private DetectionHandler(Context context, HandlerThread detectionThread, ResultsPublisher resultsPublisher) {
             // note: getLooper will block until the the thread's looper has been prepared
             super(detectionThread.getLooper());
 
             Display display = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
-            cameraHelper = new CameraHelper(context, display, new CameraHelperListener());
-            surfaceTexture = new SurfaceTexture(0); // a dummy texture
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && Camera2Helper.isPreferred(context)) {
+                camera2Helper = new Camera2Helper(context, display, new CameraHelperListener());
+            } else {
+                cameraHelper = new CameraHelper(context, display, new CameraHelperListener());
+                surfaceTexture = new SurfaceTexture(0); // a dummy texture
+            }
 
             // Set up the FrameDetector.  For the purposes of this sample app, we'll just request
             // listen for face events and request valence scores.
             frameDetector = new FrameDetector(context);
             frameDetector.setDetectValence(true);
-            listener = new DetectorListener(context);
+            // crop frames down to the region around the face, so each frame is cheaper to process
+            cropper = new RegionOfInterestCropper();
+            this.resultsPublisher = resultsPublisher;
+            listener = new DetectorListener(context, cropper, resultsPublisher);
             frameDetector.setImageListener(listener);
             frameDetector.setFaceListener(listener);
         }
@@ -132,9 +258,15 @@ public class DetectorService extends Service {
                     Log.d(DemoApplication.LOG_TAG, "starting background processing of frames");
                     try {
                         frameDetector.start();
-                        //noinspection deprecation
-                        cameraHelper.acquire(Camera.CameraInfo.CAMERA_FACING_FRONT);
-                        cameraHelper.start(surfaceTexture); // initiates previewing
+                        if (camera2Helper != null) {
+                            //noinspection deprecation
+                            camera2Helper.acquire(Camera.CameraInfo.CAMERA_FACING_FRONT);
+                            camera2Helper.start(); // starts capturing once the camera has opened
+                        } else {
+                            //noinspection deprecation
+                            cameraHelper.acquire(Camera.CameraInfo.CAMERA_FACING_FRONT);
+                            cameraHelper.start(surfaceTexture); // initiates previewing
+                        }
                     } catch (IllegalStateException e) {
                         Log.d(DemoApplication.LOG_TAG, "couldn't open camera: " + e.getMessage());
                         return;
@@ -142,9 +274,14 @@ public class DetectorService extends Service {
                     break;
                 case STOP:
                     Log.d(DemoApplication.LOG_TAG, "stopping background processing of frames");
-                    cameraHelper.stop(); // stops previewing
-                    cameraHelper.release();
+                    if (camera2Helper != null) {
+                        camera2Helper.release(); // stops capturing, and closes the camera
+                    } else {
+                        cameraHelper.stop(); // stops previewing
+                        cameraHelper.release();
+                    }
                     frameDetector.stop();
+                    resultsPublisher.flush();
 
                     Log.d(DemoApplication.LOG_TAG, "quitting detection thread");
                     ((HandlerThread) getLooper().getThread()).quit();
@@ -159,16 +296,24 @@ public class DetectorService extends Service {
          * A listener for CameraHelper callbacks
          */
         private class CameraHelperListener implements CameraHelper.Listener {
-            private static final float TIMESTAMP_DELTA = .01f;
+            // timestamps are seconds since the first frame's capture: small enough for a float to keep them precise
+            private boolean hasTimeBase = false;
+            private long timeBaseNanos;
             private float lastTimestamp = -1f;
 
             @Override
-            public void onFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation) {
+            public void onFrameAvailable(byte[] frame, int width, int height, Frame.ROTATE rotation, long captureNanos) {
                 Log.d(DemoApplication.LOG_TAG, "received frame");
-                float timeStamp = (float) SystemClock.elapsedRealtime() / 1000f;
-                if (timeStamp > (lastTimestamp + TIMESTAMP_DELTA)) {
+                if (!hasTimeBase) {
+                    timeBaseNanos = captureNanos;
+                    hasTimeBase = true;
+                }
+                float timeStamp = (captureNanos - timeBaseNanos) / 1e9f;
+                // FrameDetector needs increasing timestamps; frames are no longer dropped for arriving close together,
+                // since capture times don't carry the jitter of the callbacks
+                if (timeStamp > lastTimestamp) {
                     lastTimestamp = timeStamp;
-                    frameDetector.process(createFrameFromData(frame, width, height, rotation), timeStamp);
+                    frameDetector.process(cropper.crop(createFrameFromData(frame, width, height, rotation)), timeStamp);
                 }
             }
 
@@ -188,9 +333,13 @@ public class DetectorService extends Service {
          */
         private static class DetectorListener implements FrameDetector.ImageListener, FrameDetector.FaceListener {
             private Context context;
+            private RegionOfInterestCropper cropper;
+            private ResultsPublisher resultsPublisher;
 
-            private DetectorListener(Context context) {
+            private DetectorListener(Context context, RegionOfInterestCropper cropper, ResultsPublisher resultsPublisher) {
                 this.context = context;
+                this.cropper = cropper;
+                this.resultsPublisher = resultsPublisher;
             }
 
             @Override
@@ -204,7 +353,9 @@ public class DetectorService extends Service {
             }
 
             @Override
-            public void onImageResults(List<Face> faces, Frame frame, float v) {
+            public void onImageResults(List<Face> faces, Frame frame, float timestamp) {
+                cropper.mapResults(faces); // face points are now in full-frame coordinates
+                resultsPublisher.publish(timestamp, faces);
                 if (faces.size() > 0) {
                     Face face = faces.get(0);
                     Log.d(DemoApplication.LOG_TAG, "valence score = " + Float.toString(face.emotions.getValence()));
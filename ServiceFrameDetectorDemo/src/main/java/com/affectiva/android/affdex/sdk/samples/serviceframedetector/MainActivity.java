@@ -1,16 +1,20 @@
 package com.affectiva.android.affdex.sdk.samples.serviceframedetector;
 
 import android.Manifest;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.support.annotation.NonNull;
 import android.view.View;
 import android.widget.TextView;
 
 /**
  * The launch Activity for the app.  Handles camera permission request on Marshmallow+ and
- * provides a button to launch the second Activity.
+ * provides a button to launch the second Activity.  While started, it binds to DetectorService
+ * and shows the latest valence score.
  *
  * See the README.md file at the root of the ServiceFrameDetectorDemo module for more info on this
  * sample app.
@@ -18,13 +22,49 @@ import android.widget.TextView;
 public class MainActivity extends BaseActivity {
     private final static int CAMERA_PERMISSIONS_REQUEST_CODE = 0;
     private final static String[] CAMERA_PERMISSIONS_REQUEST = new String[]{Manifest.permission.CAMERA};
+    // the valence display needn't update any faster than this
+    private final static float RESULTS_PER_SECOND = 4;
     private boolean handleCameraPermissionGrant;
+    private TextView valenceView;
+    private DetectorService.LocalBinder detectorBinder;
+
+    private final ServiceConnection detectorConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            detectorBinder = (DetectorService.LocalBinder) service;
+            detectorBinder.subscribe(resultsListener, RESULTS_PER_SECOND, 1);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            detectorBinder = null;
+        }
+    };
+
+    // called on the detection thread
+    private final DetectorService.ResultsListener resultsListener = new DetectorService.ResultsListener() {
+        @Override
+        public void onResults(float[] records, int recordCount) {
+            final float valence = records[(recordCount - 1) * ResultRecords.RECORD_SIZE + ResultRecords.VALENCE];
+            valenceView.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (Float.isNaN(valence)) {
+                        valenceView.setText(R.string.no_face);
+                    } else {
+                        valenceView.setText(getString(R.string.valence_format, valence));
+                    }
+                }
+            });
+        }
+    };
 
     @SuppressWarnings("ConstantConditions")
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        valenceView = (TextView) findViewById(R.id.valence);
 
         // on Marshmallow+, we have to ask for the camera permission the first time
         if (!CameraHelper.checkPermission(this) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
@@ -40,6 +80,23 @@ public class MainActivity extends BaseActivity {
         });
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart(); // starts DetectorService, via DemoApplication
+        // don't create the service by binding: it should run only while DemoApplication has it started
+        bindService(new Intent(this, DetectorService.class), detectorConnection, 0);
+    }
+
+    @Override
+    protected void onStop() {
+        if (detectorBinder != null) {
+            detectorBinder.unsubscribe(resultsListener);
+            detectorBinder = null;
+        }
+        unbindService(detectorConnection);
+        super.onStop();
+    }
+
     @SuppressWarnings("ConstantConditions")
     @Override
     protected void onResume() {
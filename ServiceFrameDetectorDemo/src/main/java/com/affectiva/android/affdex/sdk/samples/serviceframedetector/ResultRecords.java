@@ -0,0 +1,54 @@
+package com.affectiva.android.affdex.sdk.samples.serviceframedetector;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.util.List;
+
+/**
+ * The layout of the result records DetectorService sends to its subscribers.  A record is
+ * RECORD_SIZE floats describing one processed frame; a batch is a float array holding several
+ * records one after another, so reading field F of record i is records[i * RECORD_SIZE + F].
+ *
+ * A record describes the first face found in the frame.  When no face was found, FACE_COUNT is 0,
+ * FACE_ID is -1 and the remaining fields are NaN.
+ */
+public final class ResultRecords {
+    /** seconds since the first frame's capture */
+    public static final int TIMESTAMP = 0;
+    public static final int FACE_COUNT = 1;
+    public static final int FACE_ID = 2;
+    public static final int VALENCE = 3;
+    public static final int PITCH = 4;
+    public static final int YAW = 5;
+    public static final int ROLL = 6;
+    /** in pixels */
+    public static final int INTEROCULAR_DISTANCE = 7;
+
+    public static final int RECORD_SIZE = 8;
+
+    /** the largest batch a subscriber can ask for, which keeps each batch well within a binder transaction */
+    public static final int MAX_BATCH_SIZE = 256;
+
+    private ResultRecords() {
+    }
+
+    static void write(float[] record, float timestamp, List<Face> faces) {
+        record[TIMESTAMP] = timestamp;
+        record[FACE_COUNT] = faces.size();
+        if (faces.isEmpty()) {
+            record[FACE_ID] = -1;
+            for (int i = VALENCE; i < RECORD_SIZE; i++) {
+                record[i] = Float.NaN;
+            }
+            return;
+        }
+
+        Face face = faces.get(0);
+        record[FACE_ID] = face.getId();
+        record[VALENCE] = face.emotions.getValence();
+        record[PITCH] = face.measurements.orientation.getPitch();
+        record[YAW] = face.measurements.orientation.getYaw();
+        record[ROLL] = face.measurements.orientation.getRoll();
+        record[INTEROCULAR_DISTANCE] = face.measurements.getInterocularDistance();
+    }
+}
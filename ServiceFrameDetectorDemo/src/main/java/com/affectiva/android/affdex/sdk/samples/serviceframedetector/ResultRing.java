@@ -0,0 +1,255 @@
+package com.affectiva.android.affdex.sdk.samples.serviceframedetector;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A ring of result records in a buffer shared by one writer (DetectorService's detection thread)
+ * and any number of readers, which may be in other processes mapping the same file.  Readers never
+ * hold up the writer: a reader which falls more than a ring's worth behind loses the oldest records,
+ * and is told how many.
+ *
+ * Each slot holds a record (see ResultRecords) plus the face's points, and a sequence number used
+ * as a seqlock: the writer marks the slot odd while writing record n (2n + 1), and even once done
+ * (2n + 2), and then publishes n + 1 as the header's write sequence.  A reader copies a slot out
+ * and keeps the copy only if the slot's sequence was the expected even value both before and after.
+ *
+ * ByteBuffer accesses carry no ordering of their own, so the steps are separated by fence(), a
+ * volatile write and read, which keeps the buffer accesses on either side of it from being
+ * reordered across it.  Sequences are 8-byte aligned longs, so each is read and written whole.
+ *
+ * Only plain Java, so the ring can be checked on the JVM with a ByteBuffer.allocate() buffer.
+ */
+public final class ResultRing {
+    /** the most face points a slot holds, as x, y pairs */
+    public static final int MAX_FACE_POINTS = 34;
+
+    private static final int MAGIC = 0x41464452; // "AFDR"
+    private static final int VERSION = 1;
+
+    // header layout
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int SLOT_COUNT_OFFSET = 8;
+    private static final int SLOT_SIZE_OFFSET = 12;
+    private static final int WRITE_SEQUENCE_OFFSET = 16;
+    private static final int HEADER_SIZE = 24;
+
+    // slot layout
+    private static final int SLOT_SEQUENCE_OFFSET = 0;
+    private static final int POINT_COUNT_OFFSET = 8;
+    private static final int RECORD_OFFSET = 12;
+    private static final int POINTS_OFFSET = RECORD_OFFSET + 4 * ResultRecords.RECORD_SIZE;
+    private static final int SLOT_SIZE = (POINTS_OFFSET + 4 * 2 * MAX_FACE_POINTS + 7) & ~7;
+
+    private static volatile int fence;
+
+    private ResultRing() {
+    }
+
+    /**
+     * Returns the size of a buffer holding slotCount slots.
+     */
+    public static int getBufferSize(int slotCount) {
+        return HEADER_SIZE + slotCount * SLOT_SIZE;
+    }
+
+    /**
+     * Maps the ring in a file opened for reading, such as the one IDetectorService.openResultRing()
+     * returns, and returns a reader for it.  The mapping stays valid after the descriptor is closed.
+     */
+    public static Reader openReader(FileDescriptor fd) throws IOException {
+        FileInputStream in = new FileInputStream(fd);
+        FileChannel channel = in.getChannel();
+        return new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+
+    private static void fence() {
+        fence = 0;
+        //noinspection UnusedAssignment
+        int ignored = fence;
+    }
+
+    /**
+     * Writes records into the ring.  Only one writer may use a buffer, from one thread at a time.
+     */
+    static class Writer {
+        private final ByteBuffer buffer;
+        private final int slotCount;
+        private long writeSequence = 0;
+
+        /**
+         * Clears the buffer, which must hold getBufferSize(slotCount) bytes, and sets up an empty ring
+         * in it.
+         */
+        Writer(ByteBuffer buffer, int slotCount) {
+            if (buffer.capacity() < getBufferSize(slotCount)) {
+                throw new IllegalArgumentException("a ring of " + slotCount + " slots needs "
+                        + getBufferSize(slotCount) + " bytes, not " + buffer.capacity());
+            }
+            this.buffer = buffer.duplicate().order(ByteOrder.nativeOrder());
+            this.slotCount = slotCount;
+
+            // a reader still mapping an earlier ring sees the write sequence go back, and starts over
+            this.buffer.putLong(WRITE_SEQUENCE_OFFSET, 0);
+            fence();
+            for (int i = 0; i < slotCount; i++) {
+                this.buffer.putLong(HEADER_SIZE + i * SLOT_SIZE + SLOT_SEQUENCE_OFFSET, 0);
+            }
+            this.buffer.putInt(VERSION_OFFSET, VERSION);
+            this.buffer.putInt(SLOT_COUNT_OFFSET, slotCount);
+            this.buffer.putInt(SLOT_SIZE_OFFSET, SLOT_SIZE);
+            fence();
+            this.buffer.putInt(MAGIC_OFFSET, MAGIC);
+        }
+
+        /**
+         * Writes record (RECORD_SIZE floats) and the first pointCount points of points (x, y pairs)
+         * into the next slot, and publishes it.
+         */
+        void write(float[] record, float[] points, int pointCount) {
+            pointCount = Math.min(pointCount, MAX_FACE_POINTS);
+            int slot = HEADER_SIZE + (int) (writeSequence % slotCount) * SLOT_SIZE;
+
+            buffer.putLong(slot + SLOT_SEQUENCE_OFFSET, 2 * writeSequence + 1);
+            fence();
+            buffer.putInt(slot + POINT_COUNT_OFFSET, pointCount);
+            for (int i = 0; i < ResultRecords.RECORD_SIZE; i++) {
+                buffer.putFloat(slot + RECORD_OFFSET + 4 * i, record[i]);
+            }
+            for (int i = 0; i < 2 * pointCount; i++) {
+                buffer.putFloat(slot + POINTS_OFFSET + 4 * i, points[i]);
+            }
+            fence();
+            buffer.putLong(slot + SLOT_SEQUENCE_OFFSET, 2 * writeSequence + 2);
+            fence();
+            buffer.putLong(WRITE_SEQUENCE_OFFSET, ++writeSequence);
+        }
+    }
+
+    /**
+     * Reads records from the ring, in order, starting with the first one written after the reader
+     * was created.  Each reader keeps its own position; one reader must only be used from one
+     * thread at a time.
+     */
+    public static class Reader {
+        /** returned by read() when there is no record newer than the last one read */
+        public static final int NO_RECORD = -1;
+
+        // how often await() checks for a new record; well under a frame interval
+        private static final long POLL_INTERVAL_MILLIS = 5;
+
+        private final ByteBuffer buffer;
+        private final int slotCount;
+        private long nextSequence;
+        private long lostCount = 0;
+
+        /**
+         * Reads the ring in buffer, which a Writer has set up.
+         */
+        public Reader(ByteBuffer buffer) {
+            this.buffer = buffer.duplicate().order(ByteOrder.nativeOrder());
+            if (this.buffer.capacity() < HEADER_SIZE || this.buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+                throw new IllegalArgumentException("the buffer doesn't hold a result ring");
+            }
+            fence();
+            if (this.buffer.getInt(VERSION_OFFSET) != VERSION || this.buffer.getInt(SLOT_SIZE_OFFSET) != SLOT_SIZE) {
+                throw new IllegalArgumentException("the buffer holds a different version of result ring");
+            }
+            slotCount = this.buffer.getInt(SLOT_COUNT_OFFSET);
+            if (this.buffer.capacity() < getBufferSize(slotCount)) {
+                throw new IllegalArgumentException("the buffer is too small for its ring");
+            }
+            nextSequence = getWriteSequence();
+        }
+
+        /**
+         * Copies the next record into record (RECORD_SIZE floats) and its face points into points
+         * (2 * MAX_FACE_POINTS floats), and returns the number of points, or returns NO_RECORD if the
+         * writer hasn't published a newer record yet.  Records overwritten before they could be read
+         * are skipped, and counted by getLostCount().
+         */
+        public int read(float[] record, float[] points) {
+            while (true) {
+                long writeSequence = getWriteSequence();
+                if (writeSequence < nextSequence) {
+                    nextSequence = writeSequence; // the writer started a new ring
+                }
+                if (nextSequence == writeSequence) {
+                    return NO_RECORD;
+                }
+                if (writeSequence - nextSequence > slotCount) {
+                    skipTo(writeSequence - slotCount);
+                }
+
+                int slot = HEADER_SIZE + (int) (nextSequence % slotCount) * SLOT_SIZE;
+                long expected = 2 * nextSequence + 2;
+                if (buffer.getLong(slot + SLOT_SEQUENCE_OFFSET) == expected) {
+                    fence();
+                    int pointCount = Math.min(buffer.getInt(slot + POINT_COUNT_OFFSET), MAX_FACE_POINTS);
+                    for (int i = 0; i < ResultRecords.RECORD_SIZE; i++) {
+                        record[i] = buffer.getFloat(slot + RECORD_OFFSET + 4 * i);
+                    }
+                    for (int i = 0; i < 2 * pointCount; i++) {
+                        points[i] = buffer.getFloat(slot + POINTS_OFFSET + 4 * i);
+                    }
+                    fence();
+                    if (buffer.getLong(slot + SLOT_SEQUENCE_OFFSET) == expected) {
+                        nextSequence++;
+                        return pointCount;
+                    }
+                }
+
+                // the writer has moved on to this slot's next record: skip past the one it may be writing now
+                skipTo(Math.max(nextSequence + 1, getWriteSequence() - slotCount + 1));
+            }
+        }
+
+        /**
+         * Waits until read() has a record to return, or timeoutMillis has passed, and returns whether
+         * it has.  Nothing in shared memory can wake another process, so this polls.
+         */
+        public boolean await(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (getWriteSequence() == nextSequence) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                Thread.sleep(Math.min(remaining, POLL_INTERVAL_MILLIS));
+            }
+            return true;
+        }
+
+        /**
+         * Returns the sequence number of the next record read() will return: records are numbered
+         * from 0, as they are written.
+         */
+        public long getNextSequence() {
+            return nextSequence;
+        }
+
+        /**
+         * Returns the number of records this reader has missed, because the writer overwrote them
+         * before they were read.
+         */
+        public long getLostCount() {
+            return lostCount;
+        }
+
+        private long getWriteSequence() {
+            long writeSequence = buffer.getLong(WRITE_SEQUENCE_OFFSET);
+            fence();
+            return writeSequence;
+        }
+
+        private void skipTo(long sequence) {
+            lostCount += sequence - nextSequence;
+            nextSequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.affectiva.android.affdex.sdk.samples.serviceframedetector;
+
+import android.graphics.PointF;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hands a result record for each processed frame to DetectorService's subscribers.  Each
+ * subscription drops records to stay under its own rate, and collects the rest into its own batch
+ * buffer, which is delivered (and then reused) once full.  Remote subscribers are therefore called
+ * once per batch rather than once per frame; they are kept in a RemoteCallbackList, so a client
+ * process that dies is unsubscribed.
+ *
+ * Every record also goes into the ResultRing, if there is one, along with the face's points, for
+ * readers which would rather poll shared memory than be called.
+ *
+ * subscribe() and unsubscribe() may be called from any thread; publish() and flush() must be
+ * called from the detection thread, which is also the thread local listeners are called on.
+ */
+class ResultsPublisher {
+    private final RemoteCallbackList<IDetectorResultsCallback> remoteSubscriptions = new RemoteCallbackList<>();
+    private final List<LocalSubscription> localSubscriptions = new CopyOnWriteArrayList<>();
+    private final ResultRing.Writer ring; // null if the ring couldn't be set up
+    private final float[] record = new float[ResultRecords.RECORD_SIZE];
+    private final float[] points = new float[2 * ResultRing.MAX_FACE_POINTS];
+
+    ResultsPublisher(@Nullable ResultRing.Writer ring) {
+        this.ring = ring;
+    }
+
+    void subscribe(DetectorService.ResultsListener listener, float maxRecordsPerSecond, int batchSize) {
+        checkSettings(maxRecordsPerSecond, batchSize);
+        unsubscribe(listener);
+        localSubscriptions.add(new LocalSubscription(listener, maxRecordsPerSecond, batchSize));
+    }
+
+    void unsubscribe(DetectorService.ResultsListener listener) {
+        for (LocalSubscription subscription : localSubscriptions) {
+            if (subscription.listener == listener) {
+                localSubscriptions.remove(subscription);
+            }
+        }
+    }
+
+    void subscribe(IDetectorResultsCallback callback, float maxRecordsPerSecond, int batchSize) {
+        checkSettings(maxRecordsPerSecond, batchSize);
+        // registering a callback again would leave its old death link behind
+        remoteSubscriptions.unregister(callback);
+        remoteSubscriptions.register(callback, new RemoteSubscription(callback, maxRecordsPerSecond, batchSize));
+    }
+
+    void unsubscribe(IDetectorResultsCallback callback) {
+        remoteSubscriptions.unregister(callback);
+    }
+
+    /**
+     * Offers the record for a processed frame to every subscription.
+     */
+    void publish(float timestamp, List<Face> faces) {
+        ResultRecords.write(record, timestamp, faces);
+        if (ring != null) {
+            int pointCount = 0;
+            if (!faces.isEmpty()) {
+                PointF[] facePoints = faces.get(0).getFacePoints();
+                pointCount = Math.min(facePoints.length, ResultRing.MAX_FACE_POINTS);
+                for (int i = 0; i < pointCount; i++) {
+                    points[2 * i] = facePoints[i].x;
+                    points[2 * i + 1] = facePoints[i].y;
+                }
+            }
+            ring.write(record, points, pointCount);
+        }
+        for (LocalSubscription subscription : localSubscriptions) {
+            subscription.offer(record);
+        }
+        int count = remoteSubscriptions.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++) {
+                RemoteSubscription subscription = (RemoteSubscription) remoteSubscriptions.getBroadcastCookie(i);
+                if (!subscription.offer(record)) {
+                    remoteSubscriptions.unregister(subscription.callback);
+                }
+            }
+        } finally {
+            remoteSubscriptions.finishBroadcast();
+        }
+    }
+
+    /**
+     * Delivers any partly filled batches, for when detection stops.
+     */
+    void flush() {
+        for (LocalSubscription subscription : localSubscriptions) {
+            subscription.flush();
+        }
+        int count = remoteSubscriptions.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++) {
+                RemoteSubscription subscription = (RemoteSubscription) remoteSubscriptions.getBroadcastCookie(i);
+                if (!subscription.flush()) {
+                    remoteSubscriptions.unregister(subscription.callback);
+                }
+            }
+        } finally {
+            remoteSubscriptions.finishBroadcast();
+        }
+    }
+
+    /**
+     * Drops every subscription.
+     */
+    void close() {
+        localSubscriptions.clear();
+        remoteSubscriptions.kill();
+    }
+
+    private static void checkSettings(float maxRecordsPerSecond, int batchSize) {
+        if (!(maxRecordsPerSecond >= 0)) {
+            throw new IllegalArgumentException("maxRecordsPerSecond must be 0 or more, not " + maxRecordsPerSecond);
+        }
+        if (batchSize < 1 || batchSize > ResultRecords.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("batchSize must be between 1 and " + ResultRecords.MAX_BATCH_SIZE
+                    + ", not " + batchSize);
+        }
+    }
+
+    /**
+     * The throttling and batching state of one subscriber.  Only touched on the detection thread,
+     * once subscribed.
+     */
+    private static abstract class Subscription {
+        private final float minInterval; // seconds between records, 0 if not throttled
+        private final float[] batch;
+        private int count = 0;
+        private float nextDue = Float.NEGATIVE_INFINITY;
+
+        Subscription(float maxRecordsPerSecond, int batchSize) {
+            minInterval = maxRecordsPerSecond > 0 ? 1 / maxRecordsPerSecond : 0;
+            batch = new float[batchSize * ResultRecords.RECORD_SIZE];
+        }
+
+        /**
+         * Returns false if the subscriber could not be reached.
+         */
+        boolean offer(float[] record) {
+            float timestamp = record[ResultRecords.TIMESTAMP];
+            // the schedule advances by whole intervals, so accepting a frame a little early (frame times jitter)
+            // doesn't raise the rate; after a gap it restarts from the current frame, rather than catching up
+            if (timestamp < nextDue - minInterval / 4) {
+                return true;
+            }
+            nextDue = timestamp > nextDue + minInterval ? timestamp + minInterval : nextDue + minInterval;
+
+            System.arraycopy(record, 0, batch, count * ResultRecords.RECORD_SIZE, ResultRecords.RECORD_SIZE);
+            if (++count * ResultRecords.RECORD_SIZE == batch.length) {
+                return flush();
+            }
+            return true;
+        }
+
+        boolean flush() {
+            if (count == 0) {
+                return true;
+            }
+            int recordCount = count;
+            count = 0;
+            return deliver(batch, recordCount);
+        }
+
+        abstract boolean deliver(float[] records, int recordCount);
+    }
+
+    private static class LocalSubscription extends Subscription {
+        private final DetectorService.ResultsListener listener;
+
+        private LocalSubscription(DetectorService.ResultsListener listener, float maxRecordsPerSecond, int batchSize) {
+            super(maxRecordsPerSecond, batchSize);
+            this.listener = listener;
+        }
+
+        @Override
+        boolean deliver(float[] records, int recordCount) {
+            listener.onResults(records, recordCount);
+            return true;
+        }
+    }
+
+    private static class RemoteSubscription extends Subscription {
+        private final IDetectorResultsCallback callback;
+
+        private RemoteSubscription(IDetectorResultsCallback callback, float maxRecordsPerSecond, int batchSize) {
+            super(maxRecordsPerSecond, batchSize);
+            this.callback = callback;
+        }
+
+        @Override
+        boolean deliver(float[] records, int recordCount) {
+            try {
+                // a oneway call: this only waits for the batch to be copied into the transaction
+                callback.onResults(records, recordCount);
+                return true;
+            } catch (RemoteException e) {
+                Log.w(DemoApplication.LOG_TAG, "dropping a results subscriber: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+}
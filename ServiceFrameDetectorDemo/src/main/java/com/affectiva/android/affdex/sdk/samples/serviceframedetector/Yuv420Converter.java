@@ -0,0 +1,118 @@
+package com.affectiva.android.affdex.sdk.samples.serviceframedetector;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs the three planes of a YUV_420_888 image (as delivered by Camera2's ImageReader) into an NV21 array, which is
+ * what Frame.ByteArrayFrame takes.
+ *
+ * The Y plane is copied with one bulk get when its rows are unpadded, and one per row otherwise. Most devices back
+ * YUV_420_888 with an NV21 buffer, in which case the V plane (read from its start) already holds the interleaved
+ * V/U bytes, and it is copied in bulk as well. Any other layout is copied sample by sample.
+ *
+ * The layout doesn't change during a stream, so it is worked out once, by detectChromaLayout() on a few of the first
+ * images' bytes, and passed to toNv21() for every image after that.
+ *
+ * Only plain Java, so the packing can be checked on the JVM.
+ */
+class Yuv420Converter {
+
+    /**
+     * How a stream's U and V planes are laid out: UNKNOWN until an image has shown which of the others it is.
+     */
+    enum ChromaLayout {
+        UNKNOWN, NV21, OTHER
+    }
+
+    // the number of bytes detectChromaLayout() compares
+    private static final int CHROMA_SAMPLE_COUNT = 16;
+
+    private Yuv420Converter() {
+    }
+
+    /**
+     * Returns the size of an NV21 image of the given dimensions, in bytes.
+     */
+    static int getNv21Size(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Works out whether an image's V plane holds its chroma as NV21 expects it (V0 U0 V1 U1 ...), which is the case
+     * when the V plane, from its second byte on, is the U plane. The planes' bytes are compared at a few points
+     * spread over them; where the U samples are all alike, as in a black or flat image, this can't be told from U
+     * simply following V (NV12), and UNKNOWN is returned so a later image can decide. The positions of the buffers
+     * are the start of each plane, and are left unchanged.
+     */
+    static ChromaLayout detectChromaLayout(ByteBuffer uPlane, ByteBuffer vPlane, int uvRowStride, int uvPixelStride,
+                                           int width, int height) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaSize = 2 * chromaWidth * ((height + 1) / 2);
+        if (uvPixelStride != 2 || uvRowStride != 2 * chromaWidth || chromaSize < 4
+                || uPlane.remaining() < chromaSize - 1 || vPlane.remaining() < chromaSize - 1) {
+            return ChromaLayout.OTHER;
+        }
+
+        int uStart = uPlane.position();
+        int vStart = vPlane.position();
+        int step = Math.max(2, ((chromaSize - 4) / CHROMA_SAMPLE_COUNT) & ~1);
+        boolean isVaried = false;
+        for (int i = 0; i <= chromaSize - 4; i += step) {
+            byte u = uPlane.get(uStart + i);
+            if (vPlane.get(vStart + i + 1) != u) {
+                return ChromaLayout.OTHER;
+            }
+            isVaried |= uPlane.get(uStart + i + 2) != u;
+        }
+        return isVaried ? ChromaLayout.NV21 : ChromaLayout.UNKNOWN;
+    }
+
+    /**
+     * Writes the planes into nv21, which must hold at least getNv21Size(width, height) bytes. The positions of the
+     * buffers are the start of each plane, and are left unchanged.
+     *
+     * @param chromaLayout the stream's layout, from detectChromaLayout(): with NV21, the chroma is copied in bulk
+     */
+    static void toNv21(ByteBuffer yPlane, int yRowStride, ByteBuffer uPlane, ByteBuffer vPlane,
+                       int uvRowStride, int uvPixelStride, int width, int height, ChromaLayout chromaLayout,
+                       byte[] nv21) {
+        copyLuma(yPlane, yRowStride, width, height, nv21);
+
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int chromaSize = 2 * chromaWidth * chromaHeight;
+        int ySize = width * height;
+        if (chromaLayout == ChromaLayout.NV21) {
+            int vStart = vPlane.position();
+            vPlane.get(nv21, ySize, chromaSize - 1);
+            vPlane.position(vStart);
+            nv21[ySize + chromaSize - 1] = uPlane.get(uPlane.position() + chromaSize - 2); // the last U isn't in V
+            return;
+        }
+
+        int uStart = uPlane.position();
+        int vStart = vPlane.position();
+        int out = ySize;
+        for (int row = 0; row < chromaHeight; row++) {
+            int in = row * uvRowStride;
+            for (int col = 0; col < chromaWidth; col++) {
+                nv21[out++] = vPlane.get(vStart + in);
+                nv21[out++] = uPlane.get(uStart + in);
+                in += uvPixelStride;
+            }
+        }
+    }
+
+    private static void copyLuma(ByteBuffer yPlane, int yRowStride, int width, int height, byte[] nv21) {
+        int start = yPlane.position();
+        if (yRowStride == width) {
+            yPlane.get(nv21, 0, width * height);
+        } else {
+            for (int row = 0; row < height; row++) {
+                yPlane.position(start + row * yRowStride);
+                yPlane.get(nv21, row * width, width);
+            }
+        }
+        yPlane.position(start);
+    }
+}
@@ -0,0 +1,158 @@
+package com.affectiva.android.affdex.sdk.samples.serviceframedetector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the ring's seqlock protocol on a heap buffer, one record at a time, as a reader in
+ * another process would see it.
+ */
+public class ResultRingTest {
+    private static final int SLOT_COUNT = 4;
+
+    // the layout ResultRing uses: a header, then the slots, each starting with its sequence
+    private static final int HEADER_SIZE = ResultRing.getBufferSize(0);
+    private static final int SLOT_SIZE = ResultRing.getBufferSize(1) - HEADER_SIZE;
+
+    private ByteBuffer buffer;
+    private ResultRing.Writer writer;
+    private final float[] record = new float[ResultRecords.RECORD_SIZE];
+    private final float[] points = new float[2 * ResultRing.MAX_FACE_POINTS];
+
+    @Before
+    public void setUp() {
+        buffer = ByteBuffer.allocate(ResultRing.getBufferSize(SLOT_COUNT));
+        writer = new ResultRing.Writer(buffer, SLOT_COUNT);
+    }
+
+    @Test
+    public void readsRecordsInOrder() {
+        ResultRing.Reader reader = new ResultRing.Reader(buffer);
+        assertEquals(ResultRing.Reader.NO_RECORD, reader.read(record, points));
+
+        write(0, 2);
+        write(1, 0);
+        write(2, ResultRing.MAX_FACE_POINTS);
+
+        assertRead(reader, 0, 2);
+        assertRead(reader, 1, 0);
+        assertRead(reader, 2, ResultRing.MAX_FACE_POINTS);
+        assertEquals(ResultRing.Reader.NO_RECORD, reader.read(record, points));
+        assertEquals(3, reader.getNextSequence());
+        assertEquals(0, reader.getLostCount());
+    }
+
+    @Test
+    public void startsAfterRecordsWrittenBeforeIt() {
+        write(0, 1);
+        ResultRing.Reader reader = new ResultRing.Reader(buffer);
+        assertEquals(ResultRing.Reader.NO_RECORD, reader.read(record, points));
+
+        write(1, 1);
+        assertRead(reader, 1, 1);
+    }
+
+    @Test
+    public void skipsRecordsOverwrittenBeforeTheyWereRead() {
+        ResultRing.Reader reader = new ResultRing.Reader(buffer);
+        int writeCount = 3 * SLOT_COUNT + 1;
+        for (int n = 0; n < writeCount; n++) {
+            write(n, n % 3);
+        }
+
+        // only the last ring's worth is still there
+        for (int n = writeCount - SLOT_COUNT; n < writeCount; n++) {
+            assertRead(reader, n, n % 3);
+        }
+        assertEquals(writeCount - SLOT_COUNT, reader.getLostCount());
+        assertEquals(ResultRing.Reader.NO_RECORD, reader.read(record, points));
+    }
+
+    @Test
+    public void skipsASlotBeingWritten() {
+        ResultRing.Reader reader = new ResultRing.Reader(buffer);
+        write(0, 1);
+        write(1, 1);
+
+        // the writer has started record 0's slot again
+        setSlotSequence(0, 2 * SLOT_COUNT + 1);
+
+        assertRead(reader, 1, 1);
+        assertEquals(1, reader.getLostCount());
+    }
+
+    @Test
+    public void skipsASlotWhichChangedDuringTheCopy() {
+        ResultRing.Reader reader = new ResultRing.Reader(buffer);
+        write(0, 1);
+        write(1, 1);
+
+        // the writer has finished record 0's slot again, so what the reader copied isn't record 0
+        setSlotSequence(0, 2 * SLOT_COUNT + 2);
+
+        assertRead(reader, 1, 1);
+        assertEquals(1, reader.getLostCount());
+    }
+
+    @Test
+    public void startsOverWhenANewWriterTakesTheBuffer() {
+        ResultRing.Reader reader = new ResultRing.Reader(buffer);
+        for (int n = 0; n < 3; n++) {
+            write(n, 1);
+            assertRead(reader, n, 1);
+        }
+
+        writer = new ResultRing.Writer(buffer, SLOT_COUNT);
+        assertEquals(ResultRing.Reader.NO_RECORD, reader.read(record, points));
+        assertEquals(0, reader.getNextSequence());
+
+        write(100, 2);
+        assertRead(reader, 100, 2);
+        assertEquals(0, reader.getLostCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsABufferWithoutARing() {
+        new ResultRing.Reader(ByteBuffer.allocate(ResultRing.getBufferSize(SLOT_COUNT)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsABufferTooSmallForTheRing() {
+        new ResultRing.Writer(ByteBuffer.allocate(ResultRing.getBufferSize(SLOT_COUNT) - 1), SLOT_COUNT);
+    }
+
+    /*
+        Writes a record whose every field and point coordinate is derived from value, so a read
+        can tell which record it got.
+     */
+    private void write(int value, int pointCount) {
+        float[] writtenRecord = new float[ResultRecords.RECORD_SIZE];
+        for (int i = 0; i < writtenRecord.length; i++) {
+            writtenRecord[i] = value + i / 100f;
+        }
+        float[] writtenPoints = new float[2 * pointCount];
+        for (int i = 0; i < writtenPoints.length; i++) {
+            writtenPoints[i] = -value - i / 100f;
+        }
+        writer.write(writtenRecord, writtenPoints, pointCount);
+    }
+
+    private void assertRead(ResultRing.Reader reader, int value, int pointCount) {
+        assertEquals(pointCount, reader.read(record, points));
+        for (int i = 0; i < record.length; i++) {
+            assertEquals("record field " + i, value + i / 100f, record[i], 0f);
+        }
+        for (int i = 0; i < 2 * pointCount; i++) {
+            assertEquals("point coordinate " + i, -value - i / 100f, points[i], 0f);
+        }
+    }
+
+    private void setSlotSequence(int slot, long sequence) {
+        buffer.duplicate().order(ByteOrder.nativeOrder()).putLong(HEADER_SIZE + slot * SLOT_SIZE, sequence);
+    }
+}
@@ -0,0 +1,128 @@
+package com.affectiva.videodetectordemo;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A headless service which runs BatchVideoAnalyzer over a set of video files, for unattended (e.g. nightly) analysis.
+ *
+ * The videos are given either as a list of paths (EXTRA_VIDEO_PATHS) or as a directory whose video files should all
+ * be analyzed (EXTRA_VIDEO_DIRECTORY). Results are written as one CSV file per video into EXTRA_OUTPUT_DIRECTORY
+ * (by default, a "batch" directory in the app's external files directory). Progress and throughput are logged under
+ * the BatchVideoAnalyzer tag. Batches are queued and run one after another.
+ */
+public class BatchAnalysisService extends IntentService {
+
+    public static final String EXTRA_VIDEO_PATHS = "com.affectiva.videodetectordemo.extra.VIDEO_PATHS";
+    public static final String EXTRA_VIDEO_DIRECTORY = "com.affectiva.videodetectordemo.extra.VIDEO_DIRECTORY";
+    public static final String EXTRA_OUTPUT_DIRECTORY = "com.affectiva.videodetectordemo.extra.OUTPUT_DIRECTORY";
+    public static final String EXTRA_PARALLELISM = "com.affectiva.videodetectordemo.extra.PARALLELISM";
+
+    private static final String LOG_TAG = "BatchAnalysisService";
+    private static final String[] VIDEO_EXTENSIONS = {".mp4", ".3gp", ".mkv", ".webm"};
+    // each VideoFileDetector has a sizeable memory footprint, so don't run one per core on large devices
+    private static final int MAX_DEFAULT_PARALLELISM = 2;
+
+    private volatile BatchVideoAnalyzer analyzer;
+
+    public BatchAnalysisService() {
+        super("BatchAnalysisService");
+    }
+
+    /**
+     * Starts analyzing the video files in a directory.
+     */
+    public static void analyzeDirectory(Context context, File videoDirectory, File outputDirectory) {
+        Intent intent = new Intent(context, BatchAnalysisService.class);
+        intent.putExtra(EXTRA_VIDEO_DIRECTORY, videoDirectory.getAbsolutePath());
+        intent.putExtra(EXTRA_OUTPUT_DIRECTORY, outputDirectory.getAbsolutePath());
+        context.startService(intent);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        List<File> videos = getVideos(intent);
+        if (videos.isEmpty()) {
+            Log.w(LOG_TAG, "No videos to analyze");
+            return;
+        }
+
+        String outputPath = intent.getStringExtra(EXTRA_OUTPUT_DIRECTORY);
+        File outputDirectory = outputPath != null ? new File(outputPath) : new File(getExternalFilesDir(null), "batch");
+        int defaultParallelism = Math.min(MAX_DEFAULT_PARALLELISM, Runtime.getRuntime().availableProcessors());
+        int parallelism = Math.max(1, intent.getIntExtra(EXTRA_PARALLELISM, defaultParallelism));
+
+        analyzer = new BatchVideoAnalyzer(this, outputDirectory, parallelism);
+        try {
+            List<BatchVideoAnalyzer.VideoResult> results = analyzer.analyze(videos);
+            int failed = 0;
+            for (BatchVideoAnalyzer.VideoResult result : results) {
+                if (result.error != null) {
+                    failed += 1;
+                }
+            }
+            Log.i(LOG_TAG, String.format("Analyzed %d videos into %s (%d failed)", results.size(), outputDirectory, failed));
+        } catch (InterruptedException e) {
+            Log.w(LOG_TAG, "Batch analysis interrupted");
+        } catch (IllegalStateException e) {
+            Log.e(LOG_TAG, e.getMessage());
+        } finally {
+            analyzer = null;
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        BatchVideoAnalyzer running = analyzer;
+        if (running != null) {
+            running.cancel();
+        }
+        super.onDestroy();
+    }
+
+    private static List<File> getVideos(Intent intent) {
+        List<File> videos = new ArrayList<>();
+
+        String[] paths = intent.getStringArrayExtra(EXTRA_VIDEO_PATHS);
+        if (paths != null) {
+            for (String path : paths) {
+                videos.add(new File(path));
+            }
+        }
+
+        String directoryPath = intent.getStringExtra(EXTRA_VIDEO_DIRECTORY);
+        if (directoryPath != null) {
+            File[] files = new File(directoryPath).listFiles(new FileFilter() {
+                @Override
+                public boolean accept(File file) {
+                    return file.isFile() && isVideo(file.getName());
+                }
+            });
+            if (files == null) {
+                Log.e(LOG_TAG, "Unable to list " + directoryPath);
+            } else {
+                Arrays.sort(files);
+                videos.addAll(Arrays.asList(files));
+            }
+        }
+        return videos;
+    }
+
+    private static boolean isVideo(String name) {
+        String lowerCaseName = name.toLowerCase();
+        for (String extension : VIDEO_EXTENSIONS) {
+            if (lowerCaseName.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,302 @@
+package com.affectiva.videodetectordemo;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.Frame;
+import com.affectiva.android.affdex.sdk.detector.Detector;
+import com.affectiva.android.affdex.sdk.detector.Face;
+import com.affectiva.android.affdex.sdk.detector.VideoFileDetector;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Analyzes a list of video files without any UI, running a bounded number of VideoFileDetectors in parallel.
+ *
+ * The per-frame results of each video are streamed to a CSV file of the same name in the output directory (one row
+ * per face per processed frame: timestamp, face id, then every numeric metric), so memory use does not grow with the
+ * length of the videos. Progress and throughput are logged, and reported to an optional OnBatchProgressListener,
+ * from the worker threads.
+ */
+class BatchVideoAnalyzer {
+
+    interface OnBatchProgressListener {
+        /**
+         * Called on a worker thread when a video has been analyzed (or has failed, in which case error is not null).
+         */
+        void onVideoCompleted(VideoResult result, int videosCompleted, int videosTotal);
+    }
+
+    /**
+     * The outcome of analyzing one video.
+     */
+    static class VideoResult {
+        final File video;
+        final File output;
+        long framesProcessed;
+        long facesFound;
+        long elapsedMillis;
+        Exception error;
+
+        VideoResult(File video, File output) {
+            this.video = video;
+            this.output = output;
+        }
+    }
+
+    private static final String LOG_TAG = "BatchVideoAnalyzer";
+    private static final String OUTPUT_EXTENSION = ".csv";
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_FACES = 1;
+
+    private final Context context;
+    private final File outputDirectory;
+    private final int parallelism;
+    private OnBatchProgressListener listener;
+
+    private ExecutorService executor;
+    private final List<VideoTask> tasks = new ArrayList<>();
+    private final AtomicInteger videosCompleted = new AtomicInteger();
+    private final AtomicLong totalFramesProcessed = new AtomicLong();
+    private long batchStartTime;
+
+    /**
+     * @param parallelism the number of VideoFileDetectors to run at once. Each one holds its own copy of the detection
+     *                    models, so this is limited by memory as much as by the number of cores.
+     */
+    BatchVideoAnalyzer(Context context, File outputDirectory, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.context = context.getApplicationContext();
+        this.outputDirectory = outputDirectory;
+        this.parallelism = parallelism;
+    }
+
+    void setOnBatchProgressListener(OnBatchProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Analyzes the given videos, blocking until all of them are done or cancel() is called.
+     *
+     * @return a result for every video, in the order given
+     */
+    List<VideoResult> analyze(List<File> videos) throws InterruptedException {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IllegalStateException("Unable to create output directory " + outputDirectory);
+        }
+
+        synchronized (this) {
+            if (executor != null) {
+                throw new IllegalStateException("A batch is already running");
+            }
+            executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "BatchVideoAnalyzer-" + count.getAndIncrement());
+                }
+            });
+            tasks.clear();
+        }
+
+        videosCompleted.set(0);
+        totalFramesProcessed.set(0);
+        batchStartTime = SystemClock.elapsedRealtime();
+        Log.i(LOG_TAG, String.format("Analyzing %d videos, %d at a time", videos.size(), parallelism));
+
+        List<Future<VideoResult>> futures = new ArrayList<>(videos.size());
+        synchronized (this) {
+            for (File video : videos) {
+                VideoTask task = new VideoTask(video, videos.size());
+                tasks.add(task);
+                futures.add(executor.submit(task));
+            }
+        }
+        executor.shutdown();
+
+        List<VideoResult> results = new ArrayList<>(videos.size());
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    // VideoTask reports its own failures, so this is unexpected
+                    VideoResult result = new VideoResult(videos.get(i), null);
+                    result.error = e;
+                    results.add(result);
+                }
+            }
+        } catch (InterruptedException e) {
+            cancel(); // don't leave the detectors running with nobody waiting for them
+            throw e;
+        } finally {
+            synchronized (this) {
+                executor = null;
+            }
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - batchStartTime;
+        Log.i(LOG_TAG, String.format("Batch done: %d videos, %d frames in %.1fs (%.1f frames/s)", results.size(),
+                totalFramesProcessed.get(), elapsed / 1000f, framesPerSecond(totalFramesProcessed.get(), elapsed)));
+        return results;
+    }
+
+    /**
+     * Stops the videos being analyzed, and skips the ones not started yet. analyze() returns once the running
+     * detectors have stopped.
+     */
+    synchronized void cancel() {
+        if (executor != null) {
+            for (VideoTask task : tasks) {
+                task.cancelRequested = true;
+            }
+        }
+    }
+
+    private static float framesPerSecond(long frames, long millis) {
+        return millis == 0 ? 0 : 1000f * frames / millis;
+    }
+
+    /*
+        Writes the CSV header: timestamp, face id, and the lower case names of the numeric metrics.
+     */
+    private static void writeHeader(Writer writer) throws IOException {
+        writer.write("timestamp,face_id");
+        for (Metrics metric : FaceMetrics.NUMERIC_METRICS) {
+            writer.write(',');
+            writer.write(metric.getLowerCaseName());
+        }
+        writer.write('\n');
+    }
+
+    /**
+     * Analyzes one video on a worker thread. VideoFileDetector.start() processes the whole file before returning,
+     * calling onImageResults() for each frame on the same thread.
+     */
+    private class VideoTask implements Callable<VideoResult>, Detector.ImageListener {
+        private final File video;
+        private final int videosTotal;
+        private final StringBuilder row = new StringBuilder(512); // reused for every row
+        private final float[] values = new float[Metrics.ALL.length]; // reused for every face
+        private VideoFileDetector detector;
+        private Writer writer;
+        private VideoResult result;
+        private IOException writeError;
+        volatile boolean cancelRequested;
+
+        VideoTask(File video, int videosTotal) {
+            this.video = video;
+            this.videosTotal = videosTotal;
+        }
+
+        @Override
+        public VideoResult call() {
+            String name = video.getName();
+            int dot = name.lastIndexOf('.');
+            File output = new File(outputDirectory, (dot > 0 ? name.substring(0, dot) : name) + OUTPUT_EXTENSION);
+            result = new VideoResult(video, output);
+
+            if (cancelRequested) {
+                result.error = new InterruptedException("Batch cancelled");
+                return result;
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            try {
+                writer = new BufferedWriter(new FileWriter(output), OUTPUT_BUFFER_SIZE);
+                writeHeader(writer);
+
+                detector = new VideoFileDetector(context, video.getAbsolutePath(), MAX_FACES,
+                        Detector.FaceDetectorMode.LARGE_FACES);
+                detector.setDetectAllEmotions(true);
+                detector.setDetectAllExpressions(true);
+                detector.setImageListener(this);
+                try {
+                    detector.start();
+                } finally {
+                    if (detector.isRunning()) {
+                        detector.stop();
+                    }
+                }
+                if (writeError != null) {
+                    throw writeError;
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Failed to analyze " + video + ": " + e.getMessage());
+                result.error = e;
+            } finally {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        if (result.error == null) {
+                            result.error = e;
+                        }
+                    }
+                }
+                detector = null;
+                writer = null;
+            }
+            result.elapsedMillis = SystemClock.elapsedRealtime() - start;
+
+            int completed = videosCompleted.incrementAndGet();
+            long batchElapsed = SystemClock.elapsedRealtime() - batchStartTime;
+            Log.i(LOG_TAG, String.format("[%d/%d] %s: %d frames in %.1fs (%.1f frames/s); batch %.1f frames/s",
+                    completed, videosTotal, video.getName(), result.framesProcessed, result.elapsedMillis / 1000f,
+                    framesPerSecond(result.framesProcessed, result.elapsedMillis),
+                    framesPerSecond(totalFramesProcessed.get(), batchElapsed)));
+            if (listener != null) {
+                listener.onVideoCompleted(result, completed, videosTotal);
+            }
+            return result;
+        }
+
+        @Override
+        public void onImageResults(List<Face> faces, Frame frame, float timestamp) {
+            if (cancelRequested || writeError != null) {
+                detector.stop();
+                return;
+            }
+
+            result.framesProcessed += 1;
+            totalFramesProcessed.incrementAndGet();
+            if (faces == null) {
+                return;
+            }
+
+            try {
+                for (Face face : faces) {
+                    result.facesFound += 1;
+                    row.setLength(0);
+                    row.append(timestamp).append(',').append(face.getId());
+                    FaceMetrics.getValues(face, values);
+                    for (Metrics metric : FaceMetrics.NUMERIC_METRICS) {
+                        row.append(',').append(values[metric.ordinal()]);
+                    }
+                    row.append('\n');
+                    writer.append(row);
+                }
+            } catch (IOException e) {
+                writeError = e; // stop at the next frame, and report it from call()
+            }
+        }
+    }
+}
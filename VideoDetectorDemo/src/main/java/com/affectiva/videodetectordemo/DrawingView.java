@@ -8,32 +8,52 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PointF;
 import android.graphics.PorterDuff;
-import android.graphics.Rect;
-import android.os.SystemClock;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
 import com.affectiva.android.affdex.sdk.Frame;
 
-import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This is a sample app showing how to use VideoDetector
  */
-public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
-
-    //Inner Thread class
-    class DrawingThread extends Thread{
+public class DrawingView extends SurfaceView implements SurfaceHolder.Callback, FrameRenderer {
+
+    /**
+     * Draws on its own looper, and only when asked: each new frame (or surface change) schedules a single draw at the
+     * next vsync through the thread's Choreographer, so frames arriving faster than the display are coalesced and the
+     * thread sleeps in its looper while no new frame arrives, instead of redrawing the same one every 33 ms.
+     */
+    class DrawingThread extends HandlerThread implements Choreographer.FrameCallback {
         private SurfaceHolder mSurfaceHolder;
-        private boolean stopFlag = false; //boolean to indicate when thread has been told to stop
-        private Frame nextFrameToDraw = null;
-        private PointF[] nextPointsToDraw = null;
-        private final long drawPeriod = 33; //draw at 30 fps
+        private volatile boolean stopFlag = false; //boolean to indicate when thread has been told to stop
+        private volatile Frame nextFrameToDraw = null;
+        private volatile PointF[] nextPointsToDraw = null;
         Paint circlePaint;
+        private final FrameBitmapConverter bitmapConverter = new FrameBitmapConverter(); //reuses a bitmap per frame size
+        private final Matrix drawMatrix = new Matrix();
+        private final FrameViewport viewport = new FrameViewport(); //shared with GlDrawingView, so both place frames alike
+
+        private final AtomicBoolean isDrawScheduled = new AtomicBoolean(false);
+        private volatile Handler handler; //set once the looper is running
+        private Choreographer choreographer; //only used on this thread
+        private final Runnable postFrameCallback = new Runnable() {
+            @Override
+            public void run() {
+                //removing first makes this idempotent, should it be posted twice while the thread starts
+                choreographer.removeFrameCallback(DrawingThread.this);
+                choreographer.postFrameCallback(DrawingThread.this);
+            }
+        };
 
         public DrawingThread(SurfaceHolder surfaceHolder) {
+            super("DrawingThread", android.os.Process.THREAD_PRIORITY_BACKGROUND);
             mSurfaceHolder = surfaceHolder;
             circlePaint = new Paint();
             circlePaint.setColor(Color.rgb(255,0,0));
@@ -42,6 +62,7 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
 
         public void stopThread() {
             stopFlag = true;
+            quit(); //drops any scheduled draw
         }
 
         public boolean isStopped() {
@@ -52,102 +73,91 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
         public void updateFrameAndPoints(Frame frame, PointF[] points) {
             nextFrameToDraw = frame;
             nextPointsToDraw = points;
+            requestDraw();
         }
 
-        @Override
-        public void run() {
-            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        /**
+         * Schedules a draw at the next vsync, unless one is already pending. May be called from any thread.
+         */
+        void requestDraw() {
+            if (!stopFlag && isDrawScheduled.compareAndSet(false, true)) {
+                Handler h = handler;
+                if (h != null) {
+                    h.post(postFrameCallback);
+                } //else onLooperPrepared() sees the flag and schedules it
+            }
+        }
 
-            while(!stopFlag) {
-                long startTime = SystemClock.elapsedRealtime(); //get time at the start of thread loop
+        @Override
+        protected void onLooperPrepared() {
+            choreographer = Choreographer.getInstance();
+            handler = new Handler();
+            //draw once on a new surface, which holds nothing yet, and pick up any request made before we got here
+            isDrawScheduled.set(true);
+            postFrameCallback.run();
+        }
 
-                /**
-                 * We use SurfaceHolder.lockCanvas() to get the canvas that draws to the SurfaceView.
-                 * After we are done drawing, we let go of the canvas using SurfaceHolder.unlockCanvasAndPost()
-                 * **/
-                Canvas c = null;
-                try {
-                    c = mSurfaceHolder.lockCanvas();
+        @Override
+        public void run() {
+            super.run(); //returns once the looper has been quit
+            bitmapConverter.release();
+        }
 
-                    if (c!= null) {
-                        synchronized (mSurfaceHolder) {
-                            c.drawColor(Color.BLACK, PorterDuff.Mode.CLEAR); //clear previous dots
-                            if (nextFrameToDraw != null) {
-                                draw(c);
-                            }
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            //cleared before drawing, so that a frame arriving while we draw is drawn at the next vsync
+            isDrawScheduled.set(false);
+            if (stopFlag) {
+                return;
+            }
 
+            /**
+             * We use SurfaceHolder.lockCanvas() to get the canvas that draws to the SurfaceView.
+             * After we are done drawing, we let go of the canvas using SurfaceHolder.unlockCanvasAndPost()
+             * **/
+            Canvas c = null;
+            try {
+                c = mSurfaceHolder.lockCanvas();
 
+                if (c!= null) {
+                    synchronized (mSurfaceHolder) {
+                        c.drawColor(Color.BLACK, PorterDuff.Mode.CLEAR); //clear previous dots
+                        if (nextFrameToDraw != null) {
+                            draw(c);
                         }
                     }
                 }
-                finally {
-                    if (c!= null) {
-                        mSurfaceHolder.unlockCanvasAndPost(c);
-                    }
-                }
-
-                //send thread to sleep so we don't draw faster than the requested 'drawPeriod'.
-                long sleepTime = drawPeriod - (SystemClock.elapsedRealtime() - startTime);
-                try {
-                    if(sleepTime>0){
-                        this.sleep(sleepTime);
-                    }
-                } catch (InterruptedException ex) {
-                    Log.e(LOG_TAG, ex.getMessage());
+            }
+            finally {
+                if (c!= null) {
+                    mSurfaceHolder.unlockCanvasAndPost(c);
                 }
             }
-
         }
 
         void draw(Canvas c) {
             //get reference to frame on this thread
             Frame frame = nextFrameToDraw;
             Frame.ROTATE frameRot = frame.getTargetRotation();
-            Bitmap bitmap;
+            Bitmap bitmap = bitmapConverter.convert(frame);
+            if (bitmap == null) {
+                return; //unsupported color format
+            }
 
-            int frameWidth = frame.getWidth();
-            int frameHeight = frame.getHeight();
             int canvasWidth = c.getWidth();
-            int canvasHeight = c.getHeight();
-            int scaledWidth;
-            int scaledHeight;
-            int topOffset = 0;
-            int leftOffset= 0;
             float radius = (float)canvasWidth/100f;
+            viewport.update(frame.getWidth(), frame.getHeight(), frameRot.toDouble(), canvasWidth, c.getHeight());
 
-            if (frameRot == Frame.ROTATE.BY_90_CCW || frameRot == Frame.ROTATE.BY_90_CW) {
-                int temp = frameWidth;
-                frameWidth = frameHeight;
-                frameHeight = temp;
-            }
-
-            if (frame instanceof Frame.BitmapFrame) {
-                bitmap = ((Frame.BitmapFrame)frame).getBitmap();
-            } else { //frame is ByteArrayFrame
-                byte[] pixels = ((Frame.ByteArrayFrame)frame).getByteArray();
-                ByteBuffer buffer = ByteBuffer.wrap(pixels);
-                bitmap = Bitmap.createBitmap(frameWidth, frameHeight, Bitmap.Config.ARGB_8888);
-                bitmap.copyPixelsFromBuffer(buffer);
-            }
-
-            float frameAspectRatio = (float)frameWidth/(float)frameHeight;
-            float canvasAspectRatio = (float) canvasWidth/(float) canvasHeight;
-            if (frameAspectRatio > canvasAspectRatio) { //width should be the same
-                scaledWidth = canvasWidth;
-                scaledHeight = (int)((float)canvasWidth / frameAspectRatio);
-                topOffset = (canvasHeight - scaledHeight)/2;
-            } else { //height should be the same
-                scaledHeight = canvasHeight;
-                scaledWidth = (int) ((float)canvasHeight*frameAspectRatio);
-                leftOffset = (canvasWidth - scaledWidth)/2;
-            }
-
-            float scaling = (float)scaledWidth/(float)frameWidth;
-
-            Matrix matrix = new Matrix();
-            matrix.postRotate((float)frameRot.toDouble());
-            Bitmap rotatedBitmap = Bitmap.createBitmap(bitmap,0,0,frameWidth,frameHeight,matrix,false);
-            c.drawBitmap(rotatedBitmap,null,new Rect(leftOffset,topOffset,leftOffset+scaledWidth,topOffset+scaledHeight),null);
+            //rotate the unrotated bitmap about its center and scale it into place as it is drawn, rather than drawing
+            //a rotated copy
+            float scaling = viewport.getScale();
+            drawMatrix.reset();
+            drawMatrix.postTranslate(-viewport.getRawWidth() / 2f, -viewport.getRawHeight() / 2f);
+            drawMatrix.postRotate(viewport.getRotationDegrees());
+            drawMatrix.postScale(scaling, scaling);
+            drawMatrix.postTranslate(viewport.getLeft() + viewport.getWidth() / 2f,
+                    viewport.getTop() + viewport.getHeight() / 2f);
+            c.drawBitmap(bitmap, drawMatrix, null);
 
 
             if (nextPointsToDraw != null) {
@@ -159,8 +169,8 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
 
                     //transform from the camera coordinates to our screen coordinates
                     //The camera preview is displayed as a mirror, so X pts have to be mirrored back.
-                    float x = (points[i].x * scaling) + leftOffset;
-                    float y = (points[i].y * scaling) + topOffset;
+                    float x = viewport.toViewX(points[i].x);
+                    float y = viewport.toViewY(points[i].y);
 
                     c.drawCircle(x, y, radius, circlePaint);
                 }
@@ -205,6 +215,7 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
 
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        drawingThread.requestDraw(); //the frame has to be placed anew
     }
 
     @Override
@@ -222,6 +233,7 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
         }
     }
 
+    @Override
     public void drawFrame(Frame frame, PointF[] points) {
         drawingThread.updateFrameAndPoints(frame,points);
     }
@@ -0,0 +1,106 @@
+package com.affectiva.videodetectordemo;
+
+import android.graphics.Bitmap;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Gets frames into a Bitmap for drawing, without allocating a new bitmap for every frame.
+ *
+ * BitmapFrames are drawn from their own bitmap. The pixels of ByteArrayFrames are converted into a bitmap which is
+ * kept and reused for as long as the frame size stays the same: RGBA frames are copied into it directly, and NV21
+ * frames are converted to ARGB in a reused int array first. The bitmap is unrotated; rotation is left to whoever
+ * draws it.
+ *
+ * Every call converts the pixels again: a Frame object can be reused for new pixels, so whether it is the same object
+ * as last time says nothing about what it holds. DrawingView only draws when a new frame arrives, so this rarely
+ * converts the same pixels twice.
+ *
+ * Not thread safe: the returned bitmap is overwritten by the next call to convert().
+ */
+class FrameBitmapConverter {
+
+    private Bitmap bitmap;
+    private int[] argbPixels;
+
+    /**
+     * Returns a bitmap holding the frame's pixels, in the frame's own (unrotated) orientation, or null if the frame's
+     * color format isn't supported.
+     */
+    Bitmap convert(Frame frame) {
+        if (frame instanceof Frame.BitmapFrame) {
+            return ((Frame.BitmapFrame) frame).getBitmap();
+        }
+        if (!(frame instanceof Frame.ByteArrayFrame)) {
+            return null;
+        }
+
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        byte[] pixels = ((Frame.ByteArrayFrame) frame).getByteArray();
+        if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            argbPixels = null;
+        }
+
+        switch (frame.getColorFormat()) {
+            case RGBA:
+                bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels, 0, width * height * 4));
+                break;
+            case YUV_NV21:
+                if (argbPixels == null) {
+                    argbPixels = new int[width * height];
+                }
+                nv21ToArgb(pixels, width, height, argbPixels);
+                bitmap.setPixels(argbPixels, 0, width, 0, 0, width, height);
+                break;
+            default:
+                return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Releases the bitmap. The converter can still be used afterwards.
+     */
+    void release() {
+        if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+        }
+        argbPixels = null;
+    }
+
+    /**
+     * Converts an NV21 image (a full-resolution Y plane, followed by a half-resolution plane of interleaved V and U
+     * samples) to opaque ARGB pixels, using the BT.601 integer approximation. The width and height must be even.
+     */
+    static void nv21ToArgb(byte[] nv21, int width, int height, int[] argb) {
+        int frameSize = width * height;
+        for (int y = 0; y < height; y++) {
+            int uvRow = frameSize + (y >> 1) * width;
+            int index = y * width;
+            int v = 0;
+            int u = 0;
+            for (int x = 0; x < width; x++, index++) {
+                if ((x & 1) == 0) {
+                    v = (nv21[uvRow + x] & 0xff) - 128;
+                    u = (nv21[uvRow + x + 1] & 0xff) - 128;
+                }
+                int luma = Math.max((nv21[index] & 0xff) - 16, 0) * 1192;
+                int r = luma + 1634 * v;
+                int g = luma - 833 * v - 400 * u;
+                int b = luma + 2066 * u;
+                r = r < 0 ? 0 : (r > 262143 ? 262143 : r);
+                g = g < 0 ? 0 : (g > 262143 ? 262143 : g);
+                b = b < 0 ? 0 : (b > 262143 ? 262143 : b);
+                argb[index] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.affectiva.videodetectordemo;
+
+import android.graphics.PointF;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+/**
+ * A view which shows frames with the face points found in them drawn over them: DrawingView draws with a Canvas,
+ * GlDrawingView with OpenGL ES.
+ */
+interface FrameRenderer {
+
+    /**
+     * Shows a frame, replacing the previous one. Must be called on the main thread.
+     *
+     * @param points the face points, in the coordinates of the rotated frame (see FrameViewport), or null
+     */
+    void drawFrame(Frame frame, PointF[] points);
+}
@@ -0,0 +1,91 @@
+package com.affectiva.videodetectordemo;
+
+/**
+ * The GLSL sources used by GlDrawingView, and the color conversion constants its NV21 shader is given.
+ *
+ * NV21 frames are uploaded as two textures without any conversion on the CPU: the Y plane as a LUMINANCE texture,
+ * and the interleaved V/U plane as a half-size LUMINANCE_ALPHA texture, so that V is read from .r and U from .a. The
+ * shader converts with rgb = YUV_TO_RGB * (yuv + YUV_OFFSET); toRgb() does the same calculation in Java, so the
+ * constants can be checked on the JVM.
+ */
+class FrameShaders {
+
+    // BT.601, limited ("video") range: Y in [16, 235], U and V in [16, 240], all scaled to [0, 1] by the texture unit
+    static final float[] YUV_OFFSET = {-16f / 255f, -0.5f, -0.5f};
+
+    // column major, as glUniformMatrix3fv expects: the Y, U and V columns
+    static final float[] YUV_TO_RGB = {
+            1.164f, 1.164f, 1.164f,
+            0f, -0.392f, 2.017f,
+            1.596f, -0.813f, 0f
+    };
+
+    static final String FRAME_VERTEX_SHADER =
+            "attribute vec2 a_position;\n" +
+            "attribute vec2 a_texCoord;\n" +
+            "varying vec2 v_texCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = vec4(a_position, 0.0, 1.0);\n" +
+            "    v_texCoord = a_texCoord;\n" +
+            "}\n";
+
+    static final String NV21_FRAGMENT_SHADER =
+            "precision mediump float;\n" +
+            "varying vec2 v_texCoord;\n" +
+            "uniform sampler2D u_yTexture;\n" +
+            "uniform sampler2D u_vuTexture;\n" +
+            "uniform mat3 u_yuvToRgb;\n" +
+            "uniform vec3 u_yuvOffset;\n" +
+            "void main() {\n" +
+            "    vec4 vu = texture2D(u_vuTexture, v_texCoord);\n" +
+            "    vec3 yuv = vec3(texture2D(u_yTexture, v_texCoord).r, vu.a, vu.r);\n" +
+            "    gl_FragColor = vec4(clamp(u_yuvToRgb * (yuv + u_yuvOffset), 0.0, 1.0), 1.0);\n" +
+            "}\n";
+
+    static final String RGBA_FRAGMENT_SHADER =
+            "precision mediump float;\n" +
+            "varying vec2 v_texCoord;\n" +
+            "uniform sampler2D u_texture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = vec4(texture2D(u_texture, v_texCoord).rgb, 1.0);\n" +
+            "}\n";
+
+    static final String POINT_VERTEX_SHADER =
+            "attribute vec2 a_position;\n" +
+            "uniform float u_pointSize;\n" +
+            "void main() {\n" +
+            "    gl_Position = vec4(a_position, 0.0, 1.0);\n" +
+            "    gl_PointSize = u_pointSize;\n" +
+            "}\n";
+
+    // round points, like Canvas.drawCircle()
+    static final String POINT_FRAGMENT_SHADER =
+            "precision mediump float;\n" +
+            "uniform vec4 u_color;\n" +
+            "void main() {\n" +
+            "    vec2 offset = gl_PointCoord - vec2(0.5);\n" +
+            "    if (dot(offset, offset) > 0.25) {\n" +
+            "        discard;\n" +
+            "    }\n" +
+            "    gl_FragColor = u_color;\n" +
+            "}\n";
+
+    /**
+     * Converts one pixel the way NV21_FRAGMENT_SHADER does.
+     *
+     * @param y   the Y sample, 0 to 255
+     * @param u   the U sample, 0 to 255
+     * @param v   the V sample, 0 to 255
+     * @param rgb receives red, green and blue, each 0 to 1
+     */
+    static void toRgb(int y, int u, int v, float[] rgb) {
+        float[] yuv = {y / 255f + YUV_OFFSET[0], u / 255f + YUV_OFFSET[1], v / 255f + YUV_OFFSET[2]};
+        for (int row = 0; row < 3; row++) {
+            float value = 0;
+            for (int column = 0; column < 3; column++) {
+                value += YUV_TO_RGB[column * 3 + row] * yuv[column];
+            }
+            rgb[row] = Math.max(0f, Math.min(1f, value));
+        }
+    }
+}
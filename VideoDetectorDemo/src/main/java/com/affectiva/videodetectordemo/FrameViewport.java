@@ -0,0 +1,133 @@
+package com.affectiva.videodetectordemo;
+
+/**
+ * Where a frame appears in a view: rotated by its target rotation, then scaled to fit the view (keeping its aspect
+ * ratio) and centered. Both FrameRenderers use this, so that frames and face points are placed identically.
+ *
+ * Face points are in the coordinates of the rotated frame, as they are after Frame.revertPointRotation().
+ * Only plain Java, so the geometry can be checked on the JVM.
+ */
+class FrameViewport {
+
+    private int viewWidth = 1;
+    private int viewHeight = 1;
+    private int rawWidth = 1;
+    private int rawHeight = 1;
+    private int quarterTurns = 0; // clockwise
+    private float left;
+    private float top;
+    private float width;
+    private float height;
+    private float scale;
+
+    /**
+     * @param rotationDegrees the frame's target rotation, clockwise (e.g. Frame.ROTATE.toDouble()); it is rounded to
+     *                        a multiple of 90
+     */
+    void update(int rawWidth, int rawHeight, double rotationDegrees, int viewWidth, int viewHeight) {
+        this.rawWidth = rawWidth;
+        this.rawHeight = rawHeight;
+        this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+        quarterTurns = (((int) Math.round(rotationDegrees / 90)) % 4 + 4) % 4;
+
+        float frameWidth = quarterTurns % 2 == 0 ? rawWidth : rawHeight;
+        float frameHeight = quarterTurns % 2 == 0 ? rawHeight : rawWidth;
+        scale = Math.min(viewWidth / frameWidth, viewHeight / frameHeight);
+        width = frameWidth * scale;
+        height = frameHeight * scale;
+        left = (viewWidth - width) / 2;
+        top = (viewHeight - height) / 2;
+    }
+
+    float getLeft() {
+        return left;
+    }
+
+    float getTop() {
+        return top;
+    }
+
+    float getWidth() {
+        return width;
+    }
+
+    float getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of view pixels per frame pixel.
+     */
+    float getScale() {
+        return scale;
+    }
+
+    int getRotationDegrees() {
+        return quarterTurns * 90;
+    }
+
+    int getRawWidth() {
+        return rawWidth;
+    }
+
+    int getRawHeight() {
+        return rawHeight;
+    }
+
+    /*
+        From (rotated) frame coordinates to view pixels.
+     */
+    float toViewX(float x) {
+        return left + x * scale;
+    }
+
+    float toViewY(float y) {
+        return top + y * scale;
+    }
+
+    /*
+        From (rotated) frame coordinates to OpenGL normalized device coordinates, in which the view spans -1 to 1 and
+        y points up.
+     */
+    float toNdcX(float x) {
+        return 2 * toViewX(x) / viewWidth - 1;
+    }
+
+    float toNdcY(float y) {
+        return 1 - 2 * toViewY(y) / viewHeight;
+    }
+
+    /**
+     * Fills quad with the four corners of the frame as a triangle strip (top left, bottom left, top right, bottom
+     * right on screen), each as the x and y of its position in normalized device coordinates followed by the s and t
+     * of the texture coordinates to sample the unrotated frame at, where t = 0 is the frame's first row.
+     */
+    void getQuad(float[] quad) {
+        float ndcLeft = 2 * left / viewWidth - 1;
+        float ndcRight = 2 * (left + width) / viewWidth - 1;
+        float ndcTop = 1 - 2 * top / viewHeight;
+        float ndcBottom = 1 - 2 * (top + height) / viewHeight;
+        putCorner(quad, 0, ndcLeft, ndcTop, -0.5f, -0.5f);
+        putCorner(quad, 4, ndcLeft, ndcBottom, -0.5f, 0.5f);
+        putCorner(quad, 8, ndcRight, ndcTop, 0.5f, -0.5f);
+        putCorner(quad, 12, ndcRight, ndcBottom, 0.5f, 0.5f);
+    }
+
+    /*
+        Puts a corner, given by its position relative to the center of the rotated frame (as fractions of its size),
+        along with the texture coordinates of the same point in the unrotated frame: each clockwise quarter turn of
+        the frame is undone by a counterclockwise one, (a, b) -> (b, -a).
+     */
+    private void putCorner(float[] quad, int offset, float x, float y, float a, float b) {
+        for (int i = 0; i < quarterTurns; i++) {
+            float temp = a;
+            a = b;
+            b = -temp;
+        }
+        quad[offset] = x;
+        quad[offset + 1] = y;
+        quad[offset + 2] = a + 0.5f;
+        quad[offset + 3] = b + 0.5f;
+    }
+}
@@ -0,0 +1,288 @@
+package com.affectiva.videodetectordemo;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.PointF;
+import android.opengl.GLES20;
+import android.opengl.GLSurfaceView;
+import android.opengl.GLUtils;
+import android.util.AttributeSet;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+/**
+ * Shows frames and their face points with OpenGL ES 2.0, an alternative to DrawingView which leaves the CPU to the
+ * detector.
+ *
+ * Frames are uploaded as textures as they are (NV21 frames as a Y and a VU texture, converted by a shader; RGBA and
+ * bitmap frames as an RGBA texture) and drawn as a single quad, rotated through its texture coordinates. The face
+ * points are drawn as one batch of round points. Rendering happens on the GLSurfaceView's own thread, only when a new
+ * frame arrives or the surface changes. The owning activity must forward onPause() and onResume().
+ */
+public class GlDrawingView extends GLSurfaceView implements FrameRenderer, GLSurfaceView.Renderer {
+
+    private static final String LOG_TAG = "GlDrawingView";
+    private static final float[] POINT_COLOR = {1f, 0f, 0f, 1f}; // the same red as DrawingView
+
+    // the latest frame, handed from the main thread to the GL thread
+    private final Object lock = new Object();
+    private Frame nextFrameToDraw;
+    private PointF[] nextPointsToDraw;
+    // counts drawFrame() calls, since a Frame object can be reused for new pixels
+    private long nextFrameNumber = 0;
+
+    // only used on the GL thread
+    private final FrameViewport viewport = new FrameViewport();
+    private final LandmarkBatch landmarks = new LandmarkBatch();
+    private final float[] quad = new float[16];
+    private final FloatBuffer quadBuffer = ByteBuffer.allocateDirect(quad.length * 4)
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    private final int[] textures = new int[3]; // Y, VU, RGBA
+    private int nv21Program;
+    private int rgbaProgram;
+    private int pointProgram;
+    private int surfaceWidth = 1;
+    private int surfaceHeight = 1;
+    private long uploadedFrameNumber = -1; // the drawFrame() call whose pixels are in the textures, or -1
+    private Frame.COLOR_FORMAT uploadedFormat; // the format and size the textures were last allocated for
+    private int uploadedWidth;
+    private int uploadedHeight;
+
+    public GlDrawingView(Context context) {
+        super(context);
+        initView();
+    }
+
+    public GlDrawingView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        initView();
+    }
+
+    private void initView() {
+        setEGLContextClientVersion(2);
+        setRenderer(this);
+        setRenderMode(RENDERMODE_WHEN_DIRTY);
+    }
+
+    @Override
+    public void drawFrame(Frame frame, PointF[] points) {
+        synchronized (lock) {
+            nextFrameToDraw = frame;
+            nextPointsToDraw = points;
+            nextFrameNumber += 1;
+        }
+        requestRender();
+    }
+
+    @Override
+    public void onSurfaceCreated(GL10 unused, EGLConfig config) {
+        // a new context: everything from the previous one is gone
+        nv21Program = createProgram(FrameShaders.FRAME_VERTEX_SHADER, FrameShaders.NV21_FRAGMENT_SHADER);
+        rgbaProgram = createProgram(FrameShaders.FRAME_VERTEX_SHADER, FrameShaders.RGBA_FRAGMENT_SHADER);
+        pointProgram = createProgram(FrameShaders.POINT_VERTEX_SHADER, FrameShaders.POINT_FRAGMENT_SHADER);
+
+        GLES20.glGenTextures(textures.length, textures, 0);
+        for (int texture : textures) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        }
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1); // rows of odd widths are not padded
+        uploadedFrameNumber = -1;
+        uploadedFormat = null;
+    }
+
+    @Override
+    public void onSurfaceChanged(GL10 unused, int width, int height) {
+        GLES20.glViewport(0, 0, width, height);
+        surfaceWidth = width;
+        surfaceHeight = height;
+    }
+
+    @Override
+    public void onDrawFrame(GL10 unused) {
+        Frame frame;
+        PointF[] points;
+        long frameNumber;
+        synchronized (lock) {
+            frame = nextFrameToDraw;
+            points = nextPointsToDraw;
+            frameNumber = nextFrameNumber;
+        }
+
+        GLES20.glClearColor(0f, 0f, 0f, 1f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        if (frame == null) {
+            return;
+        }
+
+        int program = upload(frame, frameNumber);
+        if (program == 0) {
+            return; // unsupported frame
+        }
+        viewport.update(frame.getWidth(), frame.getHeight(), frame.getTargetRotation().toDouble(),
+                surfaceWidth, surfaceHeight);
+        drawQuad(program);
+
+        if (points != null && points.length > 0) {
+            landmarks.clear();
+            for (PointF point : points) {
+                landmarks.add(point.x, point.y, viewport);
+            }
+            drawLandmarks();
+        }
+    }
+
+    /*
+        Uploads the frame's pixels, unless the same drawFrame() call's already are, and returns the program to draw it
+        with.
+     */
+    private int upload(Frame frame, long frameNumber) {
+        boolean isUploaded = frameNumber == uploadedFrameNumber;
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        boolean isSameSize = frame.getColorFormat() == uploadedFormat && width == uploadedWidth
+                && height == uploadedHeight;
+
+        if (frame instanceof Frame.BitmapFrame) {
+            if (!isUploaded) {
+                Bitmap bitmap = ((Frame.BitmapFrame) frame).getBitmap();
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[2]);
+                GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+                uploadedFormat = null; // the RGBA texture's size is unknown now
+            }
+            uploadedFrameNumber = frameNumber;
+            return rgbaProgram;
+        }
+        if (!(frame instanceof Frame.ByteArrayFrame)) {
+            return 0;
+        }
+
+        byte[] pixels = ((Frame.ByteArrayFrame) frame).getByteArray();
+        switch (frame.getColorFormat()) {
+            case YUV_NV21:
+                if (!isUploaded) {
+                    // the buffers wrap the frame's own array, so no copy is made on the Java side
+                    uploadPlane(textures[0], GLES20.GL_LUMINANCE, width, height, isSameSize,
+                            ByteBuffer.wrap(pixels, 0, width * height));
+                    uploadPlane(textures[1], GLES20.GL_LUMINANCE_ALPHA, width / 2, height / 2, isSameSize,
+                            ByteBuffer.wrap(pixels, width * height, width * height / 2));
+                }
+                uploadedFrameNumber = frameNumber;
+                uploadedFormat = Frame.COLOR_FORMAT.YUV_NV21;
+                uploadedWidth = width;
+                uploadedHeight = height;
+                return nv21Program;
+            case RGBA:
+                if (!isUploaded) {
+                    uploadPlane(textures[2], GLES20.GL_RGBA, width, height, isSameSize,
+                            ByteBuffer.wrap(pixels, 0, width * height * 4));
+                }
+                uploadedFrameNumber = frameNumber;
+                uploadedFormat = Frame.COLOR_FORMAT.RGBA;
+                uploadedWidth = width;
+                uploadedHeight = height;
+                return rgbaProgram;
+            default:
+                return 0;
+        }
+    }
+
+    private void uploadPlane(int texture, int format, int width, int height, boolean isSameSize, ByteBuffer data) {
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        if (isSameSize) {
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height, format, GLES20.GL_UNSIGNED_BYTE, data);
+        } else {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0, format, GLES20.GL_UNSIGNED_BYTE, data);
+        }
+    }
+
+    private void drawQuad(int program) {
+        viewport.getQuad(quad);
+        quadBuffer.clear();
+        quadBuffer.put(quad);
+
+        GLES20.glUseProgram(program);
+        if (program == nv21Program) {
+            bindTexture(program, "u_yTexture", 0, textures[0]);
+            bindTexture(program, "u_vuTexture", 1, textures[1]);
+            GLES20.glUniformMatrix3fv(GLES20.glGetUniformLocation(program, "u_yuvToRgb"), 1, false,
+                    FrameShaders.YUV_TO_RGB, 0);
+            GLES20.glUniform3fv(GLES20.glGetUniformLocation(program, "u_yuvOffset"), 1, FrameShaders.YUV_OFFSET, 0);
+        } else {
+            bindTexture(program, "u_texture", 0, textures[2]);
+        }
+
+        // interleaved: x, y, s, t
+        int position = GLES20.glGetAttribLocation(program, "a_position");
+        int texCoord = GLES20.glGetAttribLocation(program, "a_texCoord");
+        quadBuffer.position(0);
+        GLES20.glVertexAttribPointer(position, 2, GLES20.GL_FLOAT, false, 16, quadBuffer);
+        quadBuffer.position(2);
+        GLES20.glVertexAttribPointer(texCoord, 2, GLES20.GL_FLOAT, false, 16, quadBuffer);
+        GLES20.glEnableVertexAttribArray(position);
+        GLES20.glEnableVertexAttribArray(texCoord);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDisableVertexAttribArray(position);
+        GLES20.glDisableVertexAttribArray(texCoord);
+    }
+
+    private void drawLandmarks() {
+        GLES20.glUseProgram(pointProgram);
+        // the same size as DrawingView's circles: a radius of 1% of the view's width
+        GLES20.glUniform1f(GLES20.glGetUniformLocation(pointProgram, "u_pointSize"), surfaceWidth / 50f);
+        GLES20.glUniform4fv(GLES20.glGetUniformLocation(pointProgram, "u_color"), 1, POINT_COLOR, 0);
+
+        int position = GLES20.glGetAttribLocation(pointProgram, "a_position");
+        GLES20.glVertexAttribPointer(position, 2, GLES20.GL_FLOAT, false, 0, landmarks.getVertices());
+        GLES20.glEnableVertexAttribArray(position);
+        GLES20.glDrawArrays(GLES20.GL_POINTS, 0, landmarks.getCount());
+        GLES20.glDisableVertexAttribArray(position);
+    }
+
+    private static void bindTexture(int program, String uniform, int unit, int texture) {
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glUniform1i(GLES20.glGetUniformLocation(program, uniform), unit);
+    }
+
+    private static int createProgram(String vertexSource, String fragmentSource) {
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, compileShader(GLES20.GL_VERTEX_SHADER, vertexSource));
+        GLES20.glAttachShader(program, compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource));
+        GLES20.glLinkProgram(program);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new IllegalStateException("Unable to link program: " + log);
+        }
+        return program;
+    }
+
+    private static int compileShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            Log.e(LOG_TAG, "Unable to compile shader:\n" + source);
+            GLES20.glDeleteShader(shader);
+            throw new IllegalStateException("Unable to compile shader: " + log);
+        }
+        return shader;
+    }
+}
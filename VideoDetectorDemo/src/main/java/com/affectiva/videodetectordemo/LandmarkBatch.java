@@ -0,0 +1,53 @@
+package com.affectiva.videodetectordemo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * The face points of a frame as one vertex buffer (x and y in normalized device coordinates per point), so that the
+ * GL renderer draws all of them with a single call. The buffer is reused, and only grows.
+ *
+ * Only plain Java, so the batching can be checked on the JVM.
+ */
+class LandmarkBatch {
+
+    private FloatBuffer vertices = allocate(64);
+    private int count = 0;
+
+    void clear() {
+        count = 0;
+    }
+
+    /**
+     * Adds a point given in (rotated) frame coordinates.
+     */
+    void add(float x, float y, FrameViewport viewport) {
+        int index = count * 2;
+        if (index + 2 > vertices.capacity()) {
+            FloatBuffer larger = allocate(vertices.capacity() * 2);
+            vertices.position(0).limit(index);
+            larger.put(vertices);
+            vertices = larger;
+        }
+        vertices.put(index, viewport.toNdcX(x));
+        vertices.put(index + 1, viewport.toNdcY(y));
+        count += 1;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the buffer holding the vertices added since clear(), positioned at the first one.
+     */
+    FloatBuffer getVertices() {
+        vertices.limit(vertices.capacity()).position(0);
+        return vertices;
+    }
+
+    private static FloatBuffer allocate(int floats) {
+        return ByteBuffer.allocateDirect(floats * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+}
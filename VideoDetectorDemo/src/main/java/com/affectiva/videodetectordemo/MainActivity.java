@@ -15,6 +15,7 @@ import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
 import android.widget.Toast;
+import android.widget.ToggleButton;
 
 /*
 A sample app showing how to use VideoFileDetector. This detector must be run on a non-Looper thread.
@@ -27,6 +28,8 @@ public class MainActivity extends Activity {
 
     VideoDetectorThread videoThread;
     MetricsPanel metricsPanel;
+    DrawingView drawingView; // draws frames with a Canvas
+    GlDrawingView glDrawingView; // draws frames with OpenGL ES, if selected
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -35,13 +38,44 @@ public class MainActivity extends Activity {
 
         metricsPanel = new MetricsPanel();
         getFragmentManager().beginTransaction().add(R.id.fragment_container,metricsPanel).commit();
+
+        drawingView = (DrawingView) findViewById(R.id.drawing_view);
+        glDrawingView = (GlDrawingView) findViewById(R.id.gl_drawing_view);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        glDrawingView.onResume();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        glDrawingView.onPause();
     }
 
     void processVideo(String filename) {
-        videoThread = new VideoDetectorThread(filename,this,metricsPanel,(DrawingView) findViewById(R.id.drawing_view));
+        videoThread = new VideoDetectorThread(filename,this,metricsPanel,getRenderer());
         videoThread.start();
     }
 
+    /**
+     * Switches between drawing frames with a Canvas and with OpenGL ES, including while a video is being processed.
+     */
+    public void toggleRenderer(View view) {
+        boolean useOpenGl = ((ToggleButton) view).isChecked();
+        glDrawingView.setVisibility(useOpenGl ? View.VISIBLE : View.GONE);
+        drawingView.setVisibility(useOpenGl ? View.GONE : View.VISIBLE);
+        if (videoThread != null) {
+            videoThread.setRenderer(getRenderer());
+        }
+    }
+
+    FrameRenderer getRenderer() {
+        return glDrawingView.getVisibility() == View.VISIBLE ? glDrawingView : drawingView;
+    }
+
     public void chooseVideo(View view) {
         // abort current video detection in progress, if any
         if (videoThread != null) {
@@ -49,6 +49,9 @@ public enum Metrics {
     AGE,
     ETHNICITY;
 
+    // values() returns a new copy of the array on every call; this one is shared, so it must not be modified
+    static final Metrics[] ALL = values();
+
     String getUpperCaseName() {
         return toString().replace("_", " ");
     }
@@ -75,7 +78,7 @@ public enum Metrics {
 
 
     static int numberOfMetrics() {
-        return Metrics.values().length;
+        return ALL.length;
     }
 
     /**
@@ -83,7 +86,7 @@ public enum Metrics {
      */
     static Metrics[] getEmotions() {
         Metrics[] emotions = new Metrics[numberOfEmotions()];
-        Metrics[] allMetrics = Metrics.values();
+        Metrics[] allMetrics = ALL;
         System.arraycopy(allMetrics, 0, emotions, 0, numberOfEmotions());
         return emotions;
     }
@@ -93,14 +96,14 @@ public enum Metrics {
      */
     static Metrics[] getExpressions() {
         Metrics[] expressions = new Metrics[numberOfExpressions()];
-        Metrics[] allMetrics = Metrics.values();
+        Metrics[] allMetrics = ALL;
         System.arraycopy(allMetrics, numberOfEmotions(), expressions, 0, numberOfExpressions());
         return expressions;
     }
 
     static Metrics[] getMeasurements() {
         Metrics[] measurements = new Metrics[numberOfMeasurements()];
-        Metrics[] allMetrics = Metrics.values();
+        Metrics[] allMetrics = ALL;
         System.arraycopy(allMetrics, numberOfEmotions()+ numberOfExpressions(),
                 measurements, 0, numberOfMeasurements());
         return measurements;
@@ -108,7 +111,7 @@ public enum Metrics {
 
     static Metrics[] getAppearances() {
         Metrics[] appearances = new Metrics[numberOfAppearances()];
-        Metrics[] allMetrics = Metrics.values();
+        Metrics[] allMetrics = ALL;
         System.arraycopy(allMetrics, numberOfEmotions()+ numberOfExpressions() + numberOfMeasurements(),
                 appearances, 0, numberOfAppearances());
         return appearances;
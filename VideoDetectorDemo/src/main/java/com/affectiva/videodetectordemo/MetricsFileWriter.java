@@ -0,0 +1,281 @@
+package com.affectiva.videodetectordemo;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Streams per-face detector results into a compact, binary, column-oriented file.
+ *
+ * Rows (a timestamp, a face id and one float per Metrics value) are copied into in-memory blocks by write(), which
+ * never blocks or allocates. Full blocks are handed to a background thread which encodes each one into a reused direct
+ * ByteBuffer and writes it with a FileChannel. If the writer thread falls so far behind that every block is full,
+ * rows are dropped (and counted) rather than stalling the caller.
+ *
+ * File layout (little endian):
+ * <pre>
+ * header:  int MAGIC, int VERSION, int rowsPerBlock, int columnCount,
+ *          then columnCount x (short length, UTF-8 bytes) column names: the Metrics names, in ordinal order
+ * blocks:  int BLOCK_MAGIC, int rowCount, float minTimestamp, float maxTimestamp,
+ *          float[rowCount] timestamps, int[rowCount] face ids, then float[rowCount] for each column in turn
+ * </pre>
+ * Appearance metrics hold the ordinal of the SDK's enum value (see FaceMetrics.getValues()); missing values are NaN.
+ *
+ * write() and flush() must be called from a single thread.
+ */
+class MetricsFileWriter implements Closeable {
+
+    static final int MAGIC = 0x4d584641; // "AFXM" when read as little endian bytes
+    static final int BLOCK_MAGIC = 0x314b4c42; // "BLK1"
+    static final int VERSION = 1;
+    static final int BLOCK_HEADER_SIZE = 16;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String LOG_TAG = "MetricsFileWriter";
+    private static final int DEFAULT_ROWS_PER_BLOCK = 256;
+    private static final int DEFAULT_BLOCK_COUNT = 8;
+
+    private final int rowsPerBlock;
+    private final int columnCount;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final ArrayBlockingQueue<Block> freeBlocks;
+    private final ArrayBlockingQueue<Block> filledBlocks;
+    private final Block endOfStream = new Block(0, 0);
+    private final Thread writerThread;
+
+    private Block currentBlock;
+    private boolean isClosed = false;
+    private long rowsWritten = 0;
+    private long rowsDropped = 0;
+    private volatile IOException writeError;
+
+    MetricsFileWriter(File file) throws IOException {
+        this(file, DEFAULT_ROWS_PER_BLOCK, DEFAULT_BLOCK_COUNT);
+    }
+
+    /**
+     * Creates the file (replacing any existing one) and writes its header.
+     *
+     * @param rowsPerBlock the number of rows buffered before a block is written out
+     * @param blockCount the number of blocks which can be buffered in memory at once
+     */
+    MetricsFileWriter(File file, int rowsPerBlock, int blockCount) throws IOException {
+        if (rowsPerBlock < 1 || blockCount < 2) {
+            throw new IllegalArgumentException("need at least one row per block and two blocks");
+        }
+        Metrics[] metrics = Metrics.values();
+        this.rowsPerBlock = rowsPerBlock;
+        this.columnCount = metrics.length;
+
+        freeBlocks = new ArrayBlockingQueue<>(blockCount);
+        filledBlocks = new ArrayBlockingQueue<>(blockCount + 1); // room for endOfStream
+        for (int i = 0; i < blockCount; i++) {
+            freeBlocks.add(new Block(rowsPerBlock, columnCount));
+        }
+
+        buffer = ByteBuffer.allocateDirect(BLOCK_HEADER_SIZE + rowsPerBlock * (2 + columnCount) * 4);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        channel = new FileOutputStream(file).getChannel();
+        try {
+            writeHeader(metrics);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBlocks();
+            }
+        }, "MetricsFileWriter");
+        writerThread.start();
+    }
+
+    /**
+     * Adds a row for one face.
+     *
+     * @param values the face's metric values, indexed by Metrics ordinal (see FaceMetrics.getValues())
+     * @return false if the row was dropped, because the writer is closed, has failed, or is too far behind
+     */
+    boolean write(float timestamp, int faceId, float[] values) {
+        if (isClosed || writeError != null) {
+            rowsDropped += 1;
+            return false;
+        }
+        if (currentBlock == null) {
+            currentBlock = freeBlocks.poll();
+            if (currentBlock == null) {
+                rowsDropped += 1;
+                return false;
+            }
+            currentBlock.rowCount = 0;
+        }
+
+        Block block = currentBlock;
+        int row = block.rowCount;
+        block.timestamps[row] = timestamp;
+        block.faceIds[row] = faceId;
+        for (int column = 0; column < columnCount; column++) {
+            block.values[column * rowsPerBlock + row] = column < values.length ? values[column] : Float.NaN;
+        }
+        block.rowCount = row + 1;
+        rowsWritten += 1;
+
+        if (block.rowCount == rowsPerBlock) {
+            filledBlocks.add(block); // can't overflow: there are only as many blocks as the queue holds
+            currentBlock = null;
+        }
+        return true;
+    }
+
+    /**
+     * Hands the rows written so far to the writer thread, without waiting for them to reach the file.
+     */
+    void flush() {
+        if (currentBlock != null && currentBlock.rowCount > 0) {
+            filledBlocks.add(currentBlock);
+            currentBlock = null;
+        }
+    }
+
+    /**
+     * Writes out the remaining rows and closes the file, waiting for the writer thread to finish.
+     *
+     * @throws IOException if writing any of the blocks failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        flush();
+        isClosed = true;
+        filledBlocks.add(endOfStream);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channel.close();
+        }
+        if (rowsDropped > 0) {
+            Log.w(LOG_TAG, String.format("%d of %d rows were dropped", rowsDropped, rowsDropped + rowsWritten));
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    long getRowsWritten() {
+        return rowsWritten;
+    }
+
+    long getRowsDropped() {
+        return rowsDropped;
+    }
+
+    private void writeHeader(Metrics[] metrics) throws IOException {
+        int size = 16;
+        byte[][] names = new byte[metrics.length][];
+        for (int i = 0; i < metrics.length; i++) {
+            names[i] = metrics[i].name().getBytes(UTF_8);
+            size += 2 + names[i].length;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(rowsPerBlock).putInt(columnCount);
+        for (byte[] name : names) {
+            header.putShort((short) name.length).put(name);
+        }
+        header.flip();
+        writeFully(header);
+    }
+
+    /*
+        The writer thread: encode and write blocks until endOfStream arrives. After an error, blocks are still taken
+        (and recycled) so close() can finish, but nothing more is written.
+     */
+    private void writeBlocks() {
+        while (true) {
+            Block block;
+            try {
+                block = filledBlocks.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (block == endOfStream) {
+                return;
+            }
+
+            if (writeError == null) {
+                try {
+                    encode(block);
+                    writeFully(buffer);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Unable to write metrics: " + e.getMessage());
+                    writeError = e;
+                }
+            }
+            freeBlocks.add(block);
+        }
+    }
+
+    private void encode(Block block) {
+        int rows = block.rowCount;
+        float minTimestamp = Float.MAX_VALUE;
+        float maxTimestamp = -Float.MAX_VALUE;
+        for (int row = 0; row < rows; row++) {
+            minTimestamp = Math.min(minTimestamp, block.timestamps[row]);
+            maxTimestamp = Math.max(maxTimestamp, block.timestamps[row]);
+        }
+
+        buffer.clear();
+        buffer.putInt(BLOCK_MAGIC).putInt(rows).putFloat(minTimestamp).putFloat(maxTimestamp);
+        for (int row = 0; row < rows; row++) {
+            buffer.putFloat(block.timestamps[row]);
+        }
+        for (int row = 0; row < rows; row++) {
+            buffer.putInt(block.faceIds[row]);
+        }
+        for (int column = 0; column < columnCount; column++) {
+            int start = column * rowsPerBlock;
+            for (int row = 0; row < rows; row++) {
+                buffer.putFloat(block.values[start + row]);
+            }
+        }
+        buffer.flip();
+    }
+
+    private void writeFully(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+
+    /*
+        Rows buffered in memory, stored column by column like they are in the file.
+     */
+    private static class Block {
+        final float[] timestamps;
+        final int[] faceIds;
+        final float[] values; // columnCount runs of rowsPerBlock values
+        int rowCount;
+
+        Block(int rowsPerBlock, int columnCount) {
+            timestamps = new float[rowsPerBlock];
+            faceIds = new int[rowsPerBlock];
+            values = new float[rowsPerBlock * columnCount];
+        }
+    }
+}
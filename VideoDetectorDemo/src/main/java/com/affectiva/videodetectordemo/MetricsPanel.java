@@ -5,6 +5,9 @@ import android.app.Fragment;
 import android.content.Context;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -12,31 +15,169 @@ import android.view.ViewGroup;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import java.util.Arrays;
 import java.util.EnumMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class MetricsPanel extends Fragment {
+/**
+ * Shows the value of every metric.
+ *
+ * The set methods may be called from any thread, as often as results arrive: they only write into a MetricsModel.
+ * The text views are refreshed from the model on the main thread, in step with the display (via Choreographer), at
+ * most getMaxRefreshRate() times per second, and only the cells whose displayed text changes are touched, since every
+ * text change costs a layout pass.
+ */
+public class MetricsPanel extends Fragment implements Choreographer.FrameCallback {
+
+    private static final float DEFAULT_MAX_REFRESH_RATE = 15;
 
     EnumMap<Metrics,TextView> metricsTextViews = new EnumMap<>(Metrics.class);
     int headerColor;
     int metricColor1;
     int metricColor2;
 
+    private final MetricsModel model = new MetricsModel();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean isRefreshScheduled = new AtomicBoolean(false);
+    private final Runnable postFrameCallback = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(MetricsPanel.this);
+        }
+    };
+    private volatile long minRefreshIntervalNanos = (long) (1e9 / DEFAULT_MAX_REFRESH_RATE);
+    private long lastRefreshNanos = 0;
+
+    // what each cell shows, so that unchanged cells can be skipped
+    private final float[] shownValues = new float[Metrics.ALL.length];
+    private final int[] shownTextIds = new int[Metrics.ALL.length];
+    private final boolean[] isShown = new boolean[Metrics.ALL.length];
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View content = inflater.inflate(R.layout.metrics_panel,container,false);
         populateMetrics(getActivity(),(LinearLayout)content.findViewById(R.id.metrics_container));
+
+        // the new views show nothing yet
+        Arrays.fill(isShown, false);
+        refreshChangedCells();
         return content;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        mainHandler.removeCallbacks(postFrameCallback);
+        Choreographer.getInstance().removeFrameCallback(this);
+        isRefreshScheduled.set(false);
+        metricsTextViews.clear();
+    }
+
     public void setMetricValue(Metrics metric, float value) {
-        metricsTextViews.get(metric).setText(String.format("%.3f", value));
+        model.setValue(metric, value);
+        scheduleRefresh();
+    }
+
+    /**
+     * Sets the values of the given metrics from an array indexed by Metrics ordinal (see FaceMetrics.getValues()).
+     */
+    public void setMetricValues(Metrics[] metrics, float[] values) {
+        model.setValues(metrics, values);
+        scheduleRefresh();
     }
+
     public void setMetricText(Metrics metric, int resId) {
-        metricsTextViews.get(metric).setText(resId);
+        model.setText(metric, resId);
+        scheduleRefresh();
     }
 
     public void setMetricNA(Metrics metric) {
-        metricsTextViews.get(metric).setText("--");
+        model.setNA(metric);
+        scheduleRefresh();
+    }
+
+    public void setAllMetricsNA() {
+        model.setAllNA();
+        scheduleRefresh();
+    }
+
+    /**
+     * Limits how often the panel is refreshed; results arriving faster than this are coalesced.
+     */
+    public void setMaxRefreshRate(float refreshRate) {
+        if (refreshRate <= 0) {
+            throw new IllegalArgumentException("refresh rate must be positive");
+        }
+        minRefreshIntervalNanos = (long) (1e9 / refreshRate);
+    }
+
+    public float getMaxRefreshRate() {
+        return (float) (1e9 / minRefreshIntervalNanos);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        long delayNanos = lastRefreshNanos + minRefreshIntervalNanos - frameTimeNanos;
+        if (lastRefreshNanos != 0 && delayNanos > 0) {
+            // too soon: try again at the first frame after the interval has passed
+            Choreographer.getInstance().postFrameCallbackDelayed(this, delayNanos / 1000000);
+            return;
+        }
+
+        // clear the flag before taking the values, so that anything written from now on schedules another refresh
+        isRefreshScheduled.set(false);
+        if (model.swap() && !metricsTextViews.isEmpty()) {
+            lastRefreshNanos = frameTimeNanos;
+            refreshChangedCells();
+        }
+    }
+
+    private void scheduleRefresh() {
+        if (isRefreshScheduled.compareAndSet(false, true)) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                Choreographer.getInstance().postFrameCallback(this);
+            } else {
+                mainHandler.post(postFrameCallback);
+            }
+        }
+    }
+
+    /*
+        Updates the cells whose displayed text differs from the front buffer of the model.
+     */
+    private void refreshChangedCells() {
+        for (Metrics metric : Metrics.ALL) {
+            int i = metric.ordinal();
+            float value = model.getValue(metric);
+            int textId = model.getTextId(metric);
+            TextView textView = metricsTextViews.get(metric);
+            if (textView == null || (isShown[i] && isShownAs(value, textId, i))) {
+                continue;
+            }
+
+            if (textId != 0) {
+                textView.setText(textId);
+            } else if (Float.isNaN(value)) {
+                textView.setText("--");
+            } else {
+                textView.setText(String.format("%.3f", value));
+            }
+            shownValues[i] = value;
+            shownTextIds[i] = textId;
+            isShown[i] = true;
+        }
+    }
+
+    private boolean isShownAs(float value, int textId, int i) {
+        if (textId != 0 || shownTextIds[i] != 0) {
+            return textId == shownTextIds[i];
+        }
+        float shownValue = shownValues[i];
+        if (Float.isNaN(value) || Float.isNaN(shownValue)) {
+            return Float.isNaN(value) && Float.isNaN(shownValue);
+        }
+        // values are shown to three decimal places
+        return Math.round(value * 1000) == Math.round(shownValue * 1000);
     }
 
     void populateMetrics(Context context, LinearLayout container) {
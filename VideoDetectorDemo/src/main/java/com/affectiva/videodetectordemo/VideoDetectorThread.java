@@ -9,6 +9,8 @@ import com.affectiva.android.affdex.sdk.detector.Detector;
 import com.affectiva.android.affdex.sdk.detector.Face;
 import com.affectiva.android.affdex.sdk.detector.VideoFileDetector;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -19,18 +21,21 @@ import java.util.List;
 public class VideoDetectorThread extends Thread implements Detector.ImageListener {
 
     private static String LOG_TAG = "Affectiva";
+
     private String filename;
     private VideoFileDetector detector;
     private Activity activity;
-    private DrawingView drawingView;
+    private volatile FrameRenderer renderer;
     private MetricsPanel metricsPanel;
     private volatile boolean abortRequested;
     private Object completeSignal = new Object();
+    private MetricsFileWriter resultsWriter; // records every frame's results, or null if it couldn't be created
+    private final float[] metricValues = new float[Metrics.ALL.length];
 
-    public VideoDetectorThread(String file, Activity context, MetricsPanel metricsPanel, DrawingView drawingView) {
+    public VideoDetectorThread(String file, Activity context, MetricsPanel metricsPanel, FrameRenderer renderer) {
         filename = file;
         activity = context;
-        this.drawingView = drawingView;
+        this.renderer = renderer;
         this.metricsPanel = metricsPanel;
     }
 
@@ -41,6 +46,7 @@ public class VideoDetectorThread extends Thread implements Detector.ImageListene
         detector.setDetectAllExpressions(true);
         detector.setDetectAllAppearances(true);
         detector.setImageListener(this);
+        resultsWriter = openResultsWriter();
         try {
             detector.start();
         } catch (Exception e) {
@@ -49,6 +55,7 @@ public class VideoDetectorThread extends Thread implements Detector.ImageListene
             if (detector.isRunning()) {
                 detector.stop();
             }
+            closeResultsWriter();
             // notify waiting threads that we're done
             synchronized (completeSignal) {
                 completeSignal.notify();
@@ -68,86 +75,31 @@ public class VideoDetectorThread extends Thread implements Detector.ImageListene
             return;
         }
 
+        // read every face's metrics in one pass each, and record them at full rate here rather than on the UI thread.
+        // The metrics panel can be updated from this thread too: it shows the latest values at its own pace.
+        if (list != null && list.size() > 0) {
+            for (int i = 0; i < list.size(); i++) {
+                Face face = list.get(i);
+                FaceMetrics.getValues(face, metricValues);
+                if (resultsWriter != null) {
+                    resultsWriter.write(timestamp, face.getId(), metricValues);
+                }
+                if (i == 0) {
+                    metricsPanel.setMetricValues(FaceMetrics.NUMERIC_METRICS, metricValues);
+                    showAppearance(face);
+                }
+            }
+        } else {
+            metricsPanel.setAllMetricsNA();
+        }
+
         activity.runOnUiThread(new Runnable() {
             @SuppressWarnings("SuspiciousNameCombination")
             @Override
             public void run() {
-                //update metrics
+                FrameRenderer frameRenderer = renderer;
                 if (faces != null && faces.size() > 0) {
                     Face face = faces.get(0);
-                    // process the numeric metrics (scored or measured)
-                    Metrics[] allMetrics = Metrics.values();
-                    for (int n = 0; n < Metrics.numberOfEmotions() + Metrics.numberOfExpressions() + Metrics.numberOfMeasurements(); n++) {
-                        Metrics metric = allMetrics[n];
-                        metricsPanel.setMetricValue(metric, getScore(metric, face));
-                    }
-
-                    // set the text for the appearance metrics
-                    int resId = 0;
-                    switch (face.appearance.getGender()) {
-                        case UNKNOWN:
-                            resId = R.string.unknown;
-                            break;
-                        case FEMALE:
-                            resId = R.string.gender_female;
-                            break;
-                        case MALE:
-                            resId = R.string.gender_male;
-                            break;
-                    }
-                    metricsPanel.setMetricText(Metrics.GENDER, resId);
-
-                    switch (face.appearance.getAge()) {
-                        case AGE_UNKNOWN:
-                            resId = R.string.unknown;
-                            break;
-                        case AGE_UNDER_18:
-                            resId = R.string.age_under_18;
-                            break;
-                        case AGE_18_24:
-                            resId = R.string.age_18_24;
-                            break;
-                        case AGE_25_34:
-                            resId = R.string.age_25_34;
-                            break;
-                        case AGE_35_44:
-                            resId = R.string.age_35_44;
-                            break;
-                        case AGE_45_54:
-                            resId = R.string.age_45_54;
-                            break;
-                        case AGE_55_64:
-                            resId = R.string.age_55_64;
-                            break;
-                        case AGE_65_PLUS:
-                            resId = R.string.age_65_plus;
-                            break;
-                    }
-                    metricsPanel.setMetricText(Metrics.AGE, resId);
-
-                    switch (face.appearance.getEthnicity()) {
-                        case UNKNOWN:
-                            resId = R.string.unknown;
-                            break;
-                        case CAUCASIAN:
-                            resId = R.string.ethnicity_caucasian;
-                            break;
-                        case BLACK_AFRICAN:
-                            resId = R.string.ethnicity_black_african;
-                            break;
-                        case EAST_ASIAN:
-                            resId = R.string.ethnicity_east_asian;
-                            break;
-                        case SOUTH_ASIAN:
-                            resId = R.string.ethnicity_south_asian;
-                            break;
-                        case HISPANIC:
-                            resId = R.string.ethnicity_hispanic;
-                            break;
-                    }
-                    metricsPanel.setMetricText(Metrics.ETHNICITY, resId);
-
-
                     PointF[] facePoints = face.getFacePoints();
                     int frameWidth = frame.getWidth();
                     int frameHeight = frame.getHeight();
@@ -159,148 +111,134 @@ public class VideoDetectorThread extends Thread implements Detector.ImageListene
                         frameHeight = temp;
                     }
                     Frame.revertPointRotation(facePoints, frameWidth, frameHeight, frame.getTargetRotation());
-                    drawingView.drawFrame(frame, facePoints);
+                    frameRenderer.drawFrame(frame, facePoints);
                 } else {
-                    for (Metrics metric : Metrics.values()) {
-                        metricsPanel.setMetricNA(metric);
-                    }
-                    drawingView.drawFrame(frame, null);
+                    frameRenderer.drawFrame(frame, null);
                 }
 
             }
         });
     }
 
-    /**
-     * If detection is in progress, abort.  This call will wait for detection to stop before
-     * returning.
-     */
-    void abort() {
-        if (isAlive()) {
-            // set a flag which will be monitored in onImageResults
-            abortRequested = true;
-
-            // wait for background thread to finish before returning
-            synchronized (completeSignal) {
-                try {
-                    completeSignal.wait();
-                } catch (InterruptedException e) {
-                }
-            }
-        }
-    }
-
-    private float getScore(Metrics metric, Face face) {
-
-        float score;
-
-        switch (metric) {
-            case ANGER:
-                score = face.emotions.getAnger();
-                break;
-            case CONTEMPT:
-                score = face.emotions.getContempt();
-                break;
-            case DISGUST:
-                score = face.emotions.getDisgust();
-                break;
-            case FEAR:
-                score = face.emotions.getFear();
-                break;
-            case JOY:
-                score = face.emotions.getJoy();
-                break;
-            case SADNESS:
-                score = face.emotions.getSadness();
-                break;
-            case SURPRISE:
-                score = face.emotions.getSurprise();
-                break;
-            case ATTENTION:
-                score = face.expressions.getAttention();
-                break;
-            case BROW_FURROW:
-                score = face.expressions.getBrowFurrow();
-                break;
-            case BROW_RAISE:
-                score = face.expressions.getBrowRaise();
+    private void showAppearance(Face face) {
+        int resId = 0;
+        switch (face.appearance.getGender()) {
+            case UNKNOWN:
+                resId = R.string.unknown;
                 break;
-            case CHEEK_RAISE:
-                score = face.expressions.getCheekRaise();
+            case FEMALE:
+                resId = R.string.gender_female;
                 break;
-            case CHIN_RAISER:
-                score = face.expressions.getChinRaise();
+            case MALE:
+                resId = R.string.gender_male;
                 break;
-            case DIMPLER:
-                score = face.expressions.getDimpler();
-                break;
-            case ENGAGEMENT:
-                score = face.emotions.getEngagement();
-                break;
-            case EYE_CLOSURE:
-                score = face.expressions.getEyeClosure();
-                break;
-            case EYE_WIDEN:
-                score = face.expressions.getEyeWiden();
-                break;
-            case INNER_BROW_RAISER:
-                score = face.expressions.getInnerBrowRaise();
-                break;
-            case JAW_DROP:
-                score = face.expressions.getJawDrop();
-                break;
-            case LID_TIGHTEN:
-                score = face.expressions.getLidTighten();
-                break;
-            case LIP_DEPRESSOR:
-                score = face.expressions.getLipCornerDepressor();
-                break;
-            case LIP_PRESS:
-                score = face.expressions.getLipPress();
-                break;
-            case LIP_PUCKER:
-                score = face.expressions.getLipPucker();
+        }
+        metricsPanel.setMetricText(Metrics.GENDER, resId);
+
+        switch (face.appearance.getAge()) {
+            case AGE_UNKNOWN:
+                resId = R.string.unknown;
                 break;
-            case LIP_STRETCH:
-                score = face.expressions.getLipStretch();
+            case AGE_UNDER_18:
+                resId = R.string.age_under_18;
                 break;
-            case LIP_SUCK:
-                score = face.expressions.getLipSuck();
+            case AGE_18_24:
+                resId = R.string.age_18_24;
                 break;
-            case MOUTH_OPEN:
-                score = face.expressions.getMouthOpen();
+            case AGE_25_34:
+                resId = R.string.age_25_34;
                 break;
-            case NOSE_WRINKLER:
-                score = face.expressions.getNoseWrinkle();
+            case AGE_35_44:
+                resId = R.string.age_35_44;
                 break;
-            case SMILE:
-                score = face.expressions.getSmile();
+            case AGE_45_54:
+                resId = R.string.age_45_54;
                 break;
-            case SMIRK:
-                score = face.expressions.getSmirk();
+            case AGE_55_64:
+                resId = R.string.age_55_64;
                 break;
-            case UPPER_LIP_RAISER:
-                score = face.expressions.getUpperLipRaise();
+            case AGE_65_PLUS:
+                resId = R.string.age_65_plus;
                 break;
-            case VALENCE:
-                score = face.emotions.getValence();
+        }
+        metricsPanel.setMetricText(Metrics.AGE, resId);
+
+        switch (face.appearance.getEthnicity()) {
+            case UNKNOWN:
+                resId = R.string.unknown;
                 break;
-            case YAW:
-                score = face.measurements.orientation.getYaw();
+            case CAUCASIAN:
+                resId = R.string.ethnicity_caucasian;
                 break;
-            case ROLL:
-                score = face.measurements.orientation.getRoll();
+            case BLACK_AFRICAN:
+                resId = R.string.ethnicity_black_african;
                 break;
-            case PITCH:
-                score = face.measurements.orientation.getPitch();
+            case EAST_ASIAN:
+                resId = R.string.ethnicity_east_asian;
                 break;
-            case INTER_OCULAR_DISTANCE:
-                score = face.measurements.getInterocularDistance();
+            case SOUTH_ASIAN:
+                resId = R.string.ethnicity_south_asian;
                 break;
-            default:
-                score = Float.NaN;
+            case HISPANIC:
+                resId = R.string.ethnicity_hispanic;
                 break;
         }
-        return score;
+        metricsPanel.setMetricText(Metrics.ETHNICITY, resId);
+    }
+
+    /*
+        Creates a file in the app's "sessions" directory, named after the video, to record the results into.
+     */
+    private MetricsFileWriter openResultsWriter() {
+        File directory = activity.getExternalFilesDir("sessions");
+        if (directory == null) {
+            return null; // external storage unavailable
+        }
+        String name = new File(filename).getName();
+        int dot = name.lastIndexOf('.');
+        File file = new File(directory, (dot > 0 ? name.substring(0, dot) : name) + ".afm");
+        try {
+            return new MetricsFileWriter(file);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to record results to " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void closeResultsWriter() {
+        if (resultsWriter != null) {
+            try {
+                resultsWriter.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to record results: " + e.getMessage());
+            }
+            resultsWriter = null;
+        }
+    }
+
+    /**
+     * Switches to showing the frames with a different renderer, from the next frame on.
+     */
+    void setRenderer(FrameRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    /**
+     * If detection is in progress, abort.  This call will wait for detection to stop before
+     * returning.
+     */
+    void abort() {
+        if (isAlive()) {
+            // set a flag which will be monitored in onImageResults
+            abortRequested = true;
+
+            // wait for background thread to finish before returning
+            synchronized (completeSignal) {
+                try {
+                    completeSignal.wait();
+                } catch (InterruptedException e) {
+                }
+            }
+        }
     }
 }
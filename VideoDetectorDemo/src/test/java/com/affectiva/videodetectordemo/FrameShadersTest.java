@@ -0,0 +1,57 @@
+package com.affectiva.videodetectordemo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the NV21 shader's conversion constants against BT.601 limited range colors.
+ */
+public class FrameShadersTest {
+    // the constants are rounded to three places, and chroma is centered on 0.5 rather than 128 / 255
+    private static final float TOLERANCE = 2f / 255f;
+
+    private final float[] rgb = new float[3];
+
+    @Test
+    public void convertsBlackAndWhite() {
+        assertRgb(16, 128, 128, 0f, 0f, 0f);
+        assertRgb(235, 128, 128, 1f, 1f, 1f);
+    }
+
+    @Test
+    public void convertsGrayWithoutTint() {
+        FrameShaders.toRgb(126, 128, 128, rgb);
+        assertEquals(0.5f, rgb[0], TOLERANCE);
+        assertEquals(rgb[0], rgb[1], TOLERANCE);
+        assertEquals(rgb[0], rgb[2], TOLERANCE);
+    }
+
+    @Test
+    public void convertsPrimaries() {
+        assertRgb(81, 90, 240, 1f, 0f, 0f);
+        assertRgb(145, 54, 34, 0f, 1f, 0f);
+        assertRgb(41, 240, 110, 0f, 0f, 1f);
+    }
+
+    @Test
+    public void convertsSecondaries() {
+        assertRgb(210, 16, 146, 1f, 1f, 0f);
+        assertRgb(170, 166, 16, 0f, 1f, 1f);
+        assertRgb(106, 202, 222, 1f, 0f, 1f);
+    }
+
+    @Test
+    public void clampsOutOfRangeSamples() {
+        assertRgb(0, 128, 128, 0f, 0f, 0f);
+        assertRgb(255, 128, 128, 1f, 1f, 1f);
+    }
+
+    private void assertRgb(int y, int u, int v, float red, float green, float blue) {
+        FrameShaders.toRgb(y, u, v, rgb);
+        String yuv = "(" + y + ", " + u + ", " + v + ")";
+        assertEquals("red of " + yuv, red, rgb[0], TOLERANCE);
+        assertEquals("green of " + yuv, green, rgb[1], TOLERANCE);
+        assertEquals("blue of " + yuv, blue, rgb[2], TOLERANCE);
+    }
+}
@@ -0,0 +1,111 @@
+package com.affectiva.videodetectordemo;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks where FrameViewport places a 640x480 frame for each target rotation, and which corner of the unrotated frame
+ * getQuad() samples at each corner of the screen.
+ */
+public class FrameViewportTest {
+    private static final int RAW_WIDTH = 640;
+    private static final int RAW_HEIGHT = 480;
+    private static final float TOLERANCE = 1e-5f;
+
+    // texture coordinates of the unrotated frame's corners; t = 0 is its first row
+    private static final float[] TOP_LEFT = {0f, 0f};
+    private static final float[] TOP_RIGHT = {1f, 0f};
+    private static final float[] BOTTOM_LEFT = {0f, 1f};
+    private static final float[] BOTTOM_RIGHT = {1f, 1f};
+
+    private final FrameViewport viewport = new FrameViewport();
+    private final float[] quad = new float[16];
+
+    @Test
+    public void letterboxesAnUnrotatedFrame() {
+        viewport.update(RAW_WIDTH, RAW_HEIGHT, Frame.ROTATE.NO_ROTATION.toDouble(), 1000, 1000);
+        assertPlacement(0f, 125f, 1000f, 750f);
+        assertEquals(0, viewport.getRotationDegrees());
+
+        viewport.getQuad(quad);
+        assertPositions(-1f, 0.75f, 1f, -0.75f);
+        assertTexCoords(TOP_LEFT, BOTTOM_LEFT, TOP_RIGHT, BOTTOM_RIGHT);
+    }
+
+    @Test
+    public void pillarboxesAFrameTurnedClockwise() {
+        viewport.update(RAW_WIDTH, RAW_HEIGHT, Frame.ROTATE.BY_90_CW.toDouble(), 1000, 500);
+        assertPlacement(312.5f, 0f, 375f, 500f);
+        assertEquals(90, viewport.getRotationDegrees());
+
+        viewport.getQuad(quad);
+        assertPositions(-0.375f, 1f, 0.375f, -1f);
+        // turned clockwise, the frame's left column becomes the top row
+        assertTexCoords(BOTTOM_LEFT, BOTTOM_RIGHT, TOP_LEFT, TOP_RIGHT);
+    }
+
+    @Test
+    public void fitsAFrameTurnedCounterclockwise() {
+        viewport.update(RAW_WIDTH, RAW_HEIGHT, Frame.ROTATE.BY_90_CCW.toDouble(), 960, 1280);
+        assertPlacement(0f, 0f, 960f, 1280f);
+        assertEquals(270, viewport.getRotationDegrees());
+
+        viewport.getQuad(quad);
+        assertPositions(-1f, 1f, 1f, -1f);
+        // turned counterclockwise, the frame's right column becomes the top row
+        assertTexCoords(TOP_RIGHT, TOP_LEFT, BOTTOM_RIGHT, BOTTOM_LEFT);
+    }
+
+    @Test
+    public void letterboxesAFrameTurnedUpsideDown() {
+        viewport.update(RAW_WIDTH, RAW_HEIGHT, Frame.ROTATE.BY_180.toDouble(), 320, 480);
+        assertPlacement(0f, 120f, 320f, 240f);
+        assertEquals(180, viewport.getRotationDegrees());
+
+        viewport.getQuad(quad);
+        assertPositions(-1f, 0.5f, 1f, -0.5f);
+        assertTexCoords(BOTTOM_RIGHT, TOP_RIGHT, BOTTOM_LEFT, TOP_LEFT);
+    }
+
+    @Test
+    public void mapsPointsInTheRotatedFrame() {
+        viewport.update(RAW_WIDTH, RAW_HEIGHT, Frame.ROTATE.BY_90_CW.toDouble(), 1000, 500);
+
+        // the rotated frame is 480x640, shown at 375x500 from x = 312.5
+        assertEquals(312.5f, viewport.toViewX(0f), TOLERANCE);
+        assertEquals(687.5f, viewport.toViewX(480f), TOLERANCE);
+        assertEquals(250f, viewport.toViewY(320f), TOLERANCE);
+        assertEquals(0f, viewport.toNdcX(240f), TOLERANCE);
+        assertEquals(1f, viewport.toNdcY(0f), TOLERANCE);
+        assertEquals(-1f, viewport.toNdcY(640f), TOLERANCE);
+    }
+
+    private void assertPlacement(float left, float top, float width, float height) {
+        assertEquals("left", left, viewport.getLeft(), TOLERANCE);
+        assertEquals("top", top, viewport.getTop(), TOLERANCE);
+        assertEquals("width", width, viewport.getWidth(), TOLERANCE);
+        assertEquals("height", height, viewport.getHeight(), TOLERANCE);
+    }
+
+    /*
+        The quad is a triangle strip: top left, bottom left, top right, bottom right on screen.
+     */
+    private void assertPositions(float left, float top, float right, float bottom) {
+        float[][] corners = {{left, top}, {left, bottom}, {right, top}, {right, bottom}};
+        for (int i = 0; i < 4; i++) {
+            assertEquals("x of corner " + i, corners[i][0], quad[4 * i], TOLERANCE);
+            assertEquals("y of corner " + i, corners[i][1], quad[4 * i + 1], TOLERANCE);
+        }
+    }
+
+    private void assertTexCoords(float[] topLeft, float[] bottomLeft, float[] topRight, float[] bottomRight) {
+        float[][] corners = {topLeft, bottomLeft, topRight, bottomRight};
+        for (int i = 0; i < 4; i++) {
+            assertEquals("s of corner " + i, corners[i][0], quad[4 * i + 2], TOLERANCE);
+            assertEquals("t of corner " + i, corners[i][1], quad[4 * i + 3], TOLERANCE);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.affectiva.videodetectordemo;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that LandmarkBatch keeps every point it is given, in order, as its buffer grows, and reuses the buffer from
+ * one set of faces to the next.
+ */
+public class LandmarkBatchTest {
+    // more than fit in the batch's first buffer
+    private static final int MANY_POINTS = 100;
+    private static final float TOLERANCE = 1e-5f;
+
+    private final FrameViewport viewport = new FrameViewport();
+    private final LandmarkBatch batch = new LandmarkBatch();
+
+    @Before
+    public void setUp() {
+        // a 640x480 frame filling a 1280x960 view: NDC x = x / 320 - 1, y = 1 - y / 240
+        viewport.update(640, 480, Frame.ROTATE.NO_ROTATION.toDouble(), 1280, 960);
+    }
+
+    @Test
+    public void startsEmpty() {
+        assertEquals(0, batch.getCount());
+        assertEquals(0, batch.getVertices().position());
+    }
+
+    @Test
+    public void convertsPointsToNormalizedDeviceCoordinates() {
+        batch.add(0f, 0f, viewport);
+        batch.add(320f, 240f, viewport);
+        batch.add(640f, 480f, viewport);
+
+        assertEquals(3, batch.getCount());
+        assertVertex(0, -1f, 1f);
+        assertVertex(1, 0f, 0f);
+        assertVertex(2, 1f, -1f);
+    }
+
+    @Test
+    public void keepsEveryPointWhenGrowing() {
+        for (int i = 0; i < MANY_POINTS; i++) {
+            batch.add(i, 2 * i, viewport);
+        }
+
+        assertEquals(MANY_POINTS, batch.getCount());
+        FloatBuffer vertices = batch.getVertices();
+        assertEquals(0, vertices.position());
+        for (int i = 0; i < MANY_POINTS; i++) {
+            assertVertex(i, viewport.toNdcX(i), viewport.toNdcY(2 * i));
+        }
+    }
+
+    @Test
+    public void reusesItsBufferForTheNextFaces() {
+        for (int i = 0; i < MANY_POINTS; i++) {
+            batch.add(i, i, viewport);
+        }
+        FloatBuffer grown = batch.getVertices();
+
+        batch.clear();
+        assertEquals(0, batch.getCount());
+        batch.add(320f, 0f, viewport);
+        batch.add(0f, 240f, viewport);
+
+        assertEquals(2, batch.getCount());
+        assertSame(grown, batch.getVertices());
+        assertVertex(0, 0f, 1f);
+        assertVertex(1, -1f, 0f);
+    }
+
+    private void assertVertex(int index, float x, float y) {
+        FloatBuffer vertices = batch.getVertices();
+        assertEquals("x of point " + index, x, vertices.get(2 * index), TOLERANCE);
+        assertEquals("y of point " + index, y, vertices.get(2 * index + 1), TOLERANCE);
+    }
+}